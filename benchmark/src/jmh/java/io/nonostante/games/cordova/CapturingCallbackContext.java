@@ -0,0 +1,18 @@
+package io.nonostante.games.cordova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+/** Keeps the last result instead of sending it to a web view. */
+final class CapturingCallbackContext extends CallbackContext {
+    PluginResult last;
+
+    CapturingCallbackContext() {
+        super("benchmark", null);
+    }
+
+    @Override
+    public void sendPluginResult(PluginResult result) {
+        last = result;
+    }
+}
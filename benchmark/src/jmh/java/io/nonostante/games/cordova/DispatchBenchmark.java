@@ -0,0 +1,104 @@
+package io.nonostante.games.cordova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getting from execute() to an action handler, with the plugin
+ * interceptors and with the former if/else chain on action names, plus the
+ * error payload built by most failures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchBenchmark {
+
+    // The plugin actions, the last one is dispatched (worst case of the if/else chain)
+    static final String[] ACTIONS = {
+            "login", "logout", "getPlayerDetails", "getCachedPlayerDetails", "getPlayerScore", "submitScore",
+            "submitScores", "getLeaderboardScores", "getLeaderboardScoresBatch", "streamLeaderboardScores",
+            "ackLeaderboardStream", "cancelLeaderboardStream", "showLeaderboard", "showLeaderboards",
+            "unlockAchievement", "incrementAchievement", "showAchievements", "getAchievements", "getMetrics",
+            "resetMetrics", "resetAchievements"
+    };
+    static final String ACTION = ACTIONS[ACTIONS.length - 1];
+
+    private final JSONArray mArgs = new JSONArray();
+    private final CapturingCallbackContext mContext = new CapturingCallbackContext();
+
+    private ActionDispatcher mBare;
+    private ActionDispatcher mIntercepted;
+
+    @Setup
+    public void setup() {
+        mBare = newDispatcher();
+        mIntercepted = newDispatcher();
+        mIntercepted.setMetrics(new ActionMetrics());
+        mIntercepted.addInterceptor(new ActionDispatcher.Interceptor() {
+            @Override
+            public void intercept(ActionDispatcher.Call call) throws JSONException {
+                call.proceed();
+            }
+        });
+        mIntercepted.addInterceptor(new SingleFlight(null));
+    }
+
+    @Benchmark
+    public PluginResult ifElseChain() throws JSONException {
+        String action = ACTION;
+        for (String name : ACTIONS) {
+            if (action.equals(name)) {
+                mContext.error(JsonEncoding.error(2, "Not Supported"));
+                break;
+            }
+        }
+        return mContext.last;
+    }
+
+    @Benchmark
+    public PluginResult dispatcher() throws JSONException {
+        mBare.dispatch(ACTION, mArgs, mContext);
+        return mContext.last;
+    }
+
+    @Benchmark
+    public PluginResult dispatcherWithInterceptors() throws JSONException {
+        mIntercepted.dispatch(ACTION, mArgs, mContext);
+        return mContext.last;
+    }
+
+    @Benchmark
+    public JSONObject errorJson() {
+        return JsonEncoding.error(4, 26504, "Network error");
+    }
+
+    private static ActionDispatcher newDispatcher() {
+        ActionDispatcher dispatcher = new ActionDispatcher(null, new ActionDispatcher.ThreadRunner() {
+            @Override
+            public void run(ActionDispatcher.Threading threading, Runnable task) {
+                task.run();
+            }
+        });
+        for (String name : ACTIONS) {
+            dispatcher.register(name, new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+                @Override
+                void handle(JSONArray args, CallbackContext callbackContext) {
+                    callbackContext.error(JsonEncoding.error(2, "Not Supported"));
+                }
+            });
+        }
+        return dispatcher;
+    }
+}
@@ -0,0 +1,90 @@
+package io.nonostante.games.cordova;
+
+import com.google.android.gms.games.achievement.Achievement;
+import com.google.android.gms.games.leaderboard.LeaderboardScore;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts result buffers the way the actions do, up to the PluginResult
+ * the bridge sends (which includes stringifying JSON payloads).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodingBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int rows;
+
+    private List<LeaderboardScore> mScores;
+    private List<Achievement> mAchievements;
+    private JSONArray mAchievementEntries;
+    private final CapturingCallbackContext mContext = new CapturingCallbackContext();
+
+    @Setup
+    public void setup() {
+        mScores = FakeData.scores(rows);
+        mAchievements = FakeData.achievements(rows);
+        mAchievementEntries = new JSONArray();
+        for (Achievement achievement : mAchievements) {
+            mAchievementEntries.put(JsonEncoding.achievement(achievement));
+        }
+    }
+
+    @Benchmark
+    public PluginResult scoresJson() {
+        return send(CompactEncoding.encodeScores(mScores, CompactEncoding.FORMAT_JSON));
+    }
+
+    @Benchmark
+    public PluginResult scoresColumns() {
+        return send(CompactEncoding.encodeScores(mScores, CompactEncoding.FORMAT_COLUMNS));
+    }
+
+    @Benchmark
+    public PluginResult scoresBinary() {
+        return send(CompactEncoding.encodeScores(mScores, CompactEncoding.FORMAT_BINARY));
+    }
+
+    @Benchmark
+    public PluginResult scoresPlayers() {
+        return send(CompactEncoding.encodeScores(mScores, CompactEncoding.FORMAT_PLAYERS));
+    }
+
+    @Benchmark
+    public PluginResult achievementsJson() {
+        JSONArray array = new JSONArray();
+        for (Achievement achievement : mAchievements) {
+            array.put(JsonEncoding.achievement(achievement));
+        }
+        return send(array);
+    }
+
+    @Benchmark
+    public PluginResult achievementsColumns() {
+        return send(CompactEncoding.encodeAchievements(mAchievementEntries, CompactEncoding.FORMAT_COLUMNS));
+    }
+
+    @Benchmark
+    public PluginResult achievementsBinary() {
+        return send(CompactEncoding.encodeAchievements(mAchievementEntries, CompactEncoding.FORMAT_BINARY));
+    }
+
+    private PluginResult send(Object payload) {
+        CompactEncoding.send(mContext, payload, false);
+        return mContext.last;
+    }
+}
@@ -0,0 +1,182 @@
+package io.nonostante.games.cordova;
+
+import android.net.Uri;
+
+import com.google.android.gms.games.Player;
+import com.google.android.gms.games.achievement.Achievement;
+import com.google.android.gms.games.leaderboard.LeaderboardScore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** In-memory stand-ins for the Play Games data buffers entries. */
+final class FakeData {
+
+    // Leaderboard pages repeat players (top and centered pages, several
+    // leaderboards): one distinct player every PLAYER_REUSE rows
+    static final int PLAYER_REUSE = 4;
+
+    static final class FakePlayer implements Player {
+        private final String mId;
+        private final String mName;
+
+        FakePlayer(int index) {
+            mId = "g" + (1000000000L + index * 7919L);
+            mName = "Player " + index;
+        }
+
+        @Override
+        public String getPlayerId() {
+            return mId;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return mName;
+        }
+
+        @Override
+        public boolean hasHiResImage() {
+            return true;
+        }
+
+        @Override
+        public String getHiResImageUrl() {
+            return "https://lh3.googleusercontent.com/games/hi/" + mId;
+        }
+
+        @Override
+        public String getIconImageUrl() {
+            return "https://lh3.googleusercontent.com/games/icon/" + mId;
+        }
+    }
+
+    static final class FakeScore implements LeaderboardScore {
+        private final Player mHolder;
+        private final long mScore;
+        private final long mRank;
+
+        FakeScore(Player holder, long score, long rank) {
+            mHolder = holder;
+            mScore = score;
+            mRank = rank;
+        }
+
+        @Override
+        public Player getScoreHolder() {
+            return mHolder;
+        }
+
+        @Override
+        public String getScoreHolderIconImageUrl() {
+            return mHolder.getIconImageUrl();
+        }
+
+        @Override
+        public long getRawScore() {
+            return mScore;
+        }
+
+        @Override
+        public long getRank() {
+            return mRank;
+        }
+
+        @Override
+        public long getTimestampMillis() {
+            return 1500000000000L + mRank * 1000;
+        }
+
+        @Override
+        public String getScoreTag() {
+            return mRank % 3 == 0 ? "tag" + mRank : null;
+        }
+    }
+
+    static final class FakeAchievement implements Achievement {
+        private final int mIndex;
+
+        FakeAchievement(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public String getAchievementId() {
+            return "CgkI" + mIndex + "EAIQAQ";
+        }
+
+        @Override
+        public int getState() {
+            return mIndex % 3;
+        }
+
+        @Override
+        public int getType() {
+            return mIndex % 2 == 0 ? TYPE_INCREMENTAL : TYPE_STANDARD;
+        }
+
+        @Override
+        public long getXpValue() {
+            return 50;
+        }
+
+        @Override
+        public String getName() {
+            return "Achievement " + mIndex;
+        }
+
+        @Override
+        public String getDescription() {
+            return "Description of the achievement number " + mIndex;
+        }
+
+        @Override
+        public int getCurrentSteps() {
+            return mIndex % 10;
+        }
+
+        @Override
+        public int getTotalSteps() {
+            return 10;
+        }
+
+        @Override
+        public Uri getRevealedImageUri() {
+            return Uri.parse("content://com.google.android.gms.games.background/images/" + mIndex);
+        }
+
+        @Override
+        public Uri getUnlockedImageUri() {
+            return Uri.parse("content://com.google.android.gms.games.background/images/u" + mIndex);
+        }
+
+        @Override
+        public long getLastUpdatedTimestamp() {
+            return 1500000000000L + mIndex;
+        }
+    }
+
+    static List<LeaderboardScore> scores(int rows) {
+        ArrayList<Player> players = new ArrayList<Player>();
+        for (int a = 0, l = Math.max(1, rows / PLAYER_REUSE); a < l; a++) {
+            players.add(new FakePlayer(a));
+        }
+
+        ArrayList<LeaderboardScore> scores = new ArrayList<LeaderboardScore>(rows);
+        for (int a = 0; a < rows; a++) {
+            scores.add(new FakeScore(players.get(a % players.size()), 1000000L - a * 13L, a + 1));
+        }
+        return scores;
+    }
+
+    static List<Achievement> achievements(int rows) {
+        ArrayList<Achievement> achievements = new ArrayList<Achievement>(rows);
+        for (int a = 0; a < rows; a++) {
+            achievements.add(new FakeAchievement(a));
+        }
+        return achievements;
+    }
+
+    private FakeData() {
+    }
+}
@@ -0,0 +1,19 @@
+package android.net;
+
+/** Stub of the few Uri methods used by the plugin. */
+public final class Uri {
+    private final String mValue;
+
+    private Uri(String value) {
+        mValue = value;
+    }
+
+    public static Uri parse(String value) {
+        return new Uri(value);
+    }
+
+    @Override
+    public String toString() {
+        return mValue;
+    }
+}
@@ -0,0 +1,14 @@
+package com.google.android.gms.games;
+
+/** Stub: the methods of the Play Games Player used by the plugin. */
+public interface Player {
+    String getPlayerId();
+
+    String getDisplayName();
+
+    boolean hasHiResImage();
+
+    String getHiResImageUrl();
+
+    String getIconImageUrl();
+}
@@ -0,0 +1,35 @@
+package com.google.android.gms.games.achievement;
+
+import android.net.Uri;
+
+/** Stub: the constants and methods of the Play Games Achievement used by the plugin. */
+public interface Achievement {
+    int STATE_UNLOCKED = 0;
+    int STATE_REVEALED = 1;
+    int STATE_HIDDEN = 2;
+
+    int TYPE_STANDARD = 0;
+    int TYPE_INCREMENTAL = 1;
+
+    String getAchievementId();
+
+    int getState();
+
+    int getType();
+
+    long getXpValue();
+
+    String getName();
+
+    String getDescription();
+
+    int getCurrentSteps();
+
+    int getTotalSteps();
+
+    Uri getRevealedImageUri();
+
+    Uri getUnlockedImageUri();
+
+    long getLastUpdatedTimestamp();
+}
@@ -0,0 +1,18 @@
+package com.google.android.gms.games.leaderboard;
+
+import com.google.android.gms.games.Player;
+
+/** Stub: the methods of the Play Games LeaderboardScore used by the plugin. */
+public interface LeaderboardScore {
+    Player getScoreHolder();
+
+    String getScoreHolderIconImageUrl();
+
+    long getRawScore();
+
+    long getRank();
+
+    long getTimestampMillis();
+
+    String getScoreTag();
+}
@@ -0,0 +1,5 @@
+package org.apache.cordova;
+
+/** Stub: never used by the benchmarked code besides being passed around. */
+public interface CordovaWebView {
+}
@@ -0,0 +1,68 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Stub of the Cordova PluginResult. Messages are encoded when the result is
+ * built, as the real class does, so benchmarks include that cost.
+ */
+public class PluginResult {
+    public enum Status {
+        NO_RESULT, OK, CLASS_NOT_FOUND_EXCEPTION, ILLEGAL_ACCESS_EXCEPTION, INSTANTIATION_EXCEPTION,
+        MALFORMED_URL_EXCEPTION, IO_EXCEPTION, INVALID_ACTION, JSON_EXCEPTION, ERROR
+    }
+
+    private final int mStatus;
+    private final String mMessage;
+    private final byte[] mBinary;
+    private boolean mKeepCallback = false;
+
+    public PluginResult(Status status) {
+        this(status, (String) null);
+    }
+
+    public PluginResult(Status status, String message) {
+        mStatus = status.ordinal();
+        mMessage = message != null ? JSONObject.quote(message) : null;
+        mBinary = null;
+    }
+
+    public PluginResult(Status status, JSONObject message) {
+        mStatus = status.ordinal();
+        mMessage = message.toString();
+        mBinary = null;
+    }
+
+    public PluginResult(Status status, JSONArray message) {
+        mStatus = status.ordinal();
+        mMessage = message.toString();
+        mBinary = null;
+    }
+
+    public PluginResult(Status status, byte[] data) {
+        mStatus = status.ordinal();
+        mMessage = null;
+        mBinary = data;
+    }
+
+    public void setKeepCallback(boolean keepCallback) {
+        mKeepCallback = keepCallback;
+    }
+
+    public boolean getKeepCallback() {
+        return mKeepCallback;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    public byte[] getBinaryMessage() {
+        return mBinary;
+    }
+}
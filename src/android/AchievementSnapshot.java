@@ -0,0 +1,260 @@
+package io.nonostante.games.cordova;
+
+import android.util.Log;
+
+import com.google.android.gms.games.achievement.Achievement;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Local copy of the achievement table of the signed in player, persisted in
+ * the app private storage so it is available right after a cold start.
+ * <p>
+ * The snapshot is reconciled with the service results: only achievements
+ * whose state, steps or last update timestamp changed are re-serialized and
+ * reported as changed, the static parts (names, descriptions, images) are
+ * reused from the stored entries.
+ */
+class AchievementSnapshot {
+    static final String TAG = "AchievementSnapshot";
+
+    private static final String FILE_NAME = "gameservices.achievements.json";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Builds the full JSON entry of a new achievement. */
+    interface Serializer {
+        JSONObject toJSON(Achievement achievement);
+    }
+
+    private final File mFile;
+    private final ExecutorService mExecutor;
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    private final LinkedHashMap<String, JSONObject> mEntries = new LinkedHashMap<String, JSONObject>();
+    private String mPlayerId;
+
+    AchievementSnapshot(File dir) {
+        mFile = new File(dir, FILE_NAME);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GameServices-achievements");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Whether a snapshot is available. It belongs to the last signed in player
+     * since it is cleared on logout, and reset by {@link #reconcile} if the
+     * player changed.
+     */
+    boolean isAvailable() {
+        awaitLoaded();
+        synchronized (this) {
+            return !mEntries.isEmpty();
+        }
+    }
+
+    /** All the entries of the snapshot. */
+    synchronized JSONArray toJSON() {
+        JSONArray array = new JSONArray();
+        for (JSONObject entry : mEntries.values()) {
+            array.put(entry);
+        }
+        return array;
+    }
+
+    /**
+     * Merges the achievements loaded from the service into the snapshot and
+     * returns the entries that are new or changed.
+     */
+    JSONArray reconcile(String playerId, Iterable<Achievement> achievements, Serializer serializer) {
+        awaitLoaded();
+        JSONArray changed = new JSONArray();
+
+        synchronized (this) {
+            if (playerId == null ? mPlayerId != null : !playerId.equals(mPlayerId)) {
+                mEntries.clear();
+                mPlayerId = playerId;
+            }
+
+            for (Achievement ach : achievements) {
+                String id = ach.getAchievementId();
+                int state = ach.getState();
+                boolean incremental = ach.getType() == Achievement.TYPE_INCREMENTAL;
+                int steps = incremental ? ach.getCurrentSteps() : 0;
+                long timestamp = ach.getLastUpdatedTimestamp();
+
+                JSONObject entry = mEntries.get(id);
+                if (entry == null) {
+                    entry = serializer.toJSON(ach);
+                } else if (entry.optBoolean("isCompleted") == (state == Achievement.STATE_UNLOCKED)
+                        && entry.optBoolean("isHidden") == (state == Achievement.STATE_HIDDEN)
+                        && entry.optInt("steps") == steps
+                        && entry.optLong("timestamp") == timestamp
+                        // entries saved with steps for a standard achievement are rebuilt once
+                        && (incremental || !entry.has("steps"))) {
+                    continue;
+                } else {
+                    entry = updateState(entry, state, incremental, incremental ? ach.getTotalSteps() : 0, steps, timestamp);
+                }
+
+                mEntries.put(id, entry);
+                changed.put(entry);
+            }
+        }
+
+        if (changed.length() > 0) {
+            save();
+        }
+        return changed;
+    }
+
+    /** Forgets the snapshot (e.g. on logout). */
+    void clear() {
+        awaitLoaded();
+        synchronized (this) {
+            mEntries.clear();
+            mPlayerId = null;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mFile.delete();
+            }
+        });
+    }
+
+    // Copies an entry with new dynamic fields: entries already handed out are
+    // never mutated since they may still be in use by a pending result. The
+    // fields match JsonEncoding.achievement: steps only for incremental
+    // achievements, the percent of the others following their state.
+    private static JSONObject updateState(JSONObject entry, int state, boolean incremental, int totalSteps, int steps, long timestamp) {
+        try {
+            JSONObject copy = new JSONObject(entry.toString());
+            copy.put("isCompleted", state == Achievement.STATE_UNLOCKED)
+                    .put("isHidden", state == Achievement.STATE_HIDDEN)
+                    .put("timestamp", timestamp);
+            if (incremental) {
+                copy.put("percent", totalSteps > 0 ? steps * 100 / totalSteps : 0)
+                        .put("totalSteps", totalSteps)
+                        .put("steps", steps);
+            } else {
+                copy.put("percent", state == Achievement.STATE_UNLOCKED ? 100 : 0);
+                copy.remove("totalSteps");
+                copy.remove("steps");
+            }
+            return copy;
+        } catch (JSONException e) {
+            return entry;
+        }
+    }
+
+    private void awaitLoaded() {
+        try {
+            mLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void save() {
+        final String data;
+        synchronized (this) {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("playerId", mPlayerId)
+                        .put("achievements", toJSON());
+            } catch (JSONException e) {
+                return;
+            }
+            data = json.toString();
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File tmp = new File(mFile.getPath() + ".tmp");
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(tmp);
+                    out.write(data.getBytes(UTF8));
+                    out.getFD().sync();
+                    out.close();
+                    out = null;
+                    if (!tmp.renameTo(mFile)) {
+                        throw new IOException("rename failed");
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to save achievements", e);
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                    tmp.delete();
+                }
+            }
+        });
+    }
+
+    // IO thread only
+    private void load() {
+        try {
+            if (!mFile.exists()) {
+                return;
+            }
+
+            byte[] data = new byte[(int) mFile.length()];
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                int offset = 0;
+                while (offset < data.length) {
+                    int read = in.read(data, offset, data.length - offset);
+                    if (read < 0) {
+                        break;
+                    }
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+
+            JSONObject json = new JSONObject(new String(data, UTF8));
+            JSONArray achievements = json.getJSONArray("achievements");
+            synchronized (this) {
+                mPlayerId = json.optString("playerId", null);
+                for (int a = 0, l = achievements.length(); a < l; a++) {
+                    JSONObject entry = achievements.getJSONObject(a);
+                    mEntries.put(entry.getString("id"), entry);
+                }
+            }
+            Log.d(TAG, "Loaded " + achievements.length() + " achievement(s)");
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Unable to load achievements", e);
+        } finally {
+            mLoaded.countDown();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package io.nonostante.games.cordova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps plugin action names to their handlers.
+ * <p>
+ * Each handler declares the thread it runs on, whether it needs a connected
+ * client and its deadline. A dispatched call goes through the registered
+ * interceptors, in registration order, before reaching its handler: this is
+ * where cross-cutting concerns (connection checks, throttling, retries)
+ * live instead of being repeated in every action. Timing is built into the
+ * calls themselves (see {@link #setMetrics}).
+ */
+class ActionDispatcher {
+
+    /** Deadline of actions answering for as long as they are registered (listeners). */
+    static final long NO_DEADLINE = -1;
+
+    /**
+     * Deadline of writes: instead of a call deadline, their service requests
+     * time out themselves, and a write past its timeout is queued, not failed.
+     */
+    static final long SERVICE_DEADLINE = -2;
+
+    /** Where a handler runs. */
+    enum Threading {
+        /** The thread calling execute (the Cordova bridge thread). */
+        CALLER,
+        /** The main thread, for actions that show UI. */
+        UI,
+        /** The plugin worker executor. */
+        WORKER
+    }
+
+    /** Runs tasks for the given threading. */
+    interface ThreadRunner {
+        void run(Threading threading, Runnable task);
+    }
+
+    /** A plugin action. */
+    static abstract class Action {
+        final Threading threading;
+        final boolean requiresConnection;
+
+        // max time (ms) the caller waits for a result, 0 for the longest
+        // deadline allowed, NO_DEADLINE for listeners, SERVICE_DEADLINE for
+        // writes (see CallDeadlines)
+        final long timeoutMs;
+
+        // metrics of the action, resolved when registered (see setMetrics)
+        volatile ActionMetrics.Stats stats;
+
+        Action(Threading threading, boolean requiresConnection, long timeoutMs) {
+            this.threading = threading;
+            this.requiresConnection = requiresConnection;
+            this.timeoutMs = timeoutMs;
+        }
+
+        abstract void handle(JSONArray args, CallbackContext callbackContext) throws JSONException;
+
+        /**
+         * Key of the arguments for reads that may share a single in-flight
+         * request with identical calls (see {@link SingleFlight}), or null.
+         */
+        String coalesceKey(JSONArray args) {
+            return null;
+        }
+
+        /**
+         * Whether the call may be issued again when it failed for a transient
+         * reason (see {@link ReconnectSupervisor}), e.g. idempotent reads.
+         */
+        boolean retryable(JSONArray args) {
+            return false;
+        }
+
+        /**
+         * Whether the call can be answered without the service right now,
+         * e.g. from a cache: the circuit breaker lets it through even while
+         * open (see {@link ReconnectSupervisor}).
+         */
+        boolean answersLocally(JSONArray args) {
+            return false;
+        }
+    }
+
+    /**
+     * Hook around every dispatched call. Implementations call
+     * {@link Call#proceed()} to continue (possibly later, on another thread,
+     * or more than once), or answer the callback context themselves to stop
+     * the call.
+     */
+    interface Interceptor {
+        void intercept(Call call) throws JSONException;
+    }
+
+    /**
+     * A dispatched call, at a given position of the interceptor chain.
+     * <p>
+     * The first call of a measured action is also the callback context the
+     * chain answers to: it records the stages and the outcome of the call in
+     * the action metrics and forwards the results to the Cordova context, so
+     * that measuring allocates nothing beyond the call itself.
+     */
+    static final class Call extends CallbackContext {
+        final String name;
+        final Action action;
+        final JSONArray args;
+        final CallbackContext callbackContext;
+
+        private final ActionDispatcher mDispatcher;
+        private final int mIndex;
+
+        // first call of the dispatch only: the Cordova context and the
+        // stage times (ns), see ActionMetrics
+        private final CallbackContext mTarget;
+        final long dispatchedAt;
+        volatile long startedAt;
+        volatile long resultAt;
+
+        // The first call, answering to itself when the action is measured
+        Call(ActionDispatcher dispatcher, String name, Action action, JSONArray args, CallbackContext target) {
+            super(target.getCallbackId(), dispatcher.mWebView);
+            mDispatcher = dispatcher;
+            mIndex = 0;
+            this.name = name;
+            this.action = action;
+            this.args = args;
+            mTarget = target;
+            if (action.stats != null) {
+                callbackContext = this;
+                dispatchedAt = System.nanoTime();
+                ActionMetrics.dispatched(this);
+            } else {
+                callbackContext = target;
+                dispatchedAt = 0;
+            }
+        }
+
+        private Call(Call call, int index, CallbackContext callbackContext) {
+            super(call.getCallbackId(), call.mDispatcher.mWebView);
+            mDispatcher = call.mDispatcher;
+            mIndex = index;
+            name = call.name;
+            action = call.action;
+            args = call.args;
+            this.callbackContext = callbackContext;
+            mTarget = null;
+            dispatchedAt = 0;
+        }
+
+        /** Continues with the next interceptor, or the action itself. */
+        void proceed() throws JSONException {
+            mDispatcher.invoke(new Call(this, mIndex + 1, callbackContext));
+        }
+
+        /** Returns this call answering to another callback context (e.g. a wrapper observing results). */
+        Call withCallbackContext(CallbackContext context) {
+            return new Call(this, mIndex, context);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            if (mTarget == null) {
+                callbackContext.sendPluginResult(result);
+                return;
+            }
+            if (!result.getKeepCallback()) {
+                ActionMetrics.completed(this, result);
+            }
+            mTarget.sendPluginResult(result);
+        }
+    }
+
+    private final HashMap<String, Action> mActions = new HashMap<String, Action>();
+    private final ArrayList<Interceptor> mInterceptors = new ArrayList<Interceptor>();
+    private final CordovaWebView mWebView;
+    private final ThreadRunner mRunner;
+    private ActionMetrics mMetrics;
+
+    ActionDispatcher(CordovaWebView webView, ThreadRunner runner) {
+        mWebView = webView;
+        mRunner = runner;
+    }
+
+    void register(String name, Action action) {
+        if (mMetrics != null) {
+            action.stats = mMetrics.stats(name);
+        }
+        mActions.put(name, action);
+    }
+
+    /** Measures every action, registered already or later. */
+    void setMetrics(ActionMetrics metrics) {
+        mMetrics = metrics;
+        for (Map.Entry<String, Action> entry : mActions.entrySet()) {
+            entry.getValue().stats = metrics.stats(entry.getKey());
+        }
+    }
+
+    void addInterceptor(Interceptor interceptor) {
+        mInterceptors.add(interceptor);
+    }
+
+    Action get(String name) {
+        return mActions.get(name);
+    }
+
+    /** Dispatches an action. Returns false if the action is unknown. */
+    boolean dispatch(String name, JSONArray args, CallbackContext callbackContext) throws JSONException {
+        Action action = mActions.get(name);
+        if (action == null) {
+            return false;
+        }
+        invoke(new Call(this, name, action, args, callbackContext));
+        return true;
+    }
+
+    private void invoke(final Call call) throws JSONException {
+        if (call.mIndex < mInterceptors.size()) {
+            mInterceptors.get(call.mIndex).intercept(call);
+            return;
+        }
+
+        if (call.action.threading == Threading.CALLER) {
+            ActionMetrics.mark(call.callbackContext, ActionMetrics.STAGE_QUEUE);
+            call.action.handle(call.args, call.callbackContext);
+            return;
+        }
+
+        mRunner.run(call.action.threading, new Runnable() {
+            @Override
+            public void run() {
+                ActionMetrics.mark(call.callbackContext, ActionMetrics.STAGE_QUEUE);
+                try {
+                    call.action.handle(call.args, call.callbackContext);
+                } catch (JSONException e) {
+                    call.callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,244 @@
+package io.nonostante.games.cordova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of every dispatched action.
+ * <p>
+ * Each call is timed in stages: queue (dispatch until the handler runs on
+ * its thread), service (handler until the service result is delivered),
+ * convert (result delivered until the response is sent) and total. Stage
+ * durations go into fixed-bucket histograms; success and failure counts
+ * (by status code) and in-flight gauges are kept per action. The counters
+ * of an action are resolved when it is registered, and the stage times are
+ * kept on the dispatched call (see {@link ActionDispatcher.Call}), so that
+ * recording allocates nothing and takes no lock on the success path;
+ * failures are decoded from the error payload.
+ * <p>
+ * Listeners ({@link ActionDispatcher#NO_DEADLINE}) stay registered for as
+ * long as the app runs, so they are left out of the in-flight gauges; their
+ * stages and outcome are still recorded once their last result is sent.
+ * <p>
+ * Failure codes are the service status code when the error has one, the
+ * negated plugin error code otherwise (e.g. -3 for not connected), or 0 for
+ * errors without a code.
+ */
+class ActionMetrics {
+
+    static final int STAGE_QUEUE = 0;
+    static final int STAGE_SERVICE = 1;
+    static final int STAGE_CONVERT = 2;
+    static final int STAGE_TOTAL = 3;
+    private static final String[] STAGE_NAMES = {"queue", "service", "convert", "total"};
+
+    // Upper bounds (ms) of the histogram buckets, plus an overflow bucket
+    static final long[] BUCKETS_MS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    // per stage: one counter per bucket, then count and sum (us)
+    private static final int STAGE_SLOTS = BUCKETS_MS.length + 3;
+
+    /** Callback contexts forwarding to another one, e.g. merged calls. */
+    interface Forwarding {
+        CallbackContext getTarget();
+    }
+
+    static final class Stats {
+        final AtomicLongArray stages = new AtomicLongArray(STAGE_SLOTS * STAGE_NAMES.length);
+        final AtomicLong success = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final HashMap<Integer, long[]> failures = new HashMap<Integer, long[]>();
+
+        void record(int stage, long nanos) {
+            long ms = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKETS_MS.length && ms > BUCKETS_MS[bucket]) {
+                bucket++;
+            }
+            int base = stage * STAGE_SLOTS;
+            stages.incrementAndGet(base + bucket);
+            stages.incrementAndGet(base + BUCKETS_MS.length + 1);
+            stages.addAndGet(base + BUCKETS_MS.length + 2, nanos / 1000);
+        }
+
+        void fail(int code) {
+            synchronized (failures) {
+                long[] count = failures.get(code);
+                if (count == null) {
+                    failures.put(code, new long[]{1});
+                } else {
+                    count[0]++;
+                }
+            }
+        }
+
+        void enter() {
+            int current = inFlight.incrementAndGet();
+            int max;
+            while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+            }
+        }
+
+        void reset() {
+            for (int a = 0, l = stages.length(); a < l; a++) {
+                stages.set(a, 0);
+            }
+            success.set(0);
+            maxInFlight.set(inFlight.get());
+            synchronized (failures) {
+                failures.clear();
+            }
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject()
+                    .put("success", success.get())
+                    .put("inFlight", inFlight.get())
+                    .put("maxInFlight", maxInFlight.get());
+
+            JSONObject codes = new JSONObject();
+            long failed = 0;
+            synchronized (failures) {
+                for (Map.Entry<Integer, long[]> entry : failures.entrySet()) {
+                    codes.put(String.valueOf(entry.getKey()), entry.getValue()[0]);
+                    failed += entry.getValue()[0];
+                }
+            }
+            json.put("failure", failed)
+                    .put("failures", codes);
+
+            JSONObject stagesJSON = new JSONObject();
+            for (int s = 0; s < STAGE_NAMES.length; s++) {
+                int base = s * STAGE_SLOTS;
+                long count = stages.get(base + BUCKETS_MS.length + 1);
+                if (count == 0) {
+                    continue;
+                }
+                JSONArray buckets = new JSONArray();
+                for (int b = 0; b <= BUCKETS_MS.length; b++) {
+                    buckets.put(stages.get(base + b));
+                }
+                stagesJSON.put(STAGE_NAMES[s], new JSONObject()
+                        .put("count", count)
+                        .put("sumMs", stages.get(base + BUCKETS_MS.length + 2) / 1000.0)
+                        .put("buckets", buckets));
+            }
+            return json.put("stages", stagesJSON);
+        }
+    }
+
+    private final LinkedHashMap<String, Stats> mStats = new LinkedHashMap<String, Stats>();
+
+    /** Returns the counters of an action, resolved once when it is registered. */
+    Stats stats(String name) {
+        synchronized (mStats) {
+            Stats stats = mStats.get(name);
+            if (stats == null) {
+                stats = new Stats();
+                mStats.put(name, stats);
+            }
+            return stats;
+        }
+    }
+
+    // A measured call was dispatched
+    static void dispatched(ActionDispatcher.Call call) {
+        if (call.action.timeoutMs != ActionDispatcher.NO_DEADLINE) {
+            call.action.stats.enter();
+        }
+    }
+
+    // The last result of a measured call is being sent
+    static void completed(ActionDispatcher.Call call, PluginResult result) {
+        Stats stats = call.action.stats;
+        long now = System.nanoTime();
+        if (call.resultAt != 0) {
+            stats.record(STAGE_CONVERT, now - call.resultAt);
+        }
+        stats.record(STAGE_TOTAL, now - call.dispatchedAt);
+        if (call.action.timeoutMs != ActionDispatcher.NO_DEADLINE) {
+            stats.inFlight.decrementAndGet();
+        }
+
+        if (result.getStatus() == PluginResult.Status.OK.ordinal()) {
+            stats.success.incrementAndGet();
+        } else {
+            stats.fail(failureCode(result));
+        }
+    }
+
+    /**
+     * Marks a stage of the call answering to the given context: STAGE_QUEUE
+     * when its handler starts, STAGE_SERVICE when its service result is
+     * delivered. Only the first mark of a stage counts.
+     */
+    static void mark(CallbackContext context, int stage) {
+        while (context instanceof Forwarding) {
+            context = ((Forwarding) context).getTarget();
+        }
+        if (!(context instanceof ActionDispatcher.Call)) {
+            return;
+        }
+        ActionDispatcher.Call call = (ActionDispatcher.Call) context;
+        if (call.action.stats == null || call.dispatchedAt == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (stage == STAGE_QUEUE && call.startedAt == 0) {
+            call.startedAt = now;
+            call.action.stats.record(STAGE_QUEUE, now - call.dispatchedAt);
+        } else if (stage == STAGE_SERVICE && call.resultAt == 0 && call.startedAt != 0) {
+            call.resultAt = now;
+            call.action.stats.record(STAGE_SERVICE, now - call.startedAt);
+        }
+    }
+
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            JSONArray buckets = new JSONArray();
+            for (long bound : BUCKETS_MS) {
+                buckets.put(bound);
+            }
+            json.put("bucketsMs", buckets);
+
+            JSONObject actions = new JSONObject();
+            synchronized (mStats) {
+                for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+                    actions.put(entry.getKey(), entry.getValue().toJSON());
+                }
+            }
+            json.put("actions", actions);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    void reset() {
+        synchronized (mStats) {
+            for (Stats stats : mStats.values()) {
+                stats.reset();
+            }
+        }
+    }
+
+    private static int failureCode(PluginResult result) {
+        try {
+            JSONObject error = new JSONObject(result.getMessage());
+            return error.has("serviceCode") ? error.getInt("serviceCode") : -error.optInt("code");
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+}
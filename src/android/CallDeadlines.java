@@ -0,0 +1,211 @@
+package io.nonostante.games.cordova;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.Result;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Interceptor bounding how long a call waits for its results.
+ * <p>
+ * The deadline of a call is the deadline of its action
+ * ({@link ActionDispatcher.Action#timeoutMs}), or the timeoutMs of its
+ * options when its last argument is an options object. It is the longest
+ * time without any result: a call keeping its callback (pages, chunks)
+ * gets a new deadline with every result. Every deadline is capped, and
+ * calls without deadline get the cap, so no callback stays outstanding
+ * forever; only listeners ({@link ActionDispatcher#NO_DEADLINE}) are left
+ * alone.
+ * <p>
+ * Writes ({@link ActionDispatcher#SERVICE_DEADLINE}) are left alone too: a
+ * write still in flight may yet be applied, so it must not be reported as
+ * failed. Their service requests get the deadline instead ({@link #bound}),
+ * and a write past it is moved to the journal and answered as queued, like
+ * any write failing for a transient reason.
+ * <p>
+ * A call past its deadline fails with TIMEOUT, and the service requests
+ * registered for it ({@link #track}) are cancelled. Results sent after the
+ * timeout are dropped.
+ */
+class CallDeadlines implements ActionDispatcher.Interceptor {
+    static final String TAG = "CallDeadlines";
+
+    static final long DEFAULT_MAX_MS = 2 * 60 * 1000;
+
+    private final CordovaWebView mWebView;
+    private final Handler mHandler;
+    private final long mMaxMs;
+
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private final AtomicLong mTimedOut = new AtomicLong();
+
+    // Callback context of a call with a deadline
+    private final class Deadline extends CallbackContext implements ActionMetrics.Forwarding, Runnable {
+        private final String mName;
+        private final CallbackContext mTarget;
+        private final long mTimeoutMs;
+        private final ArrayList<PendingResult<?>> mPending = new ArrayList<PendingResult<?>>();
+
+        // context the tracked requests answer to, innermost in the chain
+        private CallbackContext mInner;
+        private boolean mEnded = false;
+
+        Deadline(String name, CallbackContext target, long timeoutMs) {
+            super(target.getCallbackId(), mWebView);
+            mName = name;
+            mTarget = target;
+            mTimeoutMs = timeoutMs;
+        }
+
+        @Override
+        public CallbackContext getTarget() {
+            return mTarget;
+        }
+
+        void start() {
+            mOutstanding.incrementAndGet();
+            mHandler.postDelayed(this, mTimeoutMs);
+        }
+
+        synchronized boolean track(CallbackContext inner, PendingResult<?> pending) {
+            if (mEnded) {
+                return false;
+            }
+            mInner = inner;
+            mPending.add(pending);
+            return true;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            synchronized (this) {
+                if (mEnded) {
+                    return;
+                }
+                mHandler.removeCallbacks(this);
+                if (result.getKeepCallback()) {
+                    mHandler.postDelayed(this, mTimeoutMs);
+                } else {
+                    end();
+                }
+            }
+            mTarget.sendPluginResult(result);
+        }
+
+        // Past the deadline
+        @Override
+        public void run() {
+            PendingResult<?>[] pending;
+            CallbackContext inner;
+            synchronized (this) {
+                if (mEnded) {
+                    return;
+                }
+                pending = mPending.toArray(new PendingResult<?>[mPending.size()]);
+                inner = mInner;
+            }
+            mTimedOut.incrementAndGet();
+            Log.w(TAG, String.format("%s timed out after %d ms, %d request(s) cancelled", mName, mTimeoutMs, pending.length));
+            for (PendingResult<?> request : pending) {
+                request.cancel();
+            }
+
+            // A cancelled request never completes: the error goes the way its
+            // result would have, through the contexts sharing it.
+            PluginResult error = new PluginResult(PluginResult.Status.ERROR, GameServices.getErrorJSON(GameServices.ERROR.TIMEOUT, "Timeout"));
+            if (inner != null) {
+                inner.sendPluginResult(error);
+            }
+            synchronized (this) {
+                if (mEnded) {
+                    return;
+                }
+                end();
+            }
+            mTarget.sendPluginResult(error);
+        }
+
+        private void end() {
+            mEnded = true;
+            mPending.clear();
+            mInner = null;
+            mOutstanding.decrementAndGet();
+        }
+    }
+
+    CallDeadlines(CordovaWebView webView, Handler handler, long maxMs) {
+        mWebView = webView;
+        mHandler = handler;
+        mMaxMs = maxMs;
+    }
+
+    @Override
+    public void intercept(ActionDispatcher.Call call) throws JSONException {
+        long timeoutMs = call.action.timeoutMs;
+        if (timeoutMs == ActionDispatcher.NO_DEADLINE || timeoutMs == ActionDispatcher.SERVICE_DEADLINE) {
+            call.proceed();
+            return;
+        }
+
+        Object last = call.args.length() > 0 ? call.args.opt(call.args.length() - 1) : null;
+        if (last instanceof JSONObject && ((JSONObject) last).has("timeoutMs")) {
+            timeoutMs = ((JSONObject) last).optLong("timeoutMs");
+        }
+        timeoutMs = bound(timeoutMs);
+
+        Deadline deadline = new Deadline(call.name, call.callbackContext, timeoutMs);
+        deadline.start();
+        try {
+            call.withCallbackContext(deadline).proceed();
+        } catch (JSONException e) {
+            deadline.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+        }
+    }
+
+    /** Returns the given deadline (ms), the cap when 0 or above it. */
+    long bound(long timeoutMs) {
+        return timeoutMs <= 0 || timeoutMs > mMaxMs ? mMaxMs : timeoutMs;
+    }
+
+    /**
+     * Registers a service request made for the call answering to the given
+     * context: it is cancelled if the call times out, right away if it already
+     * did. Returns the request.
+     */
+    static <R extends Result> PendingResult<R> track(CallbackContext context, PendingResult<R> pending) {
+        CallbackContext deadline = context;
+        while (deadline != null && !(deadline instanceof Deadline)) {
+            deadline = deadline instanceof ActionMetrics.Forwarding ? ((ActionMetrics.Forwarding) deadline).getTarget() : null;
+        }
+        if (deadline != null && !((Deadline) deadline).track(context, pending)) {
+            pending.cancel();
+        }
+        return pending;
+    }
+
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("maxMs", mMaxMs)
+                    .put("outstanding", mOutstanding.get())
+                    .put("timedOut", mTimedOut.get());
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    void reset() {
+        mTimedOut.set(0);
+    }
+}
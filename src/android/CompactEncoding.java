@@ -0,0 +1,248 @@
+package io.nonostante.games.cordova;
+
+import android.util.Log;
+
+import com.google.android.gms.games.Player;
+import com.google.android.gms.games.leaderboard.LeaderboardScore;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Opt-in compact encodings of leaderboard scores and achievements, which
+ * avoid repeating the keys of every row.
+ * <p>
+ * "players" (scores only) is a JSON object with a player dictionary and the
+ * scores referring to it by index, see {@link PlayerTable}.
+ * <p>
+ * "columns" is a JSON object with one array per field, all of the same
+ * length. "binary" is sent as an ArrayBuffer, big-endian:
+ * <pre>
+ * header   'G' 'S' u8 version u8 kind i32 rowCount i32 stringCount
+ * strings  stringCount x (i32 byteLength, UTF-8 bytes)
+ * rows     rowCount x row (strings are i32 indexes in the table, -1 for null)
+ *
+ * scores        str playerId, str playerName, str playerImage,
+ *               f64 score, f64 rank, f64 timestamp, str tag
+ * achievements  str id, u8 flags (1 completed, 2 hidden), i32 xp,
+ *               str name, str desc, i32 percent, i32 totalSteps, i32 steps,
+ *               str image, str imageUnlocked, f64 timestamp
+ * </pre>
+ * Plain JSON ("json") stays the default.
+ */
+class CompactEncoding {
+    static final String TAG = "CompactEncoding";
+
+    static final String FORMAT_JSON = "json";
+    static final String FORMAT_COLUMNS = "columns";
+    static final String FORMAT_BINARY = "binary";
+    static final String FORMAT_PLAYERS = "players";
+
+    static final int BINARY_VERSION = 1;
+    static final int KIND_SCORES = 1;
+    static final int KIND_ACHIEVEMENTS = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final String[] SCORE_COLUMNS = {"playerId", "playerName", "playerImage", "score", "rank", "timestamp", "tag"};
+    static final String[] ACHIEVEMENT_COLUMNS = {"id", "isCompleted", "isHidden", "xp", "name", "desc", "percent", "totalSteps", "steps", "image", "imageUnlocked", "timestamp"};
+
+    /** Returns a supported format, falling back to JSON. */
+    static String format(JSONObject options) {
+        String format = options != null ? options.optString("format", FORMAT_JSON) : FORMAT_JSON;
+        if (FORMAT_COLUMNS.equals(format) || FORMAT_BINARY.equals(format) || FORMAT_PLAYERS.equals(format)) {
+            return format;
+        }
+        return FORMAT_JSON;
+    }
+
+    /** Image of the score holder, as in the JSON format. */
+    static String playerImage(LeaderboardScore score) {
+        Player player = score.getScoreHolder();
+        return player.hasHiResImage() ? player.getHiResImageUrl() : score.getScoreHolderIconImageUrl();
+    }
+
+    /** Encodes scores in the given format: a JSONArray, a JSONObject or a byte[]. */
+    static Object encodeScores(Iterable<LeaderboardScore> scores, String format) {
+        if (FORMAT_BINARY.equals(format)) {
+            try {
+                BinaryWriter writer = new BinaryWriter();
+                int count = 0;
+                for (LeaderboardScore score : scores) {
+                    Player player = score.getScoreHolder();
+                    writer.writeString(player.getPlayerId());
+                    writer.writeString(player.getDisplayName());
+                    writer.writeString(playerImage(score));
+                    writer.rows.writeDouble(score.getRawScore());
+                    writer.rows.writeDouble(score.getRank());
+                    writer.rows.writeDouble(score.getTimestampMillis());
+                    writer.writeString(score.getScoreTag());
+                    count++;
+                }
+                return writer.finish(KIND_SCORES, count);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to encode scores", e);
+            }
+        } else if (FORMAT_COLUMNS.equals(format)) {
+            JSONArray[] columns = newColumns(SCORE_COLUMNS.length);
+            int count = 0;
+            for (LeaderboardScore score : scores) {
+                Player player = score.getScoreHolder();
+                columns[0].put(player.getPlayerId());
+                columns[1].put(player.getDisplayName());
+                columns[2].put(orNull(playerImage(score)));
+                columns[3].put(score.getRawScore());
+                columns[4].put(score.getRank());
+                columns[5].put(score.getTimestampMillis());
+                columns[6].put(orNull(score.getScoreTag()));
+                count++;
+            }
+            return toColumnsJSON(SCORE_COLUMNS, columns, count);
+        } else if (FORMAT_PLAYERS.equals(format)) {
+            PlayerTable players = new PlayerTable();
+            JSONObject json = new JSONObject();
+            try {
+                json.put("format", FORMAT_PLAYERS)
+                        .put("scores", players.toJSON(scores))
+                        .put("players", players.getPlayers());
+            } catch (JSONException e) {
+            }
+            return json;
+        }
+
+        JSONArray array = new JSONArray();
+        for (LeaderboardScore score : scores) {
+            array.put(JsonEncoding.score(score));
+        }
+        return array;
+    }
+
+    /** Re-encodes achievement JSON entries in the given format. */
+    static Object encodeAchievements(JSONArray entries, String format) {
+        int count = entries.length();
+        if (FORMAT_BINARY.equals(format)) {
+            try {
+                BinaryWriter writer = new BinaryWriter();
+                for (int a = 0; a < count; a++) {
+                    JSONObject entry = entries.optJSONObject(a);
+                    writer.writeString(entry.optString("id", null));
+                    writer.rows.writeByte((entry.optBoolean("isCompleted") ? 1 : 0) | (entry.optBoolean("isHidden") ? 2 : 0));
+                    writer.rows.writeInt(entry.optInt("xp"));
+                    writer.writeString(entry.optString("name", null));
+                    writer.writeString(entry.optString("desc", null));
+                    writer.rows.writeInt(entry.optInt("percent"));
+                    writer.rows.writeInt(entry.optInt("totalSteps"));
+                    writer.rows.writeInt(entry.optInt("steps"));
+                    writer.writeString(entry.optString("image", null));
+                    writer.writeString(entry.optString("imageUnlocked", null));
+                    writer.rows.writeDouble(entry.optLong("timestamp"));
+                }
+                return writer.finish(KIND_ACHIEVEMENTS, count);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to encode achievements", e);
+            }
+        } else if (FORMAT_COLUMNS.equals(format)) {
+            JSONArray[] columns = newColumns(ACHIEVEMENT_COLUMNS.length);
+            for (int a = 0; a < count; a++) {
+                JSONObject entry = entries.optJSONObject(a);
+                for (int c = 0; c < ACHIEVEMENT_COLUMNS.length; c++) {
+                    Object value = entry.opt(ACHIEVEMENT_COLUMNS[c]);
+                    columns[c].put(value != null ? value : JSONObject.NULL);
+                }
+            }
+            return toColumnsJSON(ACHIEVEMENT_COLUMNS, columns, count);
+        }
+
+        return entries;
+    }
+
+    /** Sends a payload returned by one of the encode methods. */
+    static void send(CallbackContext callbackContext, Object payload, boolean keepCallback) {
+        PluginResult result;
+        if (payload instanceof byte[]) {
+            result = new PluginResult(PluginResult.Status.OK, (byte[]) payload);
+        } else if (payload instanceof JSONObject) {
+            result = new PluginResult(PluginResult.Status.OK, (JSONObject) payload);
+        } else {
+            result = new PluginResult(PluginResult.Status.OK, (JSONArray) payload);
+        }
+        result.setKeepCallback(keepCallback);
+        callbackContext.sendPluginResult(result);
+    }
+
+    private static JSONArray[] newColumns(int count) {
+        JSONArray[] columns = new JSONArray[count];
+        for (int a = 0; a < count; a++) {
+            columns[a] = new JSONArray();
+        }
+        return columns;
+    }
+
+    private static JSONObject toColumnsJSON(String[] names, JSONArray[] columns, int count) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("format", FORMAT_COLUMNS)
+                    .put("count", count);
+            for (int a = 0; a < names.length; a++) {
+                json.put(names[a], columns[a]);
+            }
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    private static Object orNull(String value) {
+        return value != null ? value : JSONObject.NULL;
+    }
+
+    // Rows are written first and prefixed with the header and the string
+    // table, each distinct string being stored once.
+    private static final class BinaryWriter {
+        final ByteArrayOutputStream rowBytes = new ByteArrayOutputStream(1024);
+        final DataOutputStream rows = new DataOutputStream(rowBytes);
+
+        private final HashMap<String, Integer> mIndexes = new HashMap<String, Integer>();
+        private final ByteArrayOutputStream mStringBytes = new ByteArrayOutputStream(1024);
+        private final DataOutputStream mStrings = new DataOutputStream(mStringBytes);
+
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                rows.writeInt(-1);
+                return;
+            }
+            Integer index = mIndexes.get(value);
+            if (index == null) {
+                index = mIndexes.size();
+                mIndexes.put(value, index);
+                byte[] bytes = value.getBytes(UTF8);
+                mStrings.writeInt(bytes.length);
+                mStrings.write(bytes);
+            }
+            rows.writeInt(index);
+        }
+
+        byte[] finish(int kind, int count) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(12 + mStringBytes.size() + rowBytes.size());
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeByte('G');
+            data.writeByte('S');
+            data.writeByte(BINARY_VERSION);
+            data.writeByte(kind);
+            data.writeInt(count);
+            data.writeInt(mIndexes.size());
+            mStringBytes.writeTo(data);
+            rowBytes.writeTo(data);
+            data.flush();
+            return out.toByteArray();
+        }
+    }
+}
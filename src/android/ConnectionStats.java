@@ -0,0 +1,84 @@
+package io.nonostante.games.cordova;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters of the background disconnections of {@link GameHelper}, reported
+ * by the getMetrics action.
+ * <p>
+ * Every reconnection on start is timed. A start finding the client still
+ * connected, because it came back within the idle grace period, counts as a
+ * reconnection avoided; the time saved is estimated from the average
+ * duration of the reconnections measured.
+ */
+class ConnectionStats {
+    private long mStops = 0;
+    private long mKeptAlive = 0;
+    private long mIdleDisconnects = 0;
+    private long mReconnects = 0;
+    private long mReconnectMs = 0;
+    private long mBackgroundMs = 0;
+
+    // start of the reconnection being timed, 0 if none
+    private long mReconnectingAt = 0;
+
+    synchronized void onStopped() {
+        mStops++;
+    }
+
+    /** Started again within the grace period, after the given time in background. */
+    synchronized void onKeptAlive(long backgroundMs) {
+        mKeptAlive++;
+        mBackgroundMs += backgroundMs;
+    }
+
+    synchronized void onIdleDisconnected() {
+        mIdleDisconnects++;
+    }
+
+    synchronized void onReconnecting() {
+        mReconnectingAt = SystemClock.elapsedRealtime();
+    }
+
+    synchronized void onConnected() {
+        if (mReconnectingAt > 0) {
+            mReconnects++;
+            mReconnectMs += SystemClock.elapsedRealtime() - mReconnectingAt;
+            mReconnectingAt = 0;
+        }
+    }
+
+    /** The reconnection being timed did not complete. */
+    synchronized void onConnectFailed() {
+        mReconnectingAt = 0;
+    }
+
+    synchronized JSONObject toJSON() {
+        long average = mReconnects > 0 ? mReconnectMs / mReconnects : 0;
+        JSONObject json = new JSONObject();
+        try {
+            json.put("stops", mStops)
+                    .put("keptAlive", mKeptAlive)
+                    .put("idleDisconnects", mIdleDisconnects)
+                    .put("reconnects", mReconnects)
+                    .put("reconnectMs", mReconnectMs)
+                    .put("averageReconnectMs", average)
+                    .put("keptAliveBackgroundMs", mBackgroundMs)
+                    .put("timeSavedMs", mKeptAlive * average);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    synchronized void reset() {
+        mStops = 0;
+        mKeptAlive = 0;
+        mIdleDisconnects = 0;
+        mReconnects = 0;
+        mReconnectMs = 0;
+        mBackgroundMs = 0;
+    }
+}
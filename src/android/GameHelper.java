@@ -20,9 +20,9 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -31,11 +31,15 @@ import com.google.android.gms.drive.Drive;
 import com.google.android.gms.games.Games;
 import com.google.android.gms.games.Games.GamesOptions;
 import com.google.android.gms.games.GamesActivityResultCodes;
+import com.google.android.gms.games.Player;
 import com.google.android.gms.games.multiplayer.Invitation;
 import com.google.android.gms.games.multiplayer.Multiplayer;
 import com.google.android.gms.games.multiplayer.turnbased.TurnBasedMatch;
 import com.google.android.gms.games.request.GameRequest;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener {
 
@@ -130,6 +134,10 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
      */
     boolean mUserInitiatedSignIn = false;
 
+    // Whether the sign-in in progress was started by beginSilentSignIn: its
+    // connection problems are reported, never resolved with UI.
+    boolean mSilentSignIn = false;
+
     // The connection result we got from our last attempt to sign-in.
     ConnectionResult mConnectionResult = null;
 
@@ -162,12 +170,50 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
     // Listener
     GameHelperListener mListener = null;
 
+    // Persistent state (cancellations, connection state, profile)
+    final StateStore mState;
+
+    /*
+     * Profile of the signed in player, captured once per connection. It is
+     * persisted so that it is available on the next start before connecting,
+     * and forgotten on sign out or disconnect.
+     */
+    volatile JSONObject mPlayerProfile;
+
     // Should we start the flow to sign the user in automatically on startup? If
     // so, up to
     // how many times in the life of the application?
     static final int DEFAULT_MAX_SIGN_IN_ATTEMPTS = 3;
     int mMaxAutoSignInAttempts = DEFAULT_MAX_SIGN_IN_ATTEMPTS;
 
+    // How long the client stays connected after onStop(), 0 to disconnect
+    // right away. Coming back within that time skips the reconnection.
+    long mIdleDisconnectDelayMs = 0;
+
+    // Whether a disconnection is scheduled after onStop(), and since when
+    boolean mIdleDisconnectPending = false;
+    long mStoppedAt = 0;
+
+    ConnectionStats mConnectionStats = new ConnectionStats();
+
+    // Schedules the reconnections, null to reconnect right away
+    ReconnectSupervisor mReconnects = null;
+
+    // Phases of the sign-in being traced, if any
+    SignInTrace mSignInTrace = new SignInTrace();
+
+    private final Runnable mIdleDisconnect = new Runnable() {
+        @Override
+        public void run() {
+            mIdleDisconnectPending = false;
+            if (mGoogleApiClient.isConnected()) {
+                debugLog("Disconnecting client after " + mIdleDisconnectDelayMs + " ms in background");
+                mGoogleApiClient.disconnect();
+                mConnectionStats.onIdleDisconnected();
+            }
+        }
+    };
+
     /**
      * Construct a GameHelper object, initially tied to the given Activity.
      * After constructing this object, call @link{setup} from the onCreate()
@@ -177,11 +223,13 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
      *            the API clients to use (a combination of the CLIENT_* flags,
      *            or CLIENT_ALL to mean all clients).
      */
-    public GameHelper(Activity activity, int clientsToUse) {
+    public GameHelper(Activity activity, int clientsToUse, StateStore state) {
         mActivity = activity;
         mAppContext = activity.getApplicationContext();
         mRequestedClients = clientsToUse;
+        mState = state;
         mHandler = new Handler();
+        mPlayerProfile = loadPlayerProfile();
     }
 
     /**
@@ -198,6 +246,37 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         mMaxAutoSignInAttempts = max;
     }
 
+    /**
+     * Sets how long the client stays connected once the Activity is stopped.
+     * Players switching apps for a moment then find the client connected,
+     * instead of waiting for a reconnection. Set to 0 to disconnect on
+     * onStop().
+     */
+    public void setIdleDisconnectDelay(long delayMs) {
+        mIdleDisconnectDelayMs = Math.max(0, delayMs);
+    }
+
+    /** Sets the counters of disconnections and reconnections. */
+    public void setConnectionStats(ConnectionStats stats) {
+        mConnectionStats = stats;
+    }
+
+    /** Sets the trace timing the phases of the sign-ins. */
+    public void setSignInTrace(SignInTrace trace) {
+        mSignInTrace = trace;
+    }
+
+    /** Sets the supervisor scheduling the reconnections, see {@link #requestReconnect}. */
+    public void setReconnectSupervisor(ReconnectSupervisor supervisor) {
+        mReconnects = supervisor;
+        supervisor.setReconnect(new Runnable() {
+            @Override
+            public void run() {
+                reconnectClient();
+            }
+        });
+    }
+
     void assertConfigured(String operation) {
         if (!mSetupDone) {
             String error = "GameHelper error: Operation attempted without setup: "
@@ -336,6 +415,13 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         debugLog("onStart");
         assertConfigured("onStart");
 
+        if (cancelIdleDisconnect() && mGoogleApiClient.isConnected()) {
+            long backgroundMs = SystemClock.elapsedRealtime() - mStoppedAt;
+            debugLog("Client still connected after " + backgroundMs + " ms in background.");
+            mConnectionStats.onKeptAlive(backgroundMs);
+            return;
+        }
+
         if (mConnectOnStart) {
             if (mGoogleApiClient.isConnected()) {
                 Log.w(TAG,
@@ -343,6 +429,7 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
             } else {
                 debugLog("Connecting client.");
                 mConnecting = true;
+                mConnectionStats.onReconnecting();
                 mGoogleApiClient.connect();
             }
         } else {
@@ -361,7 +448,14 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
     public void onStop() {
         debugLog("onStop");
         assertConfigured("onStop");
-        if (mGoogleApiClient.isConnected()) {
+        mConnectionStats.onStopped();
+        if (mGoogleApiClient.isConnected() && mIdleDisconnectDelayMs > 0) {
+            debugLog("Disconnecting client in " + mIdleDisconnectDelayMs + " ms unless started again");
+            cancelIdleDisconnect();
+            mIdleDisconnectPending = true;
+            mStoppedAt = SystemClock.elapsedRealtime();
+            mHandler.postDelayed(mIdleDisconnect, mIdleDisconnectDelayMs);
+        } else if (mGoogleApiClient.isConnected()) {
             debugLog("Disconnecting client due to onStop");
             mGoogleApiClient.disconnect();
         } else {
@@ -374,6 +468,27 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         mActivity = null;
     }
 
+    /**
+     * Call this method from your Activity's onDestroy(): disconnects the
+     * client still connected in the grace period after onStop().
+     */
+    public void onDestroy() {
+        if (cancelIdleDisconnect() && mGoogleApiClient.isConnected()) {
+            debugLog("Disconnecting client due to onDestroy");
+            mGoogleApiClient.disconnect();
+        }
+    }
+
+    // Returns whether a disconnection was scheduled
+    private boolean cancelIdleDisconnect() {
+        if (!mIdleDisconnectPending) {
+            return false;
+        }
+        mHandler.removeCallbacks(mIdleDisconnect);
+        mIdleDisconnectPending = false;
+        return true;
+    }
+
     /**
      * Returns the invitation ID received through an invitation notification.
      * This should be called from your GameHelperListener's
@@ -486,6 +601,7 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
 
     /** Sign out and disconnect from the APIs. */
     public void signOut() {
+        clearPlayerProfile();
         if (!mGoogleApiClient.isConnected()) {
             // nothing to do
             debugLog("signOut: was already disconnected, ignoring.");
@@ -551,6 +667,7 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
             // increment # of cancellations
             int prevCancellations = getSignInCancellations();
             int newCancellations = incrementSignInCancellations();
+            mState.put(KEY_CONNECTED, false);
             debugLog("onAR: # of cancellations " + prevCancellations + " --> "
                     + newCancellations + ", max " + mMaxAutoSignInAttempts);
 
@@ -593,6 +710,7 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         debugLog("beginUserInitiatedSignIn: resetting attempt count.");
         resetSignInCancellations();
         mSignInCancelled = false;
+        mSilentSignIn = false;
         mConnectOnStart = true;
 
         if (mGoogleApiClient.isConnected()) {
@@ -633,6 +751,36 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         }
     }
 
+    /**
+     * Whether a player signed in on a previous run and did not sign out, so
+     * that a silent sign-in is likely to succeed.
+     */
+    public boolean canSignInSilently() {
+        return mPlayerProfile != null && wasConnected();
+    }
+
+    /**
+     * Starts a sign-in without any UI, e.g. on startup. Connection problems
+     * needing the player (account picker, consent) are not resolved: the
+     * listener gets onSignInFailed() and a later
+     * {@link #beginUserInitiatedSignIn} resolves them.
+     */
+    public void beginSilentSignIn() {
+        if (mGoogleApiClient.isConnected() || mConnecting) {
+            debugLog("beginSilentSignIn: already connected or connecting, ignoring.");
+            return;
+        }
+        debugLog("Starting SILENT sign-in flow.");
+        mUserInitiatedSignIn = false;
+        mSilentSignIn = true;
+        connect();
+    }
+
+    /** Returns whether the sign-in in progress, or the last one that failed, was silent. */
+    public boolean isSilentSignIn() {
+        return mSilentSignIn;
+    }
+
     void connect() {
         if (mGoogleApiClient.isConnected()) {
             debugLog("Already connected.");
@@ -645,6 +793,19 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         mGoogleApiClient.connect();
     }
 
+    /**
+     * Asks for a reconnection, e.g. when a call failed because the client
+     * must reconnect. Requests are merged and delayed by the reconnect
+     * supervisor, if any.
+     */
+    public void requestReconnect() {
+        if (mReconnects != null) {
+            mReconnects.requestReconnect();
+        } else {
+            reconnectClient();
+        }
+    }
+
     /**
      * Disconnects the API client, then connects again.
      */
@@ -663,6 +824,7 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
     @Override
     public void onConnected(Bundle connectionHint) {
         debugLog("onConnected: connected!");
+        mSignInTrace.mark(SignInTrace.PHASE_CONNECT);
 
         if (connectionHint != null) {
             debugLog("onConnected: connection hint provided. Checking for invite.");
@@ -689,6 +851,12 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
                     .getParcelable(Multiplayer.EXTRA_TURN_BASED_MATCH);
         }
 
+        capturePlayerProfile();
+        mConnectionStats.onConnected();
+        if (mReconnects != null) {
+            mReconnects.onConnected();
+        }
+
         // we're good to go
         succeedSignIn();
     }
@@ -698,19 +866,21 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         mSignInFailureReason = null;
         mConnectOnStart = true;
         mUserInitiatedSignIn = false;
+        mSilentSignIn = false;
         mConnecting = false;
+        mState.put(KEY_CONNECTED, true);
         notifyListener(true);
     }
 
-    private final String GAMEHELPER_SHARED_PREFS = "GAMEHELPER_SHARED_PREFS";
+    // Former SharedPreferences file of the state, imported by the StateStore
+    static final String GAMEHELPER_SHARED_PREFS = "GAMEHELPER_SHARED_PREFS";
     private final String KEY_SIGN_IN_CANCELLATIONS = "KEY_SIGN_IN_CANCELLATIONS";
+    private final String KEY_CONNECTED = "KEY_CONNECTED";
 
     // Return the number of times the user has cancelled the sign-in flow in the
     // life of the app
     int getSignInCancellations() {
-        SharedPreferences sp = mAppContext.getSharedPreferences(
-                GAMEHELPER_SHARED_PREFS, Context.MODE_PRIVATE);
-        return sp.getInt(KEY_SIGN_IN_CANCELLATIONS, 0);
+        return mState.getInt(KEY_SIGN_IN_CANCELLATIONS, 0);
     }
 
     // Increments the counter that indicates how many times the user has
@@ -718,20 +888,76 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
     // flow in the life of the application
     int incrementSignInCancellations() {
         int cancellations = getSignInCancellations();
-        SharedPreferences.Editor editor = mAppContext.getSharedPreferences(
-                GAMEHELPER_SHARED_PREFS, Context.MODE_PRIVATE).edit();
-        editor.putInt(KEY_SIGN_IN_CANCELLATIONS, cancellations + 1);
-        editor.commit();
+        mState.put(KEY_SIGN_IN_CANCELLATIONS, cancellations + 1);
         return cancellations + 1;
     }
 
     // Reset the counter of how many times the user has cancelled the sign-in
     // flow.
     void resetSignInCancellations() {
-        SharedPreferences.Editor editor = mAppContext.getSharedPreferences(
-                GAMEHELPER_SHARED_PREFS, Context.MODE_PRIVATE).edit();
-        editor.putInt(KEY_SIGN_IN_CANCELLATIONS, 0);
-        editor.commit();
+        mState.put(KEY_SIGN_IN_CANCELLATIONS, 0);
+    }
+
+    // Whether the last sign-in attempt, in this run or a previous one, ended
+    // connected or failed for a reason not needing the player (e.g. network).
+    // Unknown (true) until the first attempt ends.
+    boolean wasConnected() {
+        return mState.getBoolean(KEY_CONNECTED, true);
+    }
+
+    /**
+     * Returns the profile of the signed in player (playerId, playerName,
+     * playerImage), or of the last one if not connected yet. Null if unknown.
+     * The returned object must not be modified.
+     */
+    public JSONObject getPlayerProfile() {
+        return mPlayerProfile;
+    }
+
+    /** Returns the id of the player of {@link #getPlayerProfile()}, or null. */
+    public String getPlayerId() {
+        JSONObject profile = mPlayerProfile;
+        return profile != null ? profile.optString("playerId", null) : null;
+    }
+
+    private final String KEY_PLAYER_PROFILE = "KEY_PLAYER_PROFILE";
+
+    void capturePlayerProfile() {
+        Player player = Games.Players.getCurrentPlayer(mGoogleApiClient);
+        if (player == null) {
+            debugLog("capturePlayerProfile: no current player");
+            return;
+        }
+
+        JSONObject profile = new JSONObject();
+        try {
+            profile.put("playerId", player.getPlayerId())
+                    .put("playerName", player.getDisplayName())
+                    .put("playerImage", player.hasHiResImage() ? player.getHiResImageUrl() : player.getIconImageUrl());
+        } catch (JSONException e) {
+        }
+        mPlayerProfile = profile;
+        mState.put(KEY_PLAYER_PROFILE, profile.toString());
+    }
+
+    void clearPlayerProfile() {
+        if (mPlayerProfile == null) {
+            return;
+        }
+        mPlayerProfile = null;
+        mState.remove(KEY_PLAYER_PROFILE);
+    }
+
+    JSONObject loadPlayerProfile() {
+        String profile = mState.getString(KEY_PLAYER_PROFILE);
+        if (profile == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(profile);
+        } catch (JSONException e) {
+            return null;
+        }
     }
 
     /** Handles a connection failure. */
@@ -739,6 +965,10 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
     public void onConnectionFailed(ConnectionResult result) {
         // save connection result for later reference
         debugLog("onConnectionFailed");
+        mConnectionStats.onConnectFailed();
+        if (mReconnects != null) {
+            mReconnects.onConnectionFailed();
+        }
 
         mConnectionResult = result;
         debugLog("Connection failure:");
@@ -754,6 +984,9 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         if (mUserInitiatedSignIn) {
             debugLog("onConnectionFailed: WILL resolve because user initiated sign-in.");
             shouldResolve = true;
+        } else if (mSilentSignIn) {
+            debugLog("onConnectionFailed: WILL NOT resolve because the sign-in is silent.");
+            shouldResolve = false;
         } else if (mSignInCancelled) {
             debugLog("onConnectionFailed WILL NOT resolve (user already cancelled once).");
             shouldResolve = false;
@@ -776,6 +1009,10 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
         if (!shouldResolve) {
             // Fail and wait for the user to want to sign in.
             debugLog("onConnectionFailed: since we won't resolve, failing now.");
+            if (mSilentSignIn && result.hasResolution()) {
+                // the player must act: don't try silently on the next start
+                mState.put(KEY_CONNECTED, false);
+            }
             mConnectionResult = result;
             mConnecting = false;
             notifyListener(false);
@@ -849,8 +1086,10 @@ public class GameHelper implements GoogleApiClient.ConnectionCallbacks,
     }
 
     public void disconnect() {
+        cancelIdleDisconnect();
         mConnecting = false;
         mConnectOnStart = false;
+        clearPlayerProfile();
         if (mGoogleApiClient.isConnected()) {
             debugLog("Disconnecting client.");
             mGoogleApiClient.disconnect();
@@ -1,5 +1,7 @@
 package io.nonostante.games.cordova;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
@@ -9,8 +11,20 @@ import org.json.*;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.ConnectionResult;
 
+import android.content.Context;
 import android.content.Intent;
 
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.google.android.gms.common.api.*;
 import com.google.android.gms.games.achievement.*;
 import com.google.android.gms.games.leaderboard.*;
@@ -19,19 +33,61 @@ import com.google.android.gms.games.*;
 public class GameServices extends CordovaPlugin {
     private String LOG_TAG = "Game";
     private GameHelper mHelper;
-    private boolean _connected = false;
+    private StateStore mState;
+    private WriteJournal mJournal;
+    private IncrementAccumulator mIncrements;
+    private LeaderboardCache mLeaderboardCache;
+    private final RankIndex mRankIndex = new RankIndex(RankIndex.DEFAULT_MAX_LEADERBOARDS, RankIndex.DEFAULT_MAX_POINTS);
+    private AchievementSnapshot mAchievements;
+    private SavedGames mSavedGames;
+    private ExecutorService mWorker;
+    private ActionDispatcher mDispatcher;
+    private SingleFlight mSingleFlight;
+    private ActionMetrics mMetrics;
+    private final ConnectionStats mConnectionStats = new ConnectionStats();
+    private ReconnectSupervisor mReconnects;
+    private SignInQueue mSignInQueue;
+    private CallDeadlines mDeadlines;
+    private RateLimiter mRateLimiter;
+    private final SignInTrace mSignInTrace = new SignInTrace();
+    // callback of the last login call, notified of every sign-in change
+    private volatile CallbackContext mLoginContext;
+    private long mIdleDisconnectDelayMs = DEFAULT_IDLE_DISCONNECT_MS;
+    private final ConcurrentHashMap<Integer, LeaderboardStream> mLeaderboardStreams = new ConcurrentHashMap<Integer, LeaderboardStream>();
+    private boolean _offMainThread = true;
+    private volatile boolean _connected = false;
+    private final AtomicBoolean _replaying = new AtomicBoolean(false);
+    // a replay is waiting for its backoff delay, see replayJournal
+    private final AtomicBoolean _replayDeferred = new AtomicBoolean(false);
+    private final Handler mReplayHandler = new Handler(Looper.getMainLooper());
 
     private final int RC_UI = 9004;
 
+    // Default deadline of actions calling the service
+    static final long SERVICE_TIMEOUT_MS = 30 * 1000;
+
+    // Delay before replaying a journal entry deferred by a transient failure,
+    // doubled on every failed attempt of the entry
+    static final long REPLAY_BACKOFF_MS = 2 * 1000;
+    static final long MAX_REPLAY_BACKOFF_MS = 5 * 60 * 1000;
+
+    // Time the client stays connected in background, see GameHelper.setIdleDisconnectDelay
+    static final long DEFAULT_IDLE_DISCONNECT_MS = 30 * 1000;
+
+    // Worker executor threads
+    private final int WORKER_THREADS = 2;
+
     abstract class PluginResultCallbacks<R extends Result> extends ResultCallbacks<R> {
-        private CallbackContext _context;
+        CallbackContext _context;
 
-        PluginResultCallbacks(@NonNull CallbackContext context) {
+        // context can be null for background requests which have no caller to notify
+        PluginResultCallbacks(CallbackContext context) {
             _context = context;
         }
 
         @Override
         public void onSuccess(@NonNull R result) {
+            ActionMetrics.mark(_context, ActionMetrics.STAGE_SERVICE);
             if (result instanceof Releasable) {
                 try {
                     ((Releasable) result).release();
@@ -42,13 +98,83 @@ public class GameServices extends CordovaPlugin {
 
         @Override
         public void onFailure(@NonNull Status status) {
+            ActionMetrics.mark(_context, ActionMetrics.STAGE_SERVICE);
             Log.e(LOG_TAG, "Google Play Services: Error -> " + status.getStatusMessage());
-            _context.error(getErrorJSON(ERROR.SERVICE_ERROR, status.getStatusCode(), status.getStatusMessage()));
-            _context = null;
+            if (_context != null) {
+                _context.error(getErrorJSON(ERROR.SERVICE_ERROR, status.getStatusCode(), status.getStatusMessage()));
+                _context = null;
+            }
 
             if(status.getStatusCode() == GamesStatusCodes.STATUS_CLIENT_RECONNECT_REQUIRED){
                 Log.d(LOG_TAG, "Google Play Services: Reconnecting");
-                mHelper.reconnectClient();
+                mHelper.requestReconnect();
+            }
+        }
+    }
+
+    /**
+     * Result callbacks converting the result on the worker executor instead of
+     * the main thread the result is delivered on. The result is released once
+     * onResultReady returns.
+     */
+    abstract class WorkerResultCallbacks<R extends Result> extends PluginResultCallbacks<R> {
+        WorkerResultCallbacks(CallbackContext context) {
+            super(context);
+        }
+
+        @Override
+        public final void onSuccess(@NonNull final R result) {
+            ActionMetrics.mark(_context, ActionMetrics.STAGE_SERVICE);
+            runOnWorker(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onResultReady(result);
+                    } finally {
+                        WorkerResultCallbacks.super.onSuccess(result);
+                    }
+                }
+            });
+        }
+
+        abstract void onResultReady(@NonNull R result);
+    }
+
+    /**
+     * Result callbacks for leaderboard/achievement writes: when the write fails
+     * for a transient reason it is moved to the journal instead of being
+     * reported as an error.
+     */
+    abstract class WriteResultCallbacks<R extends Result> extends PluginResultCallbacks<R> {
+        private final CallbackContext _writeContext;
+        private final int _type;
+        private final String _id;
+        private final long _value;
+        private final String _tag;
+
+        WriteResultCallbacks(@NonNull CallbackContext context, int type, String id, long value, String tag) {
+            super(context);
+            _writeContext = context;
+            _type = type;
+            _id = id;
+            _value = value;
+            _tag = tag;
+        }
+
+        @Override
+        public void onFailure(@NonNull Status status) {
+            ActionMetrics.mark(_writeContext, ActionMetrics.STAGE_SERVICE);
+            if (!WriteJournal.isRetryable(status.getStatusCode())) {
+                super.onFailure(status);
+                return;
+            }
+
+            Log.w(LOG_TAG, "Google Play Services: Write deferred -> " + status.getStatusMessage());
+            journalWrite(_type, _id, _value, _tag, _writeContext);
+
+            if (status.getStatusCode() == GamesStatusCodes.STATUS_CLIENT_RECONNECT_REQUIRED) {
+                Log.d(LOG_TAG, "Google Play Services: Reconnecting");
+                mHelper.requestReconnect();
             }
         }
     }
@@ -59,6 +185,9 @@ public class GameServices extends CordovaPlugin {
         static final int NOT_CONNECTED = 3;
         static final int SERVICE_ERROR = 4;
         static final int LOGIN_PENDING = 5;
+        static final int CANCELLED = 6;
+        static final int INVALID_ARGUMENT = 7;
+        static final int TIMEOUT = 8;
         static final int LOGOUT = 9;
     }
 
@@ -66,328 +195,824 @@ public class GameServices extends CordovaPlugin {
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
         cordova.setActivityResultCallback(this);
-    }
 
-    @Override
-    public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
-        if (action.equals("login")) {
+        // "ui" keeps every action on the main thread as in previous versions, to compare frame times
+        _offMainThread = !"ui".equalsIgnoreCase(preferences.getString("GameServicesThreading", "worker"));
+        mIdleDisconnectDelayMs = preferences.getInteger("GameServicesIdleDisconnectDelay", (int) DEFAULT_IDLE_DISCONNECT_MS);
+        // the queue is unbounded: work submitted from the main thread (result
+        // callbacks) must never run there; tasks are only rejected, and
+        // dropped, once the executor is shut down in onDestroy
+        mWorker = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GameServices-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        ((ThreadPoolExecutor) mWorker).allowCoreThreadTimeOut(true);
+
+        mState = new StateStore(cordova.getActivity().getFilesDir(),
+                cordova.getActivity().getSharedPreferences(GameHelper.GAMEHELPER_SHARED_PREFS, Context.MODE_PRIVATE));
+        mJournal = new WriteJournal(cordova.getActivity().getFilesDir());
+        mAchievements = new AchievementSnapshot(cordova.getActivity().getFilesDir());
+        mLeaderboardCache = new LeaderboardCache(
+                preferences.getInteger("GameServicesLeaderboardCacheTTL", (int) LeaderboardCache.DEFAULT_TTL_MS),
+                preferences.getInteger("GameServicesLeaderboardCacheSize", LeaderboardCache.DEFAULT_MAX_ENTRIES));
+        mIncrements = new IncrementAccumulator(new Handler(Looper.getMainLooper()),
+                preferences.getInteger("GameServicesIncrementWindow", (int) IncrementAccumulator.DEFAULT_WINDOW_MS),
+                preferences.getInteger("GameServicesIncrementMaxCalls", IncrementAccumulator.DEFAULT_MAX_CALLS),
+                new IncrementAccumulator.Flusher() {
+                    @Override
+                    public void flush(String achievementId, int steps, long timeoutMs, List<CallbackContext> callbacks) {
+                        flushIncrement(achievementId, steps, timeoutMs, callbacks);
+                    }
+                });
+        mSavedGames = new SavedGames(cordova.getActivity().getFilesDir(),
+                preferences.getInteger("GameServicesSaveChunkSize", SavedGames.DEFAULT_CHUNK_SIZE),
+                preferences.getString("GameServicesSaveConflictPolicy", SavedGames.POLICY_MOST_RECENT),
+                mWorkerExecutor,
+                new SavedGames.Session() {
+                    @Override
+                    public GoogleApiClient getClient() {
+                        return _connected ? getGameHelper().getApiClient() : null;
+                    }
+
+                    @Override
+                    public String getPlayerId() {
+                        return getGameHelper().getPlayerId();
+                    }
+                });
+
+        mDispatcher = new ActionDispatcher(webView, new ActionDispatcher.ThreadRunner() {
+            @Override
+            public void run(ActionDispatcher.Threading threading, Runnable task) {
+                if (threading == ActionDispatcher.Threading.UI) {
+                    cordova.getActivity().runOnUiThread(task);
+                } else {
+                    runOnWorker(task);
+                }
+            }
+        });
+        mMetrics = new ActionMetrics();
+        mDispatcher.setMetrics(mMetrics);
+        mDeadlines = new CallDeadlines(webView, new Handler(Looper.getMainLooper()),
+                preferences.getInteger("GameServicesMaxCallbackTime", (int) CallDeadlines.DEFAULT_MAX_MS));
+        mDispatcher.addInterceptor(mDeadlines);
+        mSignInQueue = new SignInQueue(new Handler(Looper.getMainLooper()),
+                preferences.getInteger("GameServicesSignInQueueSize", SignInQueue.DEFAULT_MAX_SIZE),
+                preferences.getInteger("GameServicesSignInWaitTime", (int) SignInQueue.DEFAULT_WAIT_MS));
+        mRateLimiter = new RateLimiter(new Handler(Looper.getMainLooper()),
+                new RateLimiter.Session() {
+                    @Override
+                    public boolean isConnected() {
+                        return _connected;
+                    }
+                },
+                preferences.getInteger("GameServicesReadRate", RateLimiter.DEFAULT_READ_RATE),
+                preferences.getInteger("GameServicesReadBurst", RateLimiter.DEFAULT_READ_BURST),
+                preferences.getInteger("GameServicesWriteRate", RateLimiter.DEFAULT_WRITE_RATE),
+                preferences.getInteger("GameServicesWriteBurst", RateLimiter.DEFAULT_WRITE_BURST),
+                preferences.getInteger("GameServicesMaxInFlight", RateLimiter.DEFAULT_MAX_IN_FLIGHT));
+        mDispatcher.addInterceptor(new ActionDispatcher.Interceptor() {
+            @Override
+            public void intercept(final ActionDispatcher.Call call) throws JSONException {
+                if (!call.action.requiresConnection || _connected) {
+                    call.proceed();
+                } else if (!parkWhileSigningIn(call.callbackContext, call.action.timeoutMs, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            call.proceed();
+                        } catch (JSONException e) {
+                            call.callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                        }
+                    }
+                })) {
+                    checkConnected(call.callbackContext);
+                }
+            }
+        });
+        mReconnects = new ReconnectSupervisor(webView, new Handler(Looper.getMainLooper()),
+                ReconnectSupervisor.DEFAULT_BASE_DELAY_MS,
+                preferences.getInteger("GameServicesReconnectMaxDelay", (int) ReconnectSupervisor.DEFAULT_MAX_DELAY_MS),
+                preferences.getInteger("GameServicesCircuitFailures", ReconnectSupervisor.DEFAULT_FAILURE_THRESHOLD),
+                preferences.getInteger("GameServicesCircuitOpenTime", (int) ReconnectSupervisor.DEFAULT_OPEN_MS));
+        mDispatcher.addInterceptor(mReconnects);
+        mSingleFlight = new SingleFlight(webView);
+        mDispatcher.addInterceptor(mSingleFlight);
+        registerActions();
+
+        if (preferences.getBoolean("GameServicesAutoSignIn", false)) {
             cordova.getActivity().runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    final GameHelper helper = getGameHelper();
-                    if (helper.isConnecting()) {
-                        Log.e(LOG_TAG, "Google Play Services: Login pending");
-                        callbackContext.error(getErrorJSON(ERROR.LOGIN_PENDING, "Login Pending"));
-                        return;
-                    } else if (helper.isSignedIn()) {
-                        Log.d(LOG_TAG, "Google Play Services: Logged already");
-                        callbackContext.success(getPlayerDetailJSON());
-                        return;
-                    } else if (!helper.isSetupDone()) {
-                        GoogleApiAvailability googleAPI = GoogleApiAvailability.getInstance();
-                        int res = googleAPI.isGooglePlayServicesAvailable(cordova.getActivity());
-                        if (res != ConnectionResult.SUCCESS) {
-                            Log.e(LOG_TAG, "Google Play Services: Unavailable");
+                    beginSilentSignIn();
+                }
+            });
+        }
+    }
+
+    // Connects on startup, before the page asks for it, when a player signed
+    // in on a previous run. No UI is shown: the login action attaches to the
+    // attempt and, if it fails, goes on with the interactive sign-in.
+    private void beginSilentSignIn() {
+        GameHelper helper = getGameHelper();
+        if (helper.isSetupDone() || !helper.canSignInSilently()) {
+            Log.d(LOG_TAG, "Google Play Services: No silent sign-in, no previous player");
+            return;
+        }
+
+        mSignInTrace.start(SignInTrace.MODE_SILENT);
+        if (!isServiceAvailable()) {
+            mSignInTrace.finish(false);
+            return;
+        }
+        helper.setup(mSignInListener);
+        mSignInTrace.mark(SignInTrace.PHASE_BUILD);
+
+        Log.d(LOG_TAG, "Google Play Services: Signing in silently");
+        helper.beginSilentSignIn();
+    }
+
+    // Availability check of the first sign-in, timed by the trace
+    private boolean isServiceAvailable() {
+        int res = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(cordova.getActivity());
+        mSignInTrace.mark(SignInTrace.PHASE_AVAILABILITY);
+        if (res != ConnectionResult.SUCCESS) {
+            Log.e(LOG_TAG, "Google Play Services: Unavailable");
+            return false;
+        }
+        return true;
+    }
+
+    private final GameHelper.GameHelperListener mSignInListener = new GameHelper.GameHelperListener() {
+        @Override
+        public void onSignInFailed() {
+            _connected = false;
+            mSignInTrace.finish(false);
+            GameHelper helper = getGameHelper();
+            CallbackContext callbackContext = mLoginContext;
+
+            if (helper.isSilentSignIn() && callbackContext != null) {
+                // login was called during the silent attempt: the player may now see UI
+                Log.d(LOG_TAG, "Google Play Services: Silent sign-in failed, Logging In");
+                mSignInTrace.start(SignInTrace.MODE_INTERACTIVE);
+                helper.beginUserInitiatedSignIn();
+                return;
+            }
+
+            GameHelper.SignInFailureReason error = helper.getSignInError();
+            JSONObject errorJSON;
+            if (error != null) {
+                Log.e(LOG_TAG, "Google Play Services: Login Error -> " + error.getServiceErrorCode());
+                errorJSON = getErrorJSON(ERROR.SERVICE_ERROR, error.getServiceErrorCode(), "Login Failed");
+            } else {
+                Log.e(LOG_TAG, "Google Play Services: Login Error -> Suspended");
+                errorJSON = getErrorJSON(ERROR.SERVICE_ERROR, -1, "Login Suspended");
+            }
+            if (callbackContext != null) {
+                PluginResult result = new PluginResult(PluginResult.Status.ERROR, errorJSON);
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+            }
+
+            mSignInQueue.fail(errorJSON);
+            mRateLimiter.fail();
+        }
+
+        @Override
+        public void onSignInSucceeded() {
+            Log.d(LOG_TAG, "Google Play Services: Login -> Success");
+            _connected = true;
+            CallbackContext callbackContext = mLoginContext;
+            if (callbackContext != null) {
+                PluginResult result = new PluginResult(PluginResult.Status.OK, getPlayerDetailJSON());
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+            }
+
+            mSignInQueue.resume();
+            mRateLimiter.resume();
+            mSignInTrace.mark(SignInTrace.PHASE_ON_CONNECTED);
+            mSignInTrace.finish(true);
+            // a new session retries deferred writes right away
+            mReplayHandler.removeCallbacks(mDeferredReplay);
+            _replayDeferred.set(false);
+            scheduleReplay();
+            mSavedGames.sync();
+        }
+    };
+
+    @Override
+    public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        return mDispatcher.dispatch(action, args, callbackContext);
+    }
+
+    private void registerActions() {
+        mDispatcher.register("login", new ActionDispatcher.Action(ActionDispatcher.Threading.UI, false, ActionDispatcher.NO_DEADLINE) {
+            @Override
+            void handle(JSONArray args, final CallbackContext callbackContext) {
+                final GameHelper helper = getGameHelper();
+                if (helper.isConnecting() && !helper.isSilentSignIn()) {
+                    Log.e(LOG_TAG, "Google Play Services: Login pending");
+                    callbackContext.error(getErrorJSON(ERROR.LOGIN_PENDING, "Login Pending"));
+                    return;
+                } else if (helper.isSignedIn()) {
+                    Log.d(LOG_TAG, "Google Play Services: Logged already");
+                    mLoginContext = callbackContext;
+                    callbackContext.success(getPlayerDetailJSON());
+                    return;
+                }
+
+                mLoginContext = callbackContext;
+                if (helper.isConnecting()) {
+                    // the silent sign-in started on startup goes on, see mSignInListener
+                    Log.d(LOG_TAG, "Google Play Services: Signing in silently");
+                } else {
+                    mSignInTrace.start(SignInTrace.MODE_INTERACTIVE);
+                    if (!helper.isSetupDone()) {
+                        if (!isServiceAvailable()) {
+                            mSignInTrace.finish(false);
                             callbackContext.error(getErrorJSON(ERROR.SERVICE_UNAVAILABLE, "Unavailable"));
                             return;
                         }
-
-                        helper.setup(new GameHelper.GameHelperListener() {
-                            @Override
-                            public void onSignInFailed() {
-                                _connected = false;
-                                GameHelper.SignInFailureReason error = helper.getSignInError();
-                                PluginResult result;
-                                if (error != null) {
-                                    Log.e(LOG_TAG, "Google Play Services: Login Error -> " + error.getServiceErrorCode());
-                                    result = new PluginResult(PluginResult.Status.ERROR, getErrorJSON(ERROR.SERVICE_ERROR, error.getServiceErrorCode(), "Login Failed"));
-                                } else {
-                                    Log.e(LOG_TAG, "Google Play Services: Login Error -> Suspended");
-                                    result = new PluginResult(PluginResult.Status.ERROR, getErrorJSON(ERROR.SERVICE_ERROR, -1, "Login Suspended"));
-                                }
-                                result.setKeepCallback(true);
-                                callbackContext.sendPluginResult(result);
-                            }
-
-                            @Override
-                            public void onSignInSucceeded() {
-                                Log.d(LOG_TAG, "Google Play Services: Login -> Success");
-                                _connected = true;
-                                PluginResult result = new PluginResult(PluginResult.Status.OK, getPlayerDetailJSON());
-                                result.setKeepCallback(true);
-                                callbackContext.sendPluginResult(result);
-                            }
-                        });
+                        helper.setup(mSignInListener);
+                        mSignInTrace.mark(SignInTrace.PHASE_BUILD);
                     }
 
                     Log.d(LOG_TAG, "Google Play Services: Logging In");
                     helper.beginUserInitiatedSignIn();
-
-                    PluginResult result = new PluginResult(PluginResult.Status.OK, "LoggingIn");
-                    result.setKeepCallback(true);
-                    callbackContext.sendPluginResult(result);
                 }
-            });
-            return true;
-        } else if (action.equals("logout")) {
-            cordova.getActivity().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (getGameHelper().isSignedIn()) {
-                        Log.d(LOG_TAG, "Google Play Services: Logout");
-                        getGameHelper().signOut();
-                    }
-                    _connected = false;
-                    callbackContext.success();
+
+                PluginResult result = new PluginResult(PluginResult.Status.OK, "LoggingIn");
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+            }
+        });
+
+        mDispatcher.register("logout", new ActionDispatcher.Action(ActionDispatcher.Threading.UI, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
+                if (getGameHelper().isSignedIn()) {
+                    Log.d(LOG_TAG, "Google Play Services: Logout");
+                    getGameHelper().signOut();
                 }
-            });
-            return true;
-        } else if (action.equals("getPlayerDetails")) {
-            if (checkConnected(callbackContext)) {
-                cordova.getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        callbackContext.success(getPlayerDetailJSON());
-                    }
-                });
+                _connected = false;
+                cancelLeaderboardStreams();
+                mRateLimiter.fail();
+                mSavedGames.clear();
+                mLeaderboardCache.clear();
+                mRankIndex.clear();
+                mAchievements.clear();
+                callbackContext.success();
             }
-            return true;
-        } else if (action.equals("getPlayerScore")) {
-            if (checkConnected(callbackContext)) {
+        });
+
+        mDispatcher.register("getPlayerDetails", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, true, SERVICE_TIMEOUT_MS) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
+                callbackContext.success(getPlayerDetailJSON());
+            }
+
+            @Override
+            String coalesceKey(JSONArray args) {
+                return "";
+            }
+        });
+
+        // Last known profile, available before the connection completes (empty if none)
+        mDispatcher.register("getCachedPlayerDetails", new ActionDispatcher.Action(ActionDispatcher.Threading.UI, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
+                callbackContext.success(getPlayerDetailJSON());
+            }
+        });
+
+        mDispatcher.register("getPlayerScore", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, true, SERVICE_TIMEOUT_MS) {
+            @Override
+            void handle(JSONArray args, final CallbackContext callbackContext) throws JSONException {
                 final String leaderboardId = args.getString(0);
                 final int span = args.optInt(1, LeaderboardVariant.TIME_SPAN_DAILY);
                 Log.d(LOG_TAG, String.format("Google Play Services: getPlayerScore(%s,%d)", leaderboardId, span));
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
+                mRateLimiter.submit(RateLimiter.READ, new RateLimiter.Request<Leaderboards.LoadPlayerScoreResult>() {
                     @Override
-                    public void run() {
-                        Games.Leaderboards.loadCurrentPlayerLeaderboardScore(getGameHelper().getApiClient(), leaderboardId, span, LeaderboardVariant.COLLECTION_PUBLIC)
-                                .setResultCallback(new PluginResultCallbacks<Leaderboards.LoadPlayerScoreResult>(callbackContext) {
-                                    @Override
-                                    public void onSuccess(@NonNull Leaderboards.LoadPlayerScoreResult result) {
-                                        callbackContext.success(getScoreJSON(result.getScore()));
-                                        super.onSuccess(result);
-                                    }
-                                });
+                    public PendingResult<Leaderboards.LoadPlayerScoreResult> issue() {
+                        return CallDeadlines.track(callbackContext, Games.Leaderboards.loadCurrentPlayerLeaderboardScore(getGameHelper().getApiClient(), leaderboardId, span, LeaderboardVariant.COLLECTION_PUBLIC));
+                    }
+                }, new WorkerResultCallbacks<Leaderboards.LoadPlayerScoreResult>(callbackContext) {
+                    @Override
+                    public void onResultReady(@NonNull Leaderboards.LoadPlayerScoreResult result) {
+                        callbackContext.success(JsonEncoding.score(result.getScore()));
                     }
                 });
             }
-            return true;
-        } else if (action.equals("submitScore")) {
-            if (checkConnected(callbackContext)) {
+
+            @Override
+            String coalesceKey(JSONArray args) {
+                return args.optString(0) + '|' + args.optInt(1, LeaderboardVariant.TIME_SPAN_DAILY);
+            }
+
+            @Override
+            boolean retryable(JSONArray args) {
+                return true;
+            }
+        });
+
+        mDispatcher.register("submitScore", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, ActionDispatcher.SERVICE_DEADLINE) {
+            @Override
+            void handle(JSONArray args, final CallbackContext callbackContext) throws JSONException {
                 final String leaderboardId = args.getString(0);
                 final long score = args.getInt(1);
                 final String tag = args.optString(2);
+                long timeoutMs = writeTimeoutMs(args.optJSONObject(3));
 
                 Log.d(LOG_TAG, String.format("Google Play Services: submitScore(%s,%d, %s)", leaderboardId, score, tag));
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
+                mLeaderboardCache.invalidate(leaderboardId);
+
+                if (shouldJournal()) {
+                    journalWrite(WriteJournal.TYPE_SCORE, leaderboardId, score, tag, callbackContext);
+                    return;
+                }
+
+                mRateLimiter.submit(RateLimiter.WRITE, new RateLimiter.Request<Leaderboards.SubmitScoreResult>() {
                     @Override
-                    public void run() {
-                        Games.Leaderboards.submitScoreImmediate(getGameHelper().getApiClient(), leaderboardId, score, tag)
-                                .setResultCallback(new PluginResultCallbacks<Leaderboards.SubmitScoreResult>(callbackContext) {
-                                    @Override
-                                    public void onSuccess(@NonNull Leaderboards.SubmitScoreResult result) {
-                                        super.onSuccess(result);
-                                        callbackContext.success();
-                                    }
-                                });
+                    public PendingResult<Leaderboards.SubmitScoreResult> issue() {
+                        return Games.Leaderboards.submitScoreImmediate(getGameHelper().getApiClient(), leaderboardId, score, tag);
                     }
-                });
+                }, new WriteResultCallbacks<Leaderboards.SubmitScoreResult>(callbackContext, WriteJournal.TYPE_SCORE, leaderboardId, score, tag) {
+                    @Override
+                    public void onSuccess(@NonNull Leaderboards.SubmitScoreResult result) {
+                        super.onSuccess(result);
+                        mLeaderboardCache.invalidate(leaderboardId);
+                        callbackContext.success();
+                    }
+                }, timeoutMs);
             }
+        });
 
-            return true;
-        } else if (action.equals("submitScores")) {
-            if (checkConnected(callbackContext)) {
-                Log.d(LOG_TAG, String.format("Google Play Services: submitScores(...count=%d)", args.length()));
+        mDispatcher.register("submitScores", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, ActionDispatcher.SERVICE_DEADLINE) {
+            @Override
+            void handle(JSONArray args, final CallbackContext callbackContext) {
+                final ScoreBatch batch = new ScoreBatch(args);
+                batch.invalidate(mLeaderboardCache);
 
-                final JSONArray entries = args;
+                Log.d(LOG_TAG, String.format("Google Play Services: submitScores(...count=%d, submissions=%d)", args.length(), batch.getSubmissionCount()));
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
+                if (shouldJournal()) {
+                    batch.queue(mJournal);
+                    callbackContext.success(batch.getResults());
+                    scheduleReplay();
+                    return;
+                }
+
+                batch.start(getGameHelper().getApiClient(), mRateLimiter, mJournal, new Runnable() {
                     @Override
                     public void run() {
-                        GoogleApiClient client = getGameHelper().getApiClient();
-
-                        for (int a = 0, l = entries.length(); a < l; a++) {
-                            try {
-                                JSONObject entry = entries.getJSONObject(a);
+                        runOnWorker(new Runnable() {
+                            @Override
+                            public void run() {
+                                batch.invalidate(mLeaderboardCache);
+                                callbackContext.success(batch.getResults());
+                                if (batch.hasQueued()) {
+                                    scheduleReplay();
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        });
+
+        mDispatcher.register("getLeaderboardScores", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, SERVICE_TIMEOUT_MS) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                String leaderboardId = args.getString(0);
+                String scope = args.optString(1, "player");
+                int span = args.optInt(2, LeaderboardVariant.TIME_SPAN_DAILY);
+                int maxResults = args.optInt(3, 10);
+                String format = CompactEncoding.format(args.optJSONObject(4));
+                String cacheKey = LeaderboardCache.key(leaderboardId, scope, span, maxResults, format);
+
+                Log.d(LOG_TAG, String.format("Google Play Services: getLeaderboardScore(%s, %s, %d, %d, %s)", leaderboardId, scope, span, maxResults, format));
+
+                LeaderboardCache.Entry cached = mLeaderboardCache.get(cacheKey);
+                if (cached != null) {
+                    CompactEncoding.send(callbackContext, cached.scores, false);
+                    // no refresh while the circuit is open: the service is failing anyway
+                    if (_connected && !mReconnects.isOpen() && !mLeaderboardCache.isFresh(cached) && mLeaderboardCache.beginRefresh(cached)) {
+                        Log.d(LOG_TAG, "Google Play Services: getLeaderboardScore - refreshing stale entry");
+                        loadLeaderboardScores(leaderboardId, scope, span, maxResults, format, cacheKey, null);
+                    }
+                    return;
+                }
 
-                                String leaderboardId = entry.getString("leaderboardId");
-                                long score = entry.getLong("score");
-                                String tag = entry.optString("tag");
+                if (checkConnected(this, args, callbackContext)) {
+                    loadLeaderboardScores(leaderboardId, scope, span, maxResults, format, cacheKey, callbackContext);
+                }
+            }
 
-                                Log.d(LOG_TAG, String.format("Google Play Services: submitScores - entry(%s, %d, %s)", leaderboardId, score, tag));
+            @Override
+            String coalesceKey(JSONArray args) {
+                return LeaderboardCache.key(args.optString(0), args.optString(1, "player"), args.optInt(2, LeaderboardVariant.TIME_SPAN_DAILY),
+                        args.optInt(3, 10), CompactEncoding.format(args.optJSONObject(4)));
+            }
 
-                                Games.Leaderboards.submitScore(client, leaderboardId, score, tag);
-                            } catch (JSONException e) {
-                            }
-                        }
+            @Override
+            boolean retryable(JSONArray args) {
+                return true;
+            }
 
-                        callbackContext.success();
-                    }
-                });
+            @Override
+            boolean answersLocally(JSONArray args) {
+                return mLeaderboardCache.get(coalesceKey(args)) != null;
             }
+        });
+
+        mDispatcher.register("getLeaderboardScoresBatch", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, true, SERVICE_TIMEOUT_MS) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
+                JSONArray requests = args.optJSONArray(0);
+                if (requests == null) {
+                    requests = new JSONArray();
+                }
 
-            return true;
-        } else if (action.equals("getLeaderboardScores")) {
-            if (checkConnected(callbackContext)) {
-                final String leaderboardId = args.getString(0);
-                final String scope = args.optString(1, "player");
-                final int span = args.optInt(2, LeaderboardVariant.TIME_SPAN_DAILY);
-                final int maxResults = args.optInt(3, 10);
+                Log.d(LOG_TAG, String.format("Google Play Services: getLeaderboardScoresBatch(...count=%d)", requests.length()));
 
-                Log.d(LOG_TAG, String.format("Google Play Services: getLeaderboardScore(%s, %s, %d, %d)", leaderboardId, scope, span, maxResults));
+                loadLeaderboardScoresBatch(requests, callbackContext);
+            }
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        PendingResult<Leaderboards.LoadScoresResult> result;
-                        if (scope.equals("top")) {
-                            result = Games.Leaderboards.loadTopScores(getGameHelper().getApiClient(), leaderboardId, span, LeaderboardVariant.COLLECTION_PUBLIC, maxResults);
-                        } else {
-                            result = Games.Leaderboards.loadPlayerCenteredScores(getGameHelper().getApiClient(), leaderboardId, span, LeaderboardVariant.COLLECTION_PUBLIC, maxResults);
-                        }
+            @Override
+            String coalesceKey(JSONArray args) {
+                return args.toString();
+            }
 
-                        result.setResultCallback(new PluginResultCallbacks<Leaderboards.LoadScoresResult>(callbackContext) {
-                            @Override
-                            public void onSuccess(@NonNull Leaderboards.LoadScoresResult result) {
-                                JSONArray array = new JSONArray();
-                                LeaderboardScoreBuffer buffer = result.getScores();
-                                for (LeaderboardScore score : buffer) {
-                                    array.put(getScoreJSON(score));
-                                }
-                                buffer.release();
-                                super.onSuccess(result);
+            @Override
+            boolean retryable(JSONArray args) {
+                return true;
+            }
+        });
+
+        mDispatcher.register("streamLeaderboardScores", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, true, ActionDispatcher.NO_DEADLINE) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                String leaderboardId = args.getString(0);
+                String scope = args.optString(1, "player");
+                int span = args.optInt(2, LeaderboardVariant.TIME_SPAN_DAILY);
+                JSONObject options = args.optJSONObject(3);
+                if (options == null) {
+                    options = new JSONObject();
+                }
 
-                                callbackContext.success(array);
-                            }
-                        });
+                LeaderboardStream stream = new LeaderboardStream(getGameHelper().getApiClient(), mRateLimiter, mRankIndex, leaderboardId, scope, span,
+                        options.optInt("pageSize", LeaderboardStream.DEFAULT_PAGE_SIZE),
+                        options.optInt("maxRows", 0),
+                        options.optInt("pagesInFlight", LeaderboardStream.DEFAULT_PAGES_IN_FLIGHT),
+                        options.optLong("timeoutMs", SERVICE_TIMEOUT_MS),
+                        callbackContext, mWorkerExecutor, new LeaderboardStream.Listener() {
+                    @Override
+                    public void onStreamEnded(LeaderboardStream stream) {
+                        mLeaderboardStreams.remove(stream.id);
                     }
                 });
+
+                Log.d(LOG_TAG, String.format("Google Play Services: streamLeaderboardScores(%s, %s, %d) -> %d", leaderboardId, scope, span, stream.id));
+
+                mLeaderboardStreams.put(stream.id, stream);
+                stream.start();
             }
-            return true;
-        } else if (action.equals("showLeaderboard")) {
-            if (checkConnected(callbackContext)) {
-                final String leaderboardId = args.getString(0);
-                final int span = args.optInt(1, LeaderboardVariant.TIME_SPAN_DAILY);
+        });
+
+        mDispatcher.register("ackLeaderboardStream", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                LeaderboardStream stream = mLeaderboardStreams.get(args.getInt(0));
+                if (stream != null) {
+                    stream.ack();
+                }
+                callbackContext.success();
+            }
+        });
+
+        mDispatcher.register("cancelLeaderboardStream", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                LeaderboardStream stream = mLeaderboardStreams.get(args.getInt(0));
+                if (stream != null) {
+                    Log.d(LOG_TAG, String.format("Google Play Services: cancelLeaderboardStream(%d)", stream.id));
+                    stream.cancel();
+                }
+                callbackContext.success();
+            }
+        });
+
+        // Places a score among the loaded leaderboard pages, without service call
+        mDispatcher.register("estimateRank", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                String leaderboardId = args.getString(0);
+                int span = args.optInt(1, LeaderboardVariant.TIME_SPAN_DAILY);
+                long score = args.getLong(2);
+
+                JSONObject estimate = mRankIndex.estimate(leaderboardId, span, score);
+                Log.d(LOG_TAG, String.format("Google Play Services: estimateRank(%s,%d,%d) -> %s", leaderboardId, span, score, estimate));
+
+                callbackContext.success(estimate != null ? estimate : new JSONObject().put("found", false));
+            }
+        });
+
+        mDispatcher.register("showLeaderboard", new ActionDispatcher.Action(ActionDispatcher.Threading.UI, true, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                String leaderboardId = args.getString(0);
+                int span = args.optInt(1, LeaderboardVariant.TIME_SPAN_DAILY);
 
                 Log.d(LOG_TAG, String.format("Google Play Services: showLeaderboard(%s,%d)", leaderboardId, span));
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        cordova.startActivityForResult(GameServices.this, Games.Leaderboards.getLeaderboardIntent(getGameHelper().getApiClient(), leaderboardId, span), RC_UI);
-                        callbackContext.success();
-                    }
-                });
+                cordova.startActivityForResult(GameServices.this, Games.Leaderboards.getLeaderboardIntent(getGameHelper().getApiClient(), leaderboardId, span), RC_UI);
+                callbackContext.success();
             }
-            return true;
-        } else if (action.equals("showLeaderboards")) {
-            if (checkConnected(callbackContext)) {
+        });
 
+        mDispatcher.register("showLeaderboards", new ActionDispatcher.Action(ActionDispatcher.Threading.UI, true, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
                 Log.d(LOG_TAG, "Google Play Services: showLeaderboards()");
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        cordova.startActivityForResult(GameServices.this, Games.Leaderboards.getAllLeaderboardsIntent(getGameHelper().getApiClient()), RC_UI);
-                        callbackContext.success();
-                    }
-                });
+                cordova.startActivityForResult(GameServices.this, Games.Leaderboards.getAllLeaderboardsIntent(getGameHelper().getApiClient()), RC_UI);
+                callbackContext.success();
             }
-            return true;
-        } else if (action.equals("unlockAchievement")) {
-            if (checkConnected(callbackContext)) {
+        });
+
+        mDispatcher.register("unlockAchievement", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, ActionDispatcher.SERVICE_DEADLINE) {
+            @Override
+            void handle(JSONArray args, final CallbackContext callbackContext) throws JSONException {
                 final String achievementId = args.getString(0);
+                long timeoutMs = writeTimeoutMs(args.optJSONObject(1));
 
                 Log.d(LOG_TAG, String.format("Google Play Services: unlockAchievement(%s)", achievementId));
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
+                if (shouldJournal()) {
+                    journalWrite(WriteJournal.TYPE_UNLOCK, achievementId, 0, null, callbackContext);
+                    return;
+                }
+
+                mRateLimiter.submit(RateLimiter.WRITE, new RateLimiter.Request<Achievements.UpdateAchievementResult>() {
                     @Override
-                    public void run() {
-                        Games.Achievements.unlockImmediate(getGameHelper().getApiClient(), achievementId)
-                                .setResultCallback(new PluginResultCallbacks<Achievements.UpdateAchievementResult>(callbackContext) {
-                                    @Override
-                                    public void onSuccess(@NonNull Achievements.UpdateAchievementResult result) {
-                                        super.onSuccess(result);
-                                        callbackContext.success();
-                                    }
-                                });
+                    public PendingResult<Achievements.UpdateAchievementResult> issue() {
+                        return Games.Achievements.unlockImmediate(getGameHelper().getApiClient(), achievementId);
                     }
-                });
+                }, new WriteResultCallbacks<Achievements.UpdateAchievementResult>(callbackContext, WriteJournal.TYPE_UNLOCK, achievementId, 0, null) {
+                    @Override
+                    public void onSuccess(@NonNull Achievements.UpdateAchievementResult result) {
+                        super.onSuccess(result);
+                        callbackContext.success();
+                    }
+                }, timeoutMs);
             }
-            return true;
-        } else if (action.equals("incrementAchievement")) {
-            if (checkConnected(callbackContext)) {
+        });
+
+        mDispatcher.register("incrementAchievement", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, ActionDispatcher.SERVICE_DEADLINE) {
+            @Override
+            void handle(JSONArray args, final CallbackContext callbackContext) throws JSONException {
                 final String achievementId = args.getString(0);
                 final int steps = args.getInt(1);
+                long timeoutMs = writeTimeoutMs(args.optJSONObject(2));
 
                 Log.d(LOG_TAG, String.format("Google Play Services: incrementAchievement(%s,%d)", achievementId, steps));
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
+                if (mIncrements.isEnabled()) {
+                    mIncrements.add(achievementId, steps, timeoutMs, callbackContext);
+                    return;
+                }
+
+                if (shouldJournal()) {
+                    journalWrite(WriteJournal.TYPE_INCREMENT, achievementId, steps, null, callbackContext);
+                    return;
+                }
+
+                mRateLimiter.submit(RateLimiter.WRITE, new RateLimiter.Request<Achievements.UpdateAchievementResult>() {
                     @Override
-                    public void run() {
-                        Games.Achievements.incrementImmediate(getGameHelper().getApiClient(), achievementId, steps)
-                                .setResultCallback(new PluginResultCallbacks<Achievements.UpdateAchievementResult>(callbackContext) {
-                                    @Override
-                                    public void onSuccess(@NonNull Achievements.UpdateAchievementResult result) {
-                                        super.onSuccess(result);
-                                        callbackContext.success();
-                                    }
-                                });
+                    public PendingResult<Achievements.UpdateAchievementResult> issue() {
+                        return Games.Achievements.incrementImmediate(getGameHelper().getApiClient(), achievementId, steps);
                     }
-                });
+                }, new WriteResultCallbacks<Achievements.UpdateAchievementResult>(callbackContext, WriteJournal.TYPE_INCREMENT, achievementId, steps, null) {
+                    @Override
+                    public void onSuccess(@NonNull Achievements.UpdateAchievementResult result) {
+                        super.onSuccess(result);
+                        callbackContext.success();
+                    }
+                }, timeoutMs);
             }
-            return true;
-        } else if (action.equals("showAchievements")) {
-            if (checkConnected(callbackContext)) {
+        });
 
+        mDispatcher.register("showAchievements", new ActionDispatcher.Action(ActionDispatcher.Threading.UI, true, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
                 Log.d(LOG_TAG, "Google Play Services: showAchievements()");
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        cordova.startActivityForResult(GameServices.this, Games.Achievements.getAchievementsIntent(getGameHelper().getApiClient()), RC_UI);
-                        callbackContext.success();
-                    }
-                });
+                cordova.startActivityForResult(GameServices.this, Games.Achievements.getAchievementsIntent(getGameHelper().getApiClient()), RC_UI);
+                callbackContext.success();
             }
-            return true;
-        } else if (action.equals("getAchievements")) {
-            if (checkConnected(callbackContext)) {
+        });
+
+        mDispatcher.register("getAchievements", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, SERVICE_TIMEOUT_MS) {
+            @Override
+            void handle(JSONArray args, final CallbackContext callbackContext) {
+                JSONObject options = args.optJSONObject(0);
+                boolean cached = options != null && options.optBoolean("cached");
+                final String format = CompactEncoding.format(options);
+
+                Log.d(LOG_TAG, String.format("Google Play Services: getAchievements(cached=%b, format=%s)", cached, format));
+
+                // With the cached option the local snapshot is sent right away and,
+                // once reconciled with the service, only the changed entries follow.
+                if (cached && mAchievements.isAvailable()) {
+                    CompactEncoding.send(callbackContext, CompactEncoding.encodeAchievements(mAchievements.toJSON(), format), _connected);
+                    if (!_connected) {
+                        return;
+                    }
+                } else if (!checkConnected(this, args, callbackContext)) {
+                    return;
+                }
 
-                Log.d(LOG_TAG, "Google Play Services: getAchievements()");
+                final boolean changesOnly = cached;
 
-                cordova.getActivity().runOnUiThread(new Runnable() {
+                mRateLimiter.submit(RateLimiter.READ, new RateLimiter.Request<Achievements.LoadAchievementsResult>() {
                     @Override
-                    public void run() {
-                        Games.Achievements.load(getGameHelper().getApiClient(), false)
-                                .setResultCallback(new PluginResultCallbacks<Achievements.LoadAchievementsResult>(callbackContext) {
-                                    @Override
-                                    public void onSuccess(@NonNull Achievements.LoadAchievementsResult result) {
-                                        JSONArray array = new JSONArray();
-                                        AchievementBuffer buffer = result.getAchievements();
-                                        for (Achievement ach : buffer) {
-                                            array.put(getAchievementJSON(ach));
-                                        }
-                                        buffer.release();
-                                        super.onSuccess(result);
-
-                                        callbackContext.success(array);
-                                    }
-                                });
+                    public PendingResult<Achievements.LoadAchievementsResult> issue() {
+                        return CallDeadlines.track(callbackContext, Games.Achievements.load(getGameHelper().getApiClient(), false));
+                    }
+                }, new WorkerResultCallbacks<Achievements.LoadAchievementsResult>(callbackContext) {
+                    @Override
+                    public void onResultReady(@NonNull Achievements.LoadAchievementsResult result) {
+                        AchievementBuffer buffer = result.getAchievements();
+                        JSONArray changed = mAchievements.reconcile(getGameHelper().getPlayerId(), buffer, mAchievementSerializer);
+                        buffer.release();
+
+                        CompactEncoding.send(callbackContext, CompactEncoding.encodeAchievements(changesOnly ? changed : mAchievements.toJSON(), format), false);
                     }
                 });
             }
-            return true;
-        } else if (action.equals("resetAchievements")) {
-            Log.d(LOG_TAG, "Google Play Services: resetAchievements()");
 
-            callbackContext.error(getErrorJSON(ERROR.NOT_SUPPORTED, "Not Supported"));
-            return true;
-        }
+            @Override
+            String coalesceKey(JSONArray args) {
+                JSONObject options = args.optJSONObject(0);
+                return (options != null && options.optBoolean("cached")) + "|" + CompactEncoding.format(options);
+            }
 
-        return false;
+            // a cached call already sent the stored achievements, which a retry would send again
+            @Override
+            boolean retryable(JSONArray args) {
+                JSONObject options = args.optJSONObject(0);
+                return options == null || !options.optBoolean("cached");
+            }
+        });
+
+        // Saves are sent in chunks: saveGame opens the save with the data size and answers
+        // with a transfer id, saveGameChunk writes the chunks, the last one stores the save.
+        // Saves are read and written locally, then synced in the background once connected.
+        mDispatcher.register("saveGame", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                String name = args.getString(0);
+                int size = args.getInt(1);
+                JSONObject options = args.optJSONObject(2);
+
+                Log.d(LOG_TAG, String.format("Google Play Services: saveGame(%s,%d)", name, size));
+
+                mSavedGames.save(name, size, options, callbackContext);
+            }
+        });
+
+        mDispatcher.register("saveGameChunk", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                mSavedGames.write(args.getInt(0), args.getInt(1), args.getString(2), callbackContext);
+            }
+        });
+
+        mDispatcher.register("cancelSaveGame", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
+                mSavedGames.cancel(args.optInt(0));
+                callbackContext.success();
+            }
+        });
+
+        mDispatcher.register("loadSaveGame", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                String name = args.getString(0);
+                Log.d(LOG_TAG, String.format("Google Play Services: loadSaveGame(%s)", name));
+
+                mSavedGames.load(name, args.optJSONObject(1), callbackContext);
+            }
+        });
+
+        mDispatcher.register("deleteSaveGame", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                String name = args.getString(0);
+                Log.d(LOG_TAG, String.format("Google Play Services: deleteSaveGame(%s)", name));
+
+                mSavedGames.delete(name, callbackContext);
+            }
+        });
+
+        mDispatcher.register("watchSaveGames", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, ActionDispatcher.NO_DEADLINE) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
+                mSavedGames.watch(callbackContext);
+
+                PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+            }
+        });
+
+        mDispatcher.register("setSaveGameConflictPolicy", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                String policy = args.getString(0);
+                Log.d(LOG_TAG, String.format("Google Play Services: setSaveGameConflictPolicy(%s)", policy));
+
+                if (mSavedGames.setPolicy(policy)) {
+                    callbackContext.success();
+                    mSavedGames.sync();
+                } else {
+                    callbackContext.error(getErrorJSON(ERROR.INVALID_ARGUMENT, "Unknown Policy"));
+                }
+            }
+        });
+
+        mDispatcher.register("resolveSaveGameConflict", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                String name = args.getString(0);
+                String choice = args.getString(1);
+                Log.d(LOG_TAG, String.format("Google Play Services: resolveSaveGameConflict(%s,%s)", name, choice));
+
+                if (!SavedGames.CHOICE_LOCAL.equals(choice) && !SavedGames.CHOICE_REMOTE.equals(choice)) {
+                    callbackContext.error(getErrorJSON(ERROR.INVALID_ARGUMENT, "Unknown Choice"));
+                    return;
+                }
+                mSavedGames.resolve(name, choice);
+                callbackContext.success();
+            }
+        });
+
+        mDispatcher.register("getSaveGameStates", new ActionDispatcher.Action(ActionDispatcher.Threading.WORKER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
+                callbackContext.success(mSavedGames.getStates());
+            }
+        });
+
+        mDispatcher.register("getMetrics", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) throws JSONException {
+                callbackContext.success(mMetrics.toJSON()
+                        .put("singleFlight", mSingleFlight.toJSON())
+                        .put("connection", mConnectionStats.toJSON())
+                        .put("reconnects", mReconnects.toJSON())
+                        .put("signInQueue", mSignInQueue.toJSON())
+                        .put("deadlines", mDeadlines.toJSON())
+                        .put("rateLimiter", mRateLimiter.toJSON())
+                        .put("rankIndex", mRankIndex.toJSON())
+                        .put("signIn", mSignInTrace.toJSON())
+                        .put("state", mState.toJSON()));
+            }
+        });
+
+        mDispatcher.register("resetMetrics", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
+                mMetrics.reset();
+                mSingleFlight.reset();
+                mConnectionStats.reset();
+                mReconnects.reset();
+                mSignInQueue.reset();
+                mDeadlines.reset();
+                mRateLimiter.reset();
+                mRankIndex.reset();
+                mSignInTrace.reset();
+                mState.reset();
+                callbackContext.success();
+            }
+        });
+
+        mDispatcher.register("resetAchievements", new ActionDispatcher.Action(ActionDispatcher.Threading.CALLER, false, 0) {
+            @Override
+            void handle(JSONArray args, CallbackContext callbackContext) {
+                Log.d(LOG_TAG, "Google Play Services: resetAchievements()");
+
+                callbackContext.error(getErrorJSON(ERROR.NOT_SUPPORTED, "Not Supported"));
+            }
+        });
     }
 
     @Override
@@ -401,11 +1026,27 @@ public class GameServices extends CordovaPlugin {
     @Override
     public void onStop() {
         super.onStop();
+        mIncrements.flushAll();
+        mJournal.sync();
+        mState.sync();
         if (_connected) {
             getGameHelper().onStop();
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        cancelLeaderboardStreams();
+        mSavedGames.cancelAll();
+        if (mHelper != null) {
+            mHelper.onDestroy();
+        }
+        mJournal.close();
+        mState.close();
+        mWorker.shutdown();
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent intent) {
         if(requestCode == RC_UI) {
@@ -417,6 +1058,29 @@ public class GameServices extends CordovaPlugin {
         }
     }
 
+    // Runs non-UI work (service calls and result conversion) on the worker
+    // executor, or on the main thread when GameServicesThreading is "ui".
+    private void runOnWorker(Runnable task) {
+        if (_offMainThread) {
+            mWorker.execute(task);
+        } else {
+            cordova.getActivity().runOnUiThread(task);
+        }
+    }
+
+    private final Executor mWorkerExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable task) {
+            runOnWorker(task);
+        }
+    };
+
+    private void cancelLeaderboardStreams() {
+        for (LeaderboardStream stream : mLeaderboardStreams.values()) {
+            stream.cancel();
+        }
+    }
+
     private boolean checkConnected(CallbackContext context) {
         if (!_connected) {
             Log.e(LOG_TAG, "Google Play Services: Not Connected");
@@ -426,89 +1090,388 @@ public class GameServices extends CordovaPlugin {
         return true;
     }
 
-    private GameHelper getGameHelper() {
-        if (mHelper == null) {
-            mHelper = new GameHelper(this.cordova.getActivity(), GameHelper.CLIENT_GAMES);//public GameHelper(Activity activity, int clientsToUse) {
-            mHelper.enableDebugLog(true);
+    /**
+     * Same as checkConnected for handlers: while signing in, the handler is
+     * parked and runs again on the worker once signed in.
+     */
+    private boolean checkConnected(final ActionDispatcher.Action action, final JSONArray args, final CallbackContext context) {
+        if (_connected) {
+            return true;
         }
-        return mHelper;
+        if (!parkWhileSigningIn(context, action.timeoutMs, new Runnable() {
+            @Override
+            public void run() {
+                runOnWorker(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            action.handle(args, context);
+                        } catch (JSONException e) {
+                            context.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                        }
+                    }
+                });
+            }
+        })) {
+            checkConnected(context);
+        }
+        return false;
+    }
+
+    // Parks the task until the sign-in in progress ends, see SignInQueue. Returns false if not signing in or full.
+    private boolean parkWhileSigningIn(CallbackContext context, long timeoutMs, Runnable task) {
+        GameHelper helper = mHelper;
+        if (helper == null || !helper.isConnecting() || !mSignInQueue.park(context, timeoutMs, task)) {
+            return false;
+        }
+        Log.d(LOG_TAG, "Google Play Services: Login pending, call parked");
+        return true;
     }
 
-    private JSONObject getErrorJSON(int code, String message) {
-        JSONObject json = new JSONObject();
+    // Writes go through the journal while disconnected, and while older
+    // writes are still waiting to be replayed so that ordering is preserved.
+    private boolean shouldJournal() {
+        return !_connected || !mJournal.isEmpty();
+    }
 
-        try {
-            json.put("code", code)
-                    .put("message", message);
-        } catch (JSONException e) {
+    // Timeout of a write request: the timeoutMs of its options, bounded like
+    // call deadlines. Past it the write is journaled (see CallDeadlines).
+    private long writeTimeoutMs(JSONObject options) {
+        return mDeadlines.bound(options != null ? options.optLong("timeoutMs", SERVICE_TIMEOUT_MS) : SERVICE_TIMEOUT_MS);
+    }
+
+    private void journalWrite(int type, String id, long value, String tag, CallbackContext context) {
+        mJournal.append(type, id, value, tag);
+        onJournalAppended(context);
+    }
+
+    private void onJournalAppended(CallbackContext context) {
+        Log.d(LOG_TAG, String.format("Google Play Services: Write queued (pending=%d)", mJournal.size()));
+        context.success("Queued");
+        scheduleReplay();
+    }
+
+    private final Runnable mDeferredReplay = new Runnable() {
+        @Override
+        public void run() {
+            _replayDeferred.set(false);
+            scheduleReplay();
+        }
+    };
+
+    // New writes do not cut a backoff short: they queue behind the deferred one
+    private void scheduleReplay() {
+        if (_connected && !_replayDeferred.get()) {
+            runOnWorker(new Runnable() {
+                @Override
+                public void run() {
+                    replayJournal();
+                }
+            });
         }
+    }
 
-        return json;
+    // Sends an increment merged from several incrementAchievement calls and
+    // resolves all of them with its result; timeoutMs is the shortest write
+    // timeout of the calls.
+    private void flushIncrement(final String achievementId, final int steps, final long timeoutMs, final List<CallbackContext> callbacks) {
+        runOnWorker(new Runnable() {
+            @Override
+            public void run() {
+                sendIncrement(achievementId, steps, timeoutMs, callbacks);
+            }
+        });
     }
 
-    private JSONObject getErrorJSON(int code, int internalCode, String message) {
-        JSONObject json = getErrorJSON(code, message);
-        try {
-            json.put("serviceCode", internalCode);
-        } catch (JSONException e) {
+    private void sendIncrement(final String achievementId, final int steps, long timeoutMs, final List<CallbackContext> callbacks) {
+        Log.d(LOG_TAG, String.format("Google Play Services: incrementAchievement(%s,%d) - merged %d call(s)", achievementId, steps, callbacks.size()));
+
+        if (shouldJournal()) {
+            mJournal.append(WriteJournal.TYPE_INCREMENT, achievementId, steps, null);
+            for (CallbackContext callback : callbacks) {
+                callback.success("Queued");
+            }
+            scheduleReplay();
+            return;
         }
-        return json;
+
+        mRateLimiter.submit(RateLimiter.WRITE, new RateLimiter.Request<Achievements.UpdateAchievementResult>() {
+            @Override
+            public PendingResult<Achievements.UpdateAchievementResult> issue() {
+                return Games.Achievements.incrementImmediate(getGameHelper().getApiClient(), achievementId, steps);
+            }
+        }, new ResultCallbacks<Achievements.UpdateAchievementResult>() {
+            @Override
+            public void onSuccess(@NonNull Achievements.UpdateAchievementResult result) {
+                for (CallbackContext callback : callbacks) {
+                    callback.success();
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull Status status) {
+                if (WriteJournal.isRetryable(status.getStatusCode())) {
+                    Log.w(LOG_TAG, "Google Play Services: Write deferred -> " + status.getStatusMessage());
+                    mJournal.append(WriteJournal.TYPE_INCREMENT, achievementId, steps, null);
+                    for (CallbackContext callback : callbacks) {
+                        callback.success("Queued");
+                    }
+                    if (status.getStatusCode() == GamesStatusCodes.STATUS_CLIENT_RECONNECT_REQUIRED) {
+                        Log.d(LOG_TAG, "Google Play Services: Reconnecting");
+                        mHelper.requestReconnect();
+                    }
+                } else {
+                    Log.e(LOG_TAG, "Google Play Services: Error -> " + status.getStatusMessage());
+                    JSONObject error = getErrorJSON(ERROR.SERVICE_ERROR, status.getStatusCode(), status.getStatusMessage());
+                    for (CallbackContext callback : callbacks) {
+                        callback.error(error);
+                    }
+                }
+            }
+        }, timeoutMs);
     }
 
-    private JSONObject getPlayerDetailJSON() {
-        Player player = Games.Players.getCurrentPlayer(getGameHelper().getApiClient());
-        JSONObject json = new JSONObject();
+    // Sends the journaled writes one at a time, in order. Stops at the first
+    // transient failure; the rest is retried after a backoff delay, or on the
+    // next successful sign-in. An entry failing WriteJournal.MAX_ATTEMPTS
+    // times is dropped, so that it cannot hold back the writes behind it.
+    private void replayJournal() {
+        if (!_connected || !_replaying.compareAndSet(false, true)) {
+            return;
+        }
 
-        if (player != null) {
+        final WriteJournal.Entry entry = mJournal.peek();
+        if (entry == null) {
+            _replaying.set(false);
+            mJournal.compact();
+            return;
+        }
+
+        if (entry.type != WriteJournal.TYPE_SCORE && entry.type != WriteJournal.TYPE_UNLOCK && entry.type != WriteJournal.TYPE_INCREMENT) {
+            Log.e(LOG_TAG, "Google Play Services: Unknown journal entry " + entry);
+            mJournal.ack(entry);
+            _replaying.set(false);
+            replayJournal();
+            return;
+        }
+
+        mRateLimiter.submit(RateLimiter.WRITE, new RateLimiter.Request<Result>() {
+            @Override
+            public PendingResult<? extends Result> issue() {
+                GoogleApiClient client = getGameHelper().getApiClient();
+                switch (entry.type) {
+                    case WriteJournal.TYPE_SCORE:
+                        return Games.Leaderboards.submitScoreImmediate(client, entry.id, entry.value, entry.tag);
+                    case WriteJournal.TYPE_UNLOCK:
+                        return Games.Achievements.unlockImmediate(client, entry.id);
+                    default:
+                        return Games.Achievements.incrementImmediate(client, entry.id, (int) entry.value);
+                }
+            }
+        }, new ResultCallbacks<Result>() {
+            @Override
+            public void onSuccess(@NonNull Result result) {
+                if (result instanceof Releasable) {
+                    ((Releasable) result).release();
+                }
+                if (entry.type == WriteJournal.TYPE_SCORE) {
+                    mLeaderboardCache.invalidate(entry.id);
+                }
+
+                // acked before the next replay may start, or it would send the entry again
+                mJournal.ack(entry);
+                _replaying.set(false);
+                scheduleReplay();
+            }
+
+            @Override
+            public void onFailure(@NonNull Status status) {
+                if (WriteJournal.isRetryable(status.getStatusCode())) {
+                    int attempts = mJournal.retry(entry);
+                    if (attempts < WriteJournal.MAX_ATTEMPTS) {
+                        long delay = Math.min(MAX_REPLAY_BACKOFF_MS, REPLAY_BACKOFF_MS << Math.min(attempts - 1, 16));
+                        Log.w(LOG_TAG, String.format("Google Play Services: Replay deferred (attempt %d, retry in %d ms) -> %s",
+                                attempts, delay, status.getStatusMessage()));
+                        // deferred before the replay flag is cleared, so that no write replays in between
+                        _replayDeferred.set(true);
+                        _replaying.set(false);
+                        mReplayHandler.postDelayed(mDeferredReplay, delay);
+                        return;
+                    }
+                }
+                Log.e(LOG_TAG, "Google Play Services: Replay dropped " + entry + " -> " + status.getStatusMessage());
+
+                mJournal.ack(entry);
+                _replaying.set(false);
+                scheduleReplay();
+            }
+        }, SERVICE_TIMEOUT_MS);
+    }
+
+    // Loads a page of leaderboard scores into the cache. The callback context
+    // is null for background refreshes of stale cache entries.
+    private void loadLeaderboardScores(final String leaderboardId, final String scope, final int span, final int maxResults,
+                                       final String format, final String cacheKey, final CallbackContext callbackContext) {
+        final long generation = mLeaderboardCache.generation(leaderboardId);
+
+        // background refreshes give way to the reads someone waits for; no
+        // call deadline cancels them, so they time out by themselves
+        mRateLimiter.submit(callbackContext != null ? RateLimiter.READ : RateLimiter.BACKGROUND_READ, new RateLimiter.Request<Leaderboards.LoadScoresResult>() {
+            @Override
+            public PendingResult<Leaderboards.LoadScoresResult> issue() {
+                return CallDeadlines.track(callbackContext, loadScores(leaderboardId, scope, span, maxResults));
+            }
+        }, new WorkerResultCallbacks<Leaderboards.LoadScoresResult>(callbackContext) {
+            @Override
+            public void onResultReady(@NonNull Leaderboards.LoadScoresResult result) {
+                LeaderboardScoreBuffer buffer = result.getScores();
+                mRankIndex.add(leaderboardId, span, result.getLeaderboard(), buffer);
+                Object scores = CompactEncoding.encodeScores(buffer, format);
+                buffer.release();
+
+                mLeaderboardCache.put(cacheKey, leaderboardId, generation, scores);
+                if (callbackContext != null) {
+                    CompactEncoding.send(callbackContext, scores, false);
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull Status status) {
+                mLeaderboardCache.endRefresh(cacheKey);
+                super.onFailure(status);
+            }
+        }, callbackContext != null ? 0 : SERVICE_TIMEOUT_MS);
+    }
+
+    private PendingResult<Leaderboards.LoadScoresResult> loadScores(String leaderboardId, String scope, int span, int maxResults) {
+        if (scope.equals("top")) {
+            return Games.Leaderboards.loadTopScores(getGameHelper().getApiClient(), leaderboardId, span, LeaderboardVariant.COLLECTION_PUBLIC, maxResults);
+        }
+        return Games.Leaderboards.loadPlayerCenteredScores(getGameHelper().getApiClient(), leaderboardId, span, LeaderboardVariant.COLLECTION_PUBLIC, maxResults);
+    }
+
+    // Loads several leaderboard pages at once. The response holds a single
+    // player dictionary shared by all the pages, and every page its own
+    // result or error.
+    private void loadLeaderboardScoresBatch(JSONArray requests, final CallbackContext callbackContext) {
+        final int count = requests.length();
+        final JSONObject[] results = new JSONObject[count];
+        final PlayerTable players = new PlayerTable();
+        final AtomicInteger remaining = new AtomicInteger(count + 1);
+
+        final Runnable onComplete = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() > 0) {
+                    return;
+                }
+
+                JSONArray leaderboards = new JSONArray();
+                for (JSONObject result : results) {
+                    leaderboards.put(result);
+                }
+                JSONObject json = new JSONObject();
+                try {
+                    json.put("players", players.getPlayers())
+                            .put("leaderboards", leaderboards);
+                } catch (JSONException e) {
+                }
+                Log.d(LOG_TAG, String.format("Google Play Services: getLeaderboardScoresBatch - %d page(s), %d player(s)", count, players.size()));
+                callbackContext.success(json);
+            }
+        };
+
+        for (int a = 0; a < count; a++) {
+            JSONObject request = requests.optJSONObject(a);
+            final String leaderboardId = request != null ? request.optString("leaderboardId", null) : null;
+            final String scope = request != null ? request.optString("scope", "player") : "player";
+            final int span = request != null ? request.optInt("span", LeaderboardVariant.TIME_SPAN_DAILY) : LeaderboardVariant.TIME_SPAN_DAILY;
+            final int maxResults = request != null ? request.optInt("maxResults", 10) : 10;
+
+            final JSONObject result = new JSONObject();
             try {
-                json.put("playerId", player.getPlayerId())
-                        .put("playerName", player.getDisplayName())
-                        .put("playerImage", player.hasHiResImage() ? player.getHiResImageUrl() : player.getIconImageUrl());
+                result.put("leaderboardId", leaderboardId)
+                        .put("scope", scope)
+                        .put("span", span);
             } catch (JSONException e) {
             }
+            results[a] = result;
+
+            if (leaderboardId == null) {
+                putJSON(result, "error", getErrorJSON(ERROR.INVALID_ARGUMENT, "Invalid Entry"));
+                onComplete.run();
+                continue;
+            }
+
+            mRateLimiter.submit(RateLimiter.READ, new RateLimiter.Request<Leaderboards.LoadScoresResult>() {
+                @Override
+                public PendingResult<Leaderboards.LoadScoresResult> issue() {
+                    return CallDeadlines.track(callbackContext, loadScores(leaderboardId, scope, span, maxResults));
+                }
+            }, new ResultCallbacks<Leaderboards.LoadScoresResult>() {
+                @Override
+                public void onSuccess(@NonNull final Leaderboards.LoadScoresResult loaded) {
+                    runOnWorker(new Runnable() {
+                        @Override
+                        public void run() {
+                            LeaderboardScoreBuffer buffer = loaded.getScores();
+                            mRankIndex.add(leaderboardId, span, loaded.getLeaderboard(), buffer);
+                            putJSON(result, "scores", players.toJSON(buffer));
+                            loaded.release();
+                            onComplete.run();
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailure(@NonNull Status status) {
+                    Log.e(LOG_TAG, "Google Play Services: Error -> " + status.getStatusMessage());
+                    putJSON(result, "error", getErrorJSON(ERROR.SERVICE_ERROR, status.getStatusCode(), status.getStatusMessage()));
+                    onComplete.run();
+                }
+            });
         }
 
-        return json;
+        onComplete.run();
     }
 
-    private JSONObject getScoreJSON(LeaderboardScore score) {
-        JSONObject json = new JSONObject();
-
+    private static void putJSON(JSONObject json, String key, Object value) {
         try {
-            Player player = score.getScoreHolder();
-            json.put("playerId", player.getPlayerId())
-                    .put("playerName", player.getDisplayName())
-                    .put("playerImage", player.hasHiResImage() ? player.getHiResImageUrl() : score.getScoreHolderIconImageUrl())
-                    .put("score", score.getRawScore())
-                    .put("rank", score.getRank())
-                    .put("timestamp", score.getTimestampMillis())
-                    .put("tag", score.getScoreTag());
+            json.put(key, value);
         } catch (JSONException e) {
         }
+    }
 
-        return json;
+    private GameHelper getGameHelper() {
+        if (mHelper == null) {
+            mHelper = new GameHelper(this.cordova.getActivity(), GameHelper.CLIENT_GAMES | GameHelper.CLIENT_SNAPSHOT, mState);
+            mHelper.enableDebugLog(true);
+            mHelper.setIdleDisconnectDelay(mIdleDisconnectDelayMs);
+            mHelper.setConnectionStats(mConnectionStats);
+            mHelper.setReconnectSupervisor(mReconnects);
+            mHelper.setSignInTrace(mSignInTrace);
+        }
+        return mHelper;
     }
 
-    private JSONObject getAchievementJSON(Achievement ach) {
-        JSONObject json = new JSONObject();
+    static JSONObject getErrorJSON(int code, String message) {
+        return JsonEncoding.error(code, message);
+    }
 
-        try {
-            int state = ach.getState();
-            json.put("id", ach.getAchievementId())
-                    .put("isCompleted", state == Achievement.STATE_UNLOCKED)
-                    .put("isHidden", state == Achievement.STATE_HIDDEN)
-                    .put("xp", ach.getXpValue())
-                    .put("name", ach.getName())
-                    .put("desc", ach.getDescription())
-                    .put("percent", ach.getCurrentSteps() / ach.getTotalSteps() * 100)
-                    .put("totalSteps", ach.getTotalSteps())
-                    .put("steps", ach.getCurrentSteps())
-                    .put("image", ach.getRevealedImageUri())
-                    .put("imageUnlocked", ach.getUnlockedImageUri())
-                    .put("timestamp", ach.getLastUpdatedTimestamp());
-        } catch (JSONException e) {
-        }
+    static JSONObject getErrorJSON(int code, int internalCode, String message) {
+        return JsonEncoding.error(code, internalCode, message);
+    }
 
-        return json;
+    // The profile is captured by the helper when connecting, see GameHelper.getPlayerProfile
+    private JSONObject getPlayerDetailJSON() {
+        JSONObject profile = getGameHelper().getPlayerProfile();
+        return profile != null ? profile : new JSONObject();
     }
-}
\ No newline at end of file
+
+    private final AchievementSnapshot.Serializer mAchievementSerializer = new AchievementSnapshot.Serializer() {
+        @Override
+        public JSONObject toJSON(Achievement achievement) {
+            return JsonEncoding.achievement(achievement);
+        }
+    };
+}
@@ -0,0 +1,126 @@
+package io.nonostante.games.cordova;
+
+import android.os.Handler;
+
+import org.apache.cordova.CallbackContext;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges rapid incrementAchievement calls.
+ * <p>
+ * Steps are summed per achievement and flushed as a single increment once
+ * the window elapses, once an achievement collects enough calls, or when
+ * {@link #flushAll()} is called explicitly (e.g. when the app is stopped).
+ * Every merged call keeps its callback so all of them can be resolved from
+ * the single service result, and the merged increment gets the shortest
+ * write timeout of its calls.
+ * <p>
+ * Merging delays the callbacks by up to the window, so it is opt-in: the
+ * default window is 0 (see the GameServicesIncrementWindow preference).
+ */
+class IncrementAccumulator {
+    static final long DEFAULT_WINDOW_MS = 0;
+    static final int DEFAULT_MAX_CALLS = 50;
+
+    /** Receives the merged increments. Called on the handler thread. */
+    interface Flusher {
+        void flush(String achievementId, int steps, long timeoutMs, List<CallbackContext> callbacks);
+    }
+
+    private static class Pending {
+        int steps;
+        long timeoutMs = Long.MAX_VALUE;
+        final ArrayList<CallbackContext> callbacks = new ArrayList<CallbackContext>();
+    }
+
+    private final Handler mHandler;
+    private final long mWindowMs;
+    private final int mMaxCalls;
+    private final Flusher mFlusher;
+    private final LinkedHashMap<String, Pending> mPending = new LinkedHashMap<String, Pending>();
+    private boolean mScheduled = false;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushAll();
+        }
+    };
+
+    IncrementAccumulator(Handler handler, long windowMs, int maxCalls, Flusher flusher) {
+        mHandler = handler;
+        mWindowMs = windowMs;
+        mMaxCalls = Math.max(1, maxCalls);
+        mFlusher = flusher;
+    }
+
+    /** Whether calls are merged at all (a zero window disables merging). */
+    boolean isEnabled() {
+        return mWindowMs > 0;
+    }
+
+    /**
+     * Adds steps for an achievement, with the write timeout of the call.
+     * Safe to call from any thread.
+     */
+    void add(final String achievementId, int steps, long timeoutMs, CallbackContext callback) {
+        boolean flushNow = false;
+        synchronized (this) {
+            Pending pending = mPending.get(achievementId);
+            if (pending == null) {
+                pending = new Pending();
+                mPending.put(achievementId, pending);
+            }
+            pending.steps += steps;
+            pending.timeoutMs = Math.min(pending.timeoutMs, timeoutMs);
+            pending.callbacks.add(callback);
+
+            if (pending.callbacks.size() >= mMaxCalls) {
+                flushNow = true;
+            } else if (!mScheduled) {
+                mScheduled = true;
+                mHandler.postDelayed(mFlushTask, mWindowMs);
+            }
+        }
+
+        if (flushNow) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    flush(achievementId);
+                }
+            });
+        }
+    }
+
+    /** Flushes every pending achievement. Must be called on the handler thread. */
+    void flushAll() {
+        ArrayList<Map.Entry<String, Pending>> entries;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushTask);
+            mScheduled = false;
+            entries = new ArrayList<Map.Entry<String, Pending>>(mPending.entrySet());
+            mPending.clear();
+        }
+
+        for (Map.Entry<String, Pending> entry : entries) {
+            Pending pending = entry.getValue();
+            mFlusher.flush(entry.getKey(), pending.steps, pending.timeoutMs, pending.callbacks);
+        }
+    }
+
+    private void flush(String achievementId) {
+        Pending pending;
+        synchronized (this) {
+            pending = mPending.remove(achievementId);
+        }
+
+        if (pending != null) {
+            mFlusher.flush(achievementId, pending.steps, pending.timeoutMs, pending.callbacks);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package io.nonostante.games.cordova;
+
+import com.google.android.gms.games.Player;
+import com.google.android.gms.games.achievement.Achievement;
+import com.google.android.gms.games.leaderboard.LeaderboardScore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The default JSON entries sent to JS. Kept free of plugin state so that
+ * the conversions can be measured outside of an app (see benchmark/).
+ */
+class JsonEncoding {
+
+    static JSONObject error(int code, String message) {
+        JSONObject json = new JSONObject();
+
+        try {
+            json.put("code", code)
+                    .put("message", message);
+        } catch (JSONException e) {
+        }
+
+        return json;
+    }
+
+    static JSONObject error(int code, int internalCode, String message) {
+        JSONObject json = error(code, message);
+        try {
+            json.put("serviceCode", internalCode);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    static JSONObject score(LeaderboardScore score) {
+        JSONObject json = new JSONObject();
+
+        try {
+            Player player = score.getScoreHolder();
+            json.put("playerId", player.getPlayerId())
+                    .put("playerName", player.getDisplayName())
+                    .put("playerImage", CompactEncoding.playerImage(score))
+                    .put("score", score.getRawScore())
+                    .put("rank", score.getRank())
+                    .put("timestamp", score.getTimestampMillis())
+                    .put("tag", score.getScoreTag());
+        } catch (JSONException e) {
+        }
+
+        return json;
+    }
+
+    static JSONObject achievement(Achievement ach) {
+        JSONObject json = new JSONObject();
+
+        try {
+            int state = ach.getState();
+            json.put("id", ach.getAchievementId())
+                    .put("isCompleted", state == Achievement.STATE_UNLOCKED)
+                    .put("isHidden", state == Achievement.STATE_HIDDEN)
+                    .put("xp", ach.getXpValue())
+                    .put("name", ach.getName())
+                    .put("desc", ach.getDescription())
+                    .put("image", ach.getRevealedImageUri())
+                    .put("imageUnlocked", ach.getUnlockedImageUri())
+                    .put("timestamp", ach.getLastUpdatedTimestamp());
+
+            // steps are only defined for incremental achievements (the getters
+            // throw for the others)
+            if (ach.getType() == Achievement.TYPE_INCREMENTAL) {
+                int totalSteps = ach.getTotalSteps();
+                int steps = ach.getCurrentSteps();
+                json.put("percent", totalSteps > 0 ? steps * 100 / totalSteps : 0)
+                        .put("totalSteps", totalSteps)
+                        .put("steps", steps);
+            } else {
+                json.put("percent", state == Achievement.STATE_UNLOCKED ? 100 : 0);
+            }
+        } catch (JSONException e) {
+        }
+
+        return json;
+    }
+}
@@ -0,0 +1,141 @@
+package io.nonostante.games.cordova;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache for getLeaderboardScores results, keyed by
+ * (leaderboardId, scope, span, maxResults, format).
+ * <p>
+ * Entries younger than the TTL are served as is. Older entries are still
+ * served (stale-while-revalidate) while a single background refresh per key
+ * reloads them, up to a hard max age after which they count as a miss. The
+ * cache is bounded in size (least recently used entries are evicted) and all
+ * the entries of a leaderboard are dropped when a score is submitted to it.
+ */
+class LeaderboardCache {
+    static final long DEFAULT_TTL_MS = 60 * 1000;
+    static final int DEFAULT_MAX_ENTRIES = 32;
+
+    // Stale entries older than TTL * MAX_STALE_FACTOR are not served anymore
+    static final int MAX_STALE_FACTOR = 10;
+
+    static class Entry {
+        final String leaderboardId;
+        // encoded as requested, see CompactEncoding
+        final Object scores;
+        final long loadedAt;
+        boolean refreshing = false;
+
+        Entry(String leaderboardId, Object scores, long loadedAt) {
+            this.leaderboardId = leaderboardId;
+            this.scores = scores;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final long mTtlMs;
+    private final int mMaxEntries;
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    // bumped on every invalidation, so loads started before it are not stored
+    private final HashMap<String, Integer> mGenerations = new HashMap<String, Integer>();
+    private int mEpoch = 0;
+
+    LeaderboardCache(long ttlMs, int maxEntries) {
+        mTtlMs = ttlMs;
+        mMaxEntries = Math.max(1, maxEntries);
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    static String key(String leaderboardId, String scope, int span, int maxResults, String format) {
+        return leaderboardId + '|' + scope + '|' + span + '|' + maxResults + '|' + format;
+    }
+
+    boolean isEnabled() {
+        return mTtlMs > 0;
+    }
+
+    /** Returns a servable entry (fresh or stale), or null on a miss. */
+    synchronized Entry get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry != null && age(entry) > mTtlMs * MAX_STALE_FACTOR) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    boolean isFresh(Entry entry) {
+        return age(entry) <= mTtlMs;
+    }
+
+    /**
+     * Marks a stale entry as being refreshed. Returns false if a refresh is
+     * already running, in which case no other one should be started.
+     */
+    synchronized boolean beginRefresh(Entry entry) {
+        if (entry.refreshing) {
+            return false;
+        }
+        entry.refreshing = true;
+        return true;
+    }
+
+    /** Clears the refresh mark after a failed refresh. */
+    synchronized void endRefresh(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            entry.refreshing = false;
+        }
+    }
+
+    /** Returns a token to pass to {@link #put} for a load about to start. */
+    synchronized long generation(String leaderboardId) {
+        Integer generation = mGenerations.get(leaderboardId);
+        return ((long) mEpoch << 32) | (generation == null ? 0 : generation);
+    }
+
+    /** Stores a load result, unless the leaderboard was invalidated meanwhile. */
+    synchronized void put(String key, String leaderboardId, long generation, Object scores) {
+        if (!isEnabled() || generation != generation(leaderboardId)) {
+            return;
+        }
+        mEntries.put(key, new Entry(leaderboardId, scores, SystemClock.elapsedRealtime()));
+    }
+
+    /** Drops all the entries of a leaderboard. */
+    synchronized void invalidate(String leaderboardId) {
+        Integer generation = mGenerations.get(leaderboardId);
+        mGenerations.put(leaderboardId, generation == null ? 1 : generation + 1);
+
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().leaderboardId.equals(leaderboardId)) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mGenerations.clear();
+        mEpoch++;
+    }
+
+    private static long age(Entry entry) {
+        return SystemClock.elapsedRealtime() - entry.loadedAt;
+    }
+}
@@ -0,0 +1,266 @@
+package io.nonostante.games.cordova;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallbacks;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.games.Games;
+import com.google.android.gms.games.PageDirection;
+import com.google.android.gms.games.leaderboard.LeaderboardScoreBuffer;
+import com.google.android.gms.games.leaderboard.LeaderboardVariant;
+import com.google.android.gms.games.leaderboard.Leaderboards;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks the pages of a leaderboard with loadMoreScores, used by the
+ * streamLeaderboardScores action.
+ * <p>
+ * Every page is converted as soon as it arrives and sent as its own plugin
+ * result over the kept callback, so the first rows can be shown while the
+ * next pages load. At most a given number of pages may be sent and not yet
+ * acknowledged by the caller: the next page is only requested once the
+ * caller caught up. A stream ends when the leaderboard has no more rows, the
+ * row cap is reached, it is cancelled, or a load fails. A page not loaded
+ * within the page deadline fails with TIMEOUT: the stream has no call
+ * deadline, as it may wait for the caller for as long as it needs. Pages
+ * are requested through the {@link RateLimiter}, the deadline runs from
+ * the moment a page is actually requested.
+ */
+class LeaderboardStream {
+    static final String TAG = "LeaderboardStream";
+
+    // The service returns at most 25 rows per page
+    static final int DEFAULT_PAGE_SIZE = 25;
+    static final int DEFAULT_PAGES_IN_FLIGHT = 2;
+
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+    /** Notified once a stream ended, whatever the reason. */
+    interface Listener {
+        void onStreamEnded(LeaderboardStream stream);
+    }
+
+    final int id = sNextId.getAndIncrement();
+
+    private final GoogleApiClient mClient;
+    private final RateLimiter mLimiter;
+    private final RankIndex mRankIndex;
+    private final String mLeaderboardId;
+    private final boolean mTop;
+    private final int mSpan;
+    private final int mPageSize;
+    private final int mMaxRows;
+    private final int mMaxPagesInFlight;
+    private final long mPageTimeoutMs;
+    private final CallbackContext mCallbackContext;
+    private final Executor mExecutor;
+    private final Listener mListener;
+
+    // last loaded page, kept until the next one is loaded from it
+    private LeaderboardScoreBuffer mBuffer;
+    private int mBufferCount = 0;
+
+    private int mPage = 0;
+    private int mRows = 0;
+    private int mUnacked = 0;
+    private boolean mLoading = false;
+    private boolean mCancelled = false;
+    private boolean mEnded = false;
+
+    // maxRows is 0 to stream the whole leaderboard, pages are converted on the executor
+    LeaderboardStream(GoogleApiClient client, RateLimiter limiter, RankIndex rankIndex, String leaderboardId, String scope, int span,
+                      int pageSize, int maxRows, int maxPagesInFlight, long pageTimeoutMs,
+                      CallbackContext callbackContext, Executor executor, Listener listener) {
+        mClient = client;
+        mLimiter = limiter;
+        mRankIndex = rankIndex;
+        mLeaderboardId = leaderboardId;
+        mTop = "top".equals(scope);
+        mSpan = span;
+        mPageSize = Math.max(1, Math.min(pageSize, DEFAULT_PAGE_SIZE));
+        mMaxRows = maxRows > 0 ? maxRows : Integer.MAX_VALUE;
+        mMaxPagesInFlight = Math.max(1, maxPagesInFlight);
+        mPageTimeoutMs = pageTimeoutMs > 0 ? pageTimeoutMs : GameServices.SERVICE_TIMEOUT_MS;
+        mCallbackContext = callbackContext;
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    /** Requests the first page. */
+    synchronized void start() {
+        mLoading = true;
+        mLimiter.submit(RateLimiter.READ, new RateLimiter.Request<Leaderboards.LoadScoresResult>() {
+            @Override
+            public PendingResult<Leaderboards.LoadScoresResult> issue() {
+                if (mTop) {
+                    return Games.Leaderboards.loadTopScores(mClient, mLeaderboardId, mSpan, LeaderboardVariant.COLLECTION_PUBLIC, mPageSize);
+                }
+                return Games.Leaderboards.loadPlayerCenteredScores(mClient, mLeaderboardId, mSpan, LeaderboardVariant.COLLECTION_PUBLIC, mPageSize);
+            }
+        }, mPageCallback, mPageTimeoutMs);
+    }
+
+    /** The caller is done with a page: allows the next one to be loaded. */
+    synchronized void ack() {
+        if (mUnacked > 0) {
+            mUnacked--;
+        }
+        loadNext();
+    }
+
+    /**
+     * Stops the stream. A last result flagged as cancelled is sent right away,
+     * or once the page being loaded is back.
+     */
+    synchronized void cancel() {
+        if (mEnded) {
+            return;
+        }
+        mCancelled = true;
+        if (!mLoading) {
+            end(page(new JSONArray(), true));
+        }
+    }
+
+    private final ResultCallbacks<Leaderboards.LoadScoresResult> mPageCallback = new ResultCallbacks<Leaderboards.LoadScoresResult>() {
+        @Override
+        public void onSuccess(@NonNull final Leaderboards.LoadScoresResult result) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onPage(result);
+                }
+            });
+        }
+
+        @Override
+        public void onFailure(@NonNull final Status status) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onPageFailed(status);
+                }
+            });
+        }
+    };
+
+    private synchronized void onPageFailed(Status status) {
+        mLoading = false;
+        if (mCancelled) {
+            end(page(new JSONArray(), true));
+            return;
+        }
+
+        Log.e(TAG, "Page " + mPage + " failed -> " + status.getStatusMessage());
+        release();
+        mEnded = true;
+        if (status.getStatusCode() == CommonStatusCodes.TIMEOUT) {
+            mCallbackContext.error(GameServices.getErrorJSON(GameServices.ERROR.TIMEOUT, "Timeout"));
+        } else {
+            mCallbackContext.error(GameServices.getErrorJSON(GameServices.ERROR.SERVICE_ERROR, status.getStatusCode(), status.getStatusMessage()));
+        }
+        mListener.onStreamEnded(this);
+    }
+
+    private synchronized void onPage(Leaderboards.LoadScoresResult result) {
+        mLoading = false;
+
+        if (mCancelled) {
+            result.release();
+            end(page(new JSONArray(), true));
+            return;
+        }
+
+        LeaderboardScoreBuffer buffer = result.getScores();
+        int count = buffer.getCount();
+        mRankIndex.add(mLeaderboardId, mSpan, result.getLeaderboard(), buffer);
+
+        // a page loaded from a previous one may also carry the rows of the previous one
+        int first = count > mPageSize ? Math.min(mBufferCount, count) : 0;
+        int last = Math.min(count, first + mMaxRows - mRows);
+
+        JSONArray scores = new JSONArray();
+        for (int a = first; a < last; a++) {
+            scores.put(JsonEncoding.score(buffer.get(a)));
+        }
+        mRows += last - first;
+
+        release();
+        mBuffer = buffer;
+        mBufferCount = count;
+
+        JSONObject page = page(scores, false);
+        if (count - first < mPageSize || mRows >= mMaxRows) {
+            end(page);
+            return;
+        }
+
+        mPage++;
+        mUnacked++;
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, page);
+        pluginResult.setKeepCallback(true);
+        mCallbackContext.sendPluginResult(pluginResult);
+
+        loadNext();
+    }
+
+    private void loadNext() {
+        if (mLoading || mEnded || mCancelled || mBuffer == null || mUnacked >= mMaxPagesInFlight) {
+            return;
+        }
+        mLoading = true;
+        final LeaderboardScoreBuffer buffer = mBuffer;
+        mLimiter.submit(RateLimiter.READ, new RateLimiter.Request<Leaderboards.LoadScoresResult>() {
+            @Override
+            public PendingResult<Leaderboards.LoadScoresResult> issue() {
+                return Games.Leaderboards.loadMoreScores(mClient, buffer, mPageSize, PageDirection.NEXT);
+            }
+        }, mPageCallback, mPageTimeoutMs);
+    }
+
+    private void end(JSONObject lastPage) {
+        release();
+        mEnded = true;
+        try {
+            lastPage.put("done", true);
+        } catch (JSONException e) {
+        }
+        Log.d(TAG, String.format("Stream %d ended (pages=%d, rows=%d, cancelled=%b)", id, mPage + 1, mRows, mCancelled));
+        mCallbackContext.success(lastPage);
+        mListener.onStreamEnded(this);
+    }
+
+    private void release() {
+        if (mBuffer != null) {
+            mBuffer.release();
+            mBuffer = null;
+        }
+    }
+
+    private JSONObject page(JSONArray scores, boolean cancelled) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("streamId", id)
+                    .put("page", mPage)
+                    .put("scores", scores)
+                    .put("done", false);
+            if (cancelled) {
+                json.put("cancelled", true);
+            }
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+}
@@ -0,0 +1,68 @@
+package io.nonostante.games.cordova;
+
+import com.google.android.gms.games.Player;
+import com.google.android.gms.games.leaderboard.LeaderboardScore;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+
+/**
+ * Player dictionary of a response: every distinct score holder is recorded
+ * once, the first time it is met, and scores refer to it by index.
+ */
+class PlayerTable {
+    private final HashMap<String, Integer> mIndexes = new HashMap<String, Integer>();
+    private final JSONArray mPlayers = new JSONArray();
+
+    /** Returns the index of the score holder, adding it if new. */
+    synchronized int intern(LeaderboardScore score) {
+        Player player = score.getScoreHolder();
+        String playerId = player.getPlayerId();
+        Integer index = mIndexes.get(playerId);
+        if (index != null) {
+            return index;
+        }
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("playerId", playerId)
+                    .put("playerName", player.getDisplayName())
+                    .put("playerImage", CompactEncoding.playerImage(score));
+        } catch (JSONException e) {
+        }
+
+        index = mPlayers.length();
+        mPlayers.put(json);
+        mIndexes.put(playerId, index);
+        return index;
+    }
+
+    /** Converts the scores, interning their holders. */
+    JSONArray toJSON(Iterable<LeaderboardScore> scores) {
+        JSONArray array = new JSONArray();
+        for (LeaderboardScore score : scores) {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("player", intern(score))
+                        .put("score", score.getRawScore())
+                        .put("rank", score.getRank())
+                        .put("timestamp", score.getTimestampMillis())
+                        .put("tag", score.getScoreTag());
+            } catch (JSONException e) {
+            }
+            array.put(json);
+        }
+        return array;
+    }
+
+    synchronized JSONArray getPlayers() {
+        return mPlayers;
+    }
+
+    synchronized int size() {
+        return mPlayers.length();
+    }
+}
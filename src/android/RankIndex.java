@@ -0,0 +1,302 @@
+package io.nonostante.games.cordova;
+
+import android.os.SystemClock;
+
+import com.google.android.gms.games.leaderboard.Leaderboard;
+import com.google.android.gms.games.leaderboard.LeaderboardScore;
+import com.google.android.gms.games.leaderboard.LeaderboardScoreBuffer;
+import com.google.android.gms.games.leaderboard.LeaderboardVariant;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ranks and scores seen in the public leaderboard pages loaded by the
+ * plugin, per (leaderboardId, span), used by the estimateRank action to
+ * place a score without a service round trip.
+ * <p>
+ * Every leaderboard keeps its known (rank, score) points sorted by rank, so
+ * scores are sorted too and a score is placed with a binary search: between
+ * the rank after the last better score and the rank of the first score it
+ * beats. The estimate interpolates between the two on the score; it is exact
+ * when the score ties a known one or falls between adjacent ranks.
+ * <p>
+ * A new page replaces the points of its rank range and drops the older
+ * points it contradicts (the leaderboard moved since they were loaded). The
+ * sort order is taken from the pages (larger is better until a page shows
+ * otherwise). The number of leaderboards and of points per leaderboard is
+ * bounded: least recently used leaderboards are evicted, and the points
+ * farthest from the last page are dropped.
+ */
+class RankIndex {
+    static final String TAG = "RankIndex";
+
+    static final int DEFAULT_MAX_LEADERBOARDS = 32;
+    static final int DEFAULT_MAX_POINTS = 1000;
+
+    static final long UNKNOWN = -1;
+
+    private static final class Points {
+        // sorted by rank, scores normalized so that better is larger
+        long[] ranks = new long[0];
+        long[] scores = new long[0];
+        long[] loadedAt = new long[0];
+        boolean smallerIsBetter = false;
+        long total = UNKNOWN;
+
+        int size() {
+            return ranks.length;
+        }
+
+        long normalize(long score) {
+            return smallerIsBetter ? -score : score;
+        }
+
+        // First point not better than the normalized score
+        int search(long score) {
+            int low = 0;
+            int high = scores.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (scores[mid] > score) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final int mMaxPoints;
+    private final LinkedHashMap<String, Points> mLeaderboards;
+
+    private long mPages = 0;
+    private long mEstimates = 0;
+    private long mExact = 0;
+    private long mMisses = 0;
+
+    RankIndex(final int maxLeaderboards, int maxPoints) {
+        mMaxPoints = Math.max(2, maxPoints);
+        mLeaderboards = new LinkedHashMap<String, Points>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Points> eldest) {
+                return size() > Math.max(1, maxLeaderboards);
+            }
+        };
+    }
+
+    static String key(String leaderboardId, int span) {
+        return leaderboardId + '|' + span;
+    }
+
+    /** Merges a page of public scores; leaderboard may be null. */
+    void add(String leaderboardId, int span, Leaderboard leaderboard, LeaderboardScoreBuffer buffer) {
+        int count = buffer.getCount();
+        long[] ranks = new long[count];
+        long[] scores = new long[count];
+        int size = 0;
+        for (int a = 0; a < count; a++) {
+            LeaderboardScore score = buffer.get(a);
+            if (score.getRank() == LeaderboardScore.LEADERBOARD_RANK_UNKNOWN
+                    || (size > 0 && score.getRank() < ranks[size - 1])) {
+                continue;
+            }
+            ranks[size] = score.getRank();
+            scores[size] = score.getRawScore();
+            size++;
+        }
+        if (size == 0) {
+            return;
+        }
+
+        long total = UNKNOWN;
+        if (leaderboard != null && leaderboard.getVariants() != null) {
+            for (LeaderboardVariant variant : leaderboard.getVariants()) {
+                if (variant.getTimeSpan() == span && variant.getCollection() == LeaderboardVariant.COLLECTION_PUBLIC) {
+                    total = variant.getNumScores();
+                }
+            }
+        }
+
+        synchronized (this) {
+            String key = key(leaderboardId, span);
+            Points points = mLeaderboards.get(key);
+            if (points == null) {
+                points = new Points();
+                mLeaderboards.put(key, points);
+            }
+            merge(points, ranks, scores, size, total);
+            mPages++;
+        }
+    }
+
+    private void merge(Points points, long[] ranks, long[] raw, int size, long total) {
+        // the first two different scores tell the order; the points stored
+        // with the wrong one are dropped
+        for (int a = 1; a < size; a++) {
+            if (raw[a] != raw[0]) {
+                boolean smallerIsBetter = raw[a] > raw[0];
+                if (smallerIsBetter != points.smallerIsBetter) {
+                    points.smallerIsBetter = smallerIsBetter;
+                    points.ranks = new long[0];
+                    points.scores = new long[0];
+                    points.loadedAt = new long[0];
+                }
+                break;
+            }
+        }
+        if (total != UNKNOWN) {
+            points.total = total;
+        }
+
+        long[] scores = new long[size];
+        for (int a = 0; a < size; a++) {
+            scores[a] = points.normalize(raw[a]);
+        }
+        long first = ranks[0];
+        long last = ranks[size - 1];
+        long now = SystemClock.elapsedRealtime();
+
+        // kept: the points above the page at least as good as its best score,
+        // and the points below it at most as good as its worst one
+        int before = 0;
+        while (before < points.size() && points.ranks[before] < first && points.scores[before] >= scores[0]) {
+            before++;
+        }
+        int after = points.size();
+        while (after > before && points.ranks[after - 1] > last && points.scores[after - 1] <= scores[size - 1]) {
+            after--;
+        }
+        int length = before + size + points.size() - after;
+        long[] mergedRanks = new long[length];
+        long[] mergedScores = new long[length];
+        long[] mergedLoadedAt = new long[length];
+        System.arraycopy(points.ranks, 0, mergedRanks, 0, before);
+        System.arraycopy(points.scores, 0, mergedScores, 0, before);
+        System.arraycopy(points.loadedAt, 0, mergedLoadedAt, 0, before);
+        System.arraycopy(ranks, 0, mergedRanks, before, size);
+        System.arraycopy(scores, 0, mergedScores, before, size);
+        for (int a = before; a < before + size; a++) {
+            mergedLoadedAt[a] = now;
+        }
+        System.arraycopy(points.ranks, after, mergedRanks, before + size, points.size() - after);
+        System.arraycopy(points.scores, after, mergedScores, before + size, points.size() - after);
+        System.arraycopy(points.loadedAt, after, mergedLoadedAt, before + size, points.size() - after);
+
+        // bounded, keeping the points nearest to the page
+        int start = before;
+        int end = Math.min(before + size, before + mMaxPoints);
+        while (end - start < mMaxPoints && (start > 0 || end < length)) {
+            if (start > 0 && (end == length || first - mergedRanks[start - 1] <= mergedRanks[end] - last)) {
+                start--;
+            } else {
+                end++;
+            }
+        }
+        if (start > 0 || end < length) {
+            mergedRanks = Arrays.copyOfRange(mergedRanks, start, end);
+            mergedScores = Arrays.copyOfRange(mergedScores, start, end);
+            mergedLoadedAt = Arrays.copyOfRange(mergedLoadedAt, start, end);
+        }
+        points.ranks = mergedRanks;
+        points.scores = mergedScores;
+        points.loadedAt = mergedLoadedAt;
+    }
+
+    /**
+     * Places a score in a leaderboard: returns the estimated rank with its
+     * range (high UNKNOWN when below every known score of a leaderboard of
+     * unknown size), or null if no page of the leaderboard was loaded.
+     */
+    synchronized JSONObject estimate(String leaderboardId, int span, long score) {
+        Points points = mLeaderboards.get(key(leaderboardId, span));
+        if (points == null || points.size() == 0) {
+            mMisses++;
+            return null;
+        }
+
+        long value = points.normalize(score);
+        int index = points.search(value);
+        int count = points.size();
+        long now = SystemClock.elapsedRealtime();
+
+        long low;
+        long high;
+        long rank;
+        long loadedAt;
+        if (index < count && points.scores[index] == value) {
+            // ties share the rank
+            low = high = rank = points.ranks[index];
+            loadedAt = points.loadedAt[index];
+        } else if (index == 0) {
+            low = 1;
+            high = points.ranks[0];
+            rank = high;
+            loadedAt = points.loadedAt[0];
+        } else if (index == count) {
+            low = points.ranks[count - 1] + 1;
+            high = points.total != UNKNOWN ? Math.max(low, points.total + 1) : UNKNOWN;
+            rank = low;
+            loadedAt = points.loadedAt[count - 1];
+        } else {
+            low = points.ranks[index - 1] + 1;
+            high = Math.max(low, points.ranks[index]);
+            double better = points.scores[index - 1];
+            double worse = points.scores[index];
+            double fraction = (better - value) / (better - worse);
+            rank = Math.max(low, Math.min(high, Math.round(points.ranks[index - 1] + fraction * (points.ranks[index] - points.ranks[index - 1]))));
+            loadedAt = Math.min(points.loadedAt[index - 1], points.loadedAt[index]);
+        }
+
+        mEstimates++;
+        if (low == high) {
+            mExact++;
+        }
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("rank", rank)
+                    .put("low", low)
+                    .put("high", high)
+                    .put("exact", low == high)
+                    .put("total", points.total)
+                    .put("ageMs", now - loadedAt);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    synchronized void clear() {
+        mLeaderboards.clear();
+    }
+
+    synchronized JSONObject toJSON() {
+        int count = 0;
+        for (Points points : mLeaderboards.values()) {
+            count += points.size();
+        }
+        JSONObject json = new JSONObject();
+        try {
+            json.put("leaderboards", mLeaderboards.size())
+                    .put("points", count)
+                    .put("pages", mPages)
+                    .put("estimates", mEstimates)
+                    .put("exact", mExact)
+                    .put("misses", mMisses);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    synchronized void reset() {
+        mPages = 0;
+        mEstimates = 0;
+        mExact = 0;
+        mMisses = 0;
+    }
+}
@@ -0,0 +1,357 @@
+package io.nonostante.games.cordova;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.Result;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.ResultCallbacks;
+import com.google.android.gms.common.api.Status;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gate in front of the leaderboard and achievement requests, so bursts of
+ * calls wait on the device instead of failing with quota errors.
+ * <p>
+ * Reads and writes draw from separate token buckets (a sustained rate per
+ * second and a burst), and the number of requests in flight is capped.
+ * Requests beyond the budgets are queued and issued as tokens refill and
+ * requests complete: first the reads a caller is waiting for, then the
+ * writes, then the background reads (cache refreshes). Background reads
+ * may only take half of the in-flight slots, so that a visible read always
+ * finds one soon.
+ * <p>
+ * Queued requests are only issued while signed in. They fail with
+ * API_NOT_CONNECTED when the sign-in fails or the player logs out, as do the
+ * requests which cannot be issued.
+ * <p>
+ * A request holds its in-flight slot until its result callback runs or it
+ * is cancelled, so the time it holds the slot is bounded by its timeout, or
+ * by the deadline of the call it is tracked for (see {@link CallDeadlines}).
+ * Requests without a tracked deadline (writes, replays, background reads)
+ * must be given a timeout, or a stalled one would hold its slot forever.
+ */
+class RateLimiter {
+    static final String TAG = "RateLimiter";
+
+    static final int READ = 0;
+    static final int WRITE = 1;
+    static final int BACKGROUND_READ = 2;
+
+    private static final String[] KIND_NAMES = {"read", "write", "backgroundRead"};
+
+    static final int DEFAULT_READ_RATE = 10;
+    static final int DEFAULT_READ_BURST = 20;
+    static final int DEFAULT_WRITE_RATE = 5;
+    static final int DEFAULT_WRITE_BURST = 10;
+    static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    // How often in-flight requests are checked for cancellation while the cap is reached
+    private static final long SWEEP_DELAY_MS = 1000;
+
+    /** Whether requests may be issued, i.e. the client is signed in. */
+    interface Session {
+        boolean isConnected();
+    }
+
+    /** A service request, issued once the limiter lets it through. */
+    interface Request<R extends Result> {
+        PendingResult<? extends R> issue();
+    }
+
+    // Token bucket, refilled continuously
+    private static final class Bucket {
+        final double ratePerMs;
+        final double capacity;
+        double tokens;
+        long refilledAt;
+
+        Bucket(int ratePerSecond, int burst) {
+            ratePerMs = Math.max(1, ratePerSecond) / 1000.0;
+            capacity = Math.max(1, burst);
+            tokens = capacity;
+            refilledAt = SystemClock.elapsedRealtime();
+        }
+
+        void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerMs);
+            refilledAt = now;
+        }
+
+        // ms until a token is available
+        long waitMs() {
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / ratePerMs);
+        }
+    }
+
+    private final class Queued<R extends Result> {
+        final int kind;
+        final Request<R> request;
+        final ResultCallbacks<? super R> callback;
+        final long timeoutMs;
+        final long queuedAt = SystemClock.elapsedRealtime();
+        PendingResult<? extends R> pending;
+
+        Queued(int kind, Request<R> request, ResultCallbacks<? super R> callback, long timeoutMs) {
+            this.kind = kind;
+            this.request = request;
+            this.callback = callback;
+            this.timeoutMs = timeoutMs;
+        }
+
+        void issue() {
+            try {
+                pending = request.issue();
+            } catch (RuntimeException e) {
+                // e.g. the client disconnected since the request was queued
+                Log.e(TAG, "Unable to issue a " + KIND_NAMES[kind] + " request", e);
+                release(this);
+                callback.onFailure(new Status(CommonStatusCodes.API_NOT_CONNECTED, e.getMessage()));
+                return;
+            }
+
+            ResultCallback<R> completion = new ResultCallback<R>() {
+                @Override
+                public void onResult(R result) {
+                    release(Queued.this);
+                    callback.onResult(result);
+                }
+            };
+            if (timeoutMs > 0) {
+                pending.setResultCallback(completion, timeoutMs, TimeUnit.MILLISECONDS);
+            } else {
+                pending.setResultCallback(completion);
+            }
+            if (pending.isCanceled()) {
+                release(this);
+            }
+        }
+    }
+
+    private final Handler mHandler;
+    private final Session mSession;
+    private final Bucket mReads;
+    private final Bucket mWrites;
+    private final int mMaxInFlight;
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Queued<?>>[] mQueues = new ArrayDeque[]{
+            new ArrayDeque<Queued<?>>(), new ArrayDeque<Queued<?>>(), new ArrayDeque<Queued<?>>()};
+    private final ArrayList<Queued<?>> mInFlight = new ArrayList<Queued<?>>();
+    private boolean mDrainScheduled = false;
+
+    private final long[] mIssued = new long[3];
+    private final long[] mDelayed = new long[3];
+    private final long[] mWaitMs = new long[3];
+    private final int[] mMaxDepth = new int[3];
+    private int mMaxInFlightSeen = 0;
+    private long mFailed = 0;
+
+    RateLimiter(Handler handler, Session session, int readRate, int readBurst, int writeRate, int writeBurst, int maxInFlight) {
+        mHandler = handler;
+        mSession = session;
+        mReads = new Bucket(readRate, readBurst);
+        mWrites = new Bucket(writeRate, writeBurst);
+        mMaxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Issues the request now if the budgets allow it, later otherwise; the
+     * callback gets its result (with a timeout status after timeoutMs when
+     * positive) like a callback set on the request itself.
+     */
+    <R extends Result> void submit(int kind, Request<R> request, ResultCallbacks<? super R> callback, long timeoutMs) {
+        Queued<R> queued = new Queued<R>(kind, request, callback, timeoutMs);
+        synchronized (this) {
+            ArrayDeque<Queued<?>> queue = mQueues[kind];
+            queue.addLast(queued);
+            mMaxDepth[kind] = Math.max(mMaxDepth[kind], queue.size());
+        }
+        drain();
+    }
+
+    /** Submits a request cancelled by the deadline of its call (see {@link CallDeadlines#track}). */
+    <R extends Result> void submit(int kind, Request<R> request, ResultCallbacks<? super R> callback) {
+        submit(kind, request, callback, 0);
+    }
+
+    /** Signed in again: issues the requests that waited for it. */
+    void resume() {
+        drain();
+    }
+
+    /** The sign-in failed or the player logged out: fails the queued requests. */
+    void fail() {
+        Status status = new Status(CommonStatusCodes.API_NOT_CONNECTED, "Not Connected");
+        // failures may queue follow-up requests (batches), failed in turn
+        while (true) {
+            ArrayList<Queued<?>> queued = new ArrayList<Queued<?>>();
+            synchronized (this) {
+                for (ArrayDeque<Queued<?>> queue : mQueues) {
+                    queued.addAll(queue);
+                    queue.clear();
+                }
+                mFailed += queued.size();
+            }
+            if (queued.isEmpty()) {
+                return;
+            }
+            Log.w(TAG, "Not connected, " + queued.size() + " queued request(s) failed");
+            for (Queued<?> request : queued) {
+                request.callback.onFailure(status);
+            }
+        }
+    }
+
+    private void release(Queued<?> queued) {
+        synchronized (this) {
+            if (!mInFlight.remove(queued)) {
+                return;
+            }
+        }
+        drain();
+    }
+
+    private final Runnable mScheduledDrain = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RateLimiter.this) {
+                mDrainScheduled = false;
+            }
+            drain();
+        }
+    };
+
+    // Issues the queued requests the budgets allow, in priority order
+    private void drain() {
+        ArrayList<Queued<?>> ready = new ArrayList<Queued<?>>();
+        long retryMs = -1;
+        synchronized (this) {
+            if (!mSession.isConnected()) {
+                return;
+            }
+            sweepCancelled();
+
+            long now = SystemClock.elapsedRealtime();
+            mReads.refill(now);
+            mWrites.refill(now);
+
+            while (mInFlight.size() < mMaxInFlight) {
+                Queued<?> next = null;
+                for (int kind = READ; kind <= BACKGROUND_READ && next == null; kind++) {
+                    ArrayDeque<Queued<?>> queue = mQueues[kind];
+                    if (queue.isEmpty()) {
+                        continue;
+                    }
+                    if (kind == BACKGROUND_READ && backgroundInFlight() >= Math.max(1, mMaxInFlight / 2)) {
+                        continue;
+                    }
+                    Bucket bucket = kind == WRITE ? mWrites : mReads;
+                    long waitMs = bucket.waitMs();
+                    if (waitMs > 0) {
+                        retryMs = retryMs < 0 ? waitMs : Math.min(retryMs, waitMs);
+                        continue;
+                    }
+                    bucket.tokens -= 1;
+                    next = queue.removeFirst();
+                }
+                if (next == null) {
+                    break;
+                }
+
+                long waited = now - next.queuedAt;
+                if (waited > 0) {
+                    mDelayed[next.kind]++;
+                    mWaitMs[next.kind] += waited;
+                }
+                mIssued[next.kind]++;
+                mInFlight.add(next);
+                ready.add(next);
+            }
+            mMaxInFlightSeen = Math.max(mMaxInFlightSeen, mInFlight.size());
+
+            if (mInFlight.size() >= mMaxInFlight && hasQueued()) {
+                retryMs = retryMs < 0 ? SWEEP_DELAY_MS : Math.min(retryMs, SWEEP_DELAY_MS);
+            }
+            if (retryMs >= 0 && !mDrainScheduled) {
+                mDrainScheduled = true;
+                mHandler.postDelayed(mScheduledDrain, retryMs);
+            }
+        }
+
+        for (Queued<?> queued : ready) {
+            queued.issue();
+        }
+    }
+
+    // Cancelled requests never get their result callback
+    private void sweepCancelled() {
+        Iterator<Queued<?>> it = mInFlight.iterator();
+        while (it.hasNext()) {
+            PendingResult<?> pending = it.next().pending;
+            if (pending != null && pending.isCanceled()) {
+                it.remove();
+            }
+        }
+    }
+
+    private int backgroundInFlight() {
+        int count = 0;
+        for (Queued<?> queued : mInFlight) {
+            if (queued.kind == BACKGROUND_READ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean hasQueued() {
+        for (ArrayDeque<Queued<?>> queue : mQueues) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            for (int kind = READ; kind <= BACKGROUND_READ; kind++) {
+                json.put(KIND_NAMES[kind], new JSONObject()
+                        .put("queued", mQueues[kind].size())
+                        .put("maxQueued", mMaxDepth[kind])
+                        .put("issued", mIssued[kind])
+                        .put("delayed", mDelayed[kind])
+                        .put("averageWaitMs", mDelayed[kind] > 0 ? mWaitMs[kind] / mDelayed[kind] : 0));
+            }
+            json.put("inFlight", mInFlight.size())
+                    .put("maxInFlight", mMaxInFlightSeen)
+                    .put("inFlightCap", mMaxInFlight)
+                    .put("failed", mFailed);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    synchronized void reset() {
+        for (int kind = READ; kind <= BACKGROUND_READ; kind++) {
+            mIssued[kind] = 0;
+            mDelayed[kind] = 0;
+            mWaitMs[kind] = 0;
+            mMaxDepth[kind] = mQueues[kind].size();
+        }
+        mMaxInFlightSeen = mInFlight.size();
+        mFailed = 0;
+    }
+}
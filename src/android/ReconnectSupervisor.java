@@ -0,0 +1,362 @@
+package io.nonostante.games.cordova;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.games.GamesStatusCodes;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Single owner of the reconnections of {@link GameHelper}, and interceptor
+ * failing fast or retrying the calls while the service is unreachable.
+ * <p>
+ * Reconnections requested while one is scheduled or running are merged into
+ * it. They are delayed with an exponential backoff, with jitter so clients
+ * don't come back in lockstep: half of the delay is fixed, half random.
+ * <p>
+ * The circuit breaker opens after a number of consecutive retryable
+ * failures (network errors, timeouts, lost connection): calls needing the
+ * service then fail right away with SERVICE_UNAVAILABLE instead of waiting
+ * for the service. Once the open time elapsed, one call goes through as a
+ * probe; its success closes the circuit, its failure opens it again. Calls
+ * the plugin can answer without the service (cache hits, see
+ * {@link ActionDispatcher.Action#answersLocally}) always go through.
+ * <p>
+ * Calls of retryable actions (idempotent reads, see
+ * {@link ActionDispatcher.Action#retryable}) failing for a retryable reason
+ * are re-issued instead of reporting the error: after the reconnection when
+ * the connection was lost, after the backoff delay otherwise. The error is
+ * reported once the retries are exhausted or the circuit opened.
+ */
+class ReconnectSupervisor implements ActionDispatcher.Interceptor {
+    static final String TAG = "ReconnectSupervisor";
+
+    static final long DEFAULT_BASE_DELAY_MS = 500;
+    static final long DEFAULT_MAX_DELAY_MS = 30 * 1000;
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final long DEFAULT_OPEN_MS = 30 * 1000;
+
+    // Re-issues of a call before its error is reported
+    static final int MAX_RETRIES = 2;
+
+    private final CordovaWebView mWebView;
+    private final Handler mHandler;
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final int mFailureThreshold;
+    private final long mOpenMs;
+    private final Random mRandom = new Random();
+
+    // Reconnects the client, set by the helper
+    private Runnable mReconnect;
+
+    // calls waiting for the reconnection
+    private final ArrayList<Runnable> mWaiting = new ArrayList<Runnable>();
+    private boolean mScheduled = false;
+    private boolean mReconnecting = false;
+
+    // consecutive retryable failures
+    private int mFailures = 0;
+    private boolean mOpen = false;
+    private long mOpenedAt = 0;
+    private boolean mProbing = false;
+
+    private long mReconnects = 0;
+    private long mRetries = 0;
+    private long mRejected = 0;
+    private long mOpenings = 0;
+
+    ReconnectSupervisor(CordovaWebView webView, Handler handler, long baseDelayMs, long maxDelayMs, int failureThreshold, long openMs) {
+        mWebView = webView;
+        mHandler = handler;
+        mBaseDelayMs = Math.max(1, baseDelayMs);
+        mMaxDelayMs = Math.max(mBaseDelayMs, maxDelayMs);
+        mFailureThreshold = Math.max(1, failureThreshold);
+        mOpenMs = openMs;
+    }
+
+    synchronized void setReconnect(Runnable reconnect) {
+        mReconnect = reconnect;
+    }
+
+    /** Whether a failure with the given status code may succeed once retried. */
+    static boolean isRetryable(int statusCode) {
+        return WriteJournal.isRetryable(statusCode);
+    }
+
+    /** Whether the failure means the client must reconnect first. */
+    static boolean needsReconnect(int statusCode) {
+        return statusCode == GamesStatusCodes.STATUS_CLIENT_RECONNECT_REQUIRED
+                || statusCode == CommonStatusCodes.API_NOT_CONNECTED;
+    }
+
+    /** Schedules a reconnection after the backoff delay, unless one is already on its way. */
+    void requestReconnect() {
+        long delay;
+        synchronized (this) {
+            if (mScheduled || mReconnecting) {
+                return;
+            }
+            mScheduled = true;
+            delay = nextDelay();
+        }
+        Log.d(TAG, "Reconnecting in " + delay + " ms");
+        mHandler.postDelayed(mRunReconnect, delay);
+    }
+
+    private final Runnable mRunReconnect = new Runnable() {
+        @Override
+        public void run() {
+            Runnable reconnect;
+            synchronized (ReconnectSupervisor.this) {
+                mScheduled = false;
+                mReconnecting = true;
+                mReconnects++;
+                reconnect = mReconnect;
+            }
+            if (reconnect != null) {
+                reconnect.run();
+            } else {
+                onConnectionFailed();
+            }
+        }
+    };
+
+    /** The client connected: closes the circuit and re-issues the waiting calls. */
+    void onConnected() {
+        synchronized (this) {
+            mReconnecting = false;
+        }
+        onSuccess();
+        runWaiting();
+    }
+
+    /** The reconnection failed: tries again later, or fails the waiting calls if the circuit opened. */
+    void onConnectionFailed() {
+        boolean again;
+        synchronized (this) {
+            if (!mReconnecting) {
+                return;
+            }
+            mReconnecting = false;
+            onFailure();
+            again = !mOpen && !mWaiting.isEmpty();
+        }
+        if (again) {
+            requestReconnect();
+        } else {
+            runWaiting();
+        }
+    }
+
+    /** Whether a call needing the service may go through, false while the circuit is open. */
+    synchronized boolean allowRequest() {
+        if (!mOpen) {
+            return true;
+        }
+        if (mProbing || SystemClock.elapsedRealtime() - mOpenedAt < mOpenMs) {
+            return false;
+        }
+        Log.d(TAG, "Circuit half open, probing the service");
+        mProbing = true;
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        if (mOpen) {
+            Log.d(TAG, "Circuit closed");
+        }
+        mFailures = 0;
+        mOpen = false;
+        mProbing = false;
+    }
+
+    synchronized void onFailure() {
+        mFailures++;
+        if (mProbing || (!mOpen && mFailures >= mFailureThreshold)) {
+            Log.w(TAG, "Circuit open after " + mFailures + " failure(s)");
+            if (!mOpen) {
+                mOpenings++;
+            }
+            mOpen = true;
+            mOpenedAt = SystemClock.elapsedRealtime();
+            mProbing = false;
+        }
+    }
+
+    // The call neither succeeded nor failed for a retryable reason: another may probe
+    private synchronized void onOtherResult() {
+        mProbing = false;
+    }
+
+    synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    private void retry(Runnable task, boolean reconnect) {
+        long delay;
+        synchronized (this) {
+            mRetries++;
+            if (reconnect) {
+                mWaiting.add(task);
+                delay = -1;
+            } else {
+                delay = nextDelay();
+            }
+        }
+        if (delay < 0) {
+            requestReconnect();
+        } else {
+            mHandler.postDelayed(task, delay);
+        }
+    }
+
+    private void runWaiting() {
+        Runnable[] waiting;
+        synchronized (this) {
+            waiting = mWaiting.toArray(new Runnable[mWaiting.size()]);
+            mWaiting.clear();
+        }
+        for (Runnable task : waiting) {
+            task.run();
+        }
+    }
+
+    // Exponential in the consecutive failures, half fixed and half random
+    private long nextDelay() {
+        long delay = mBaseDelayMs << Math.min(mFailures, 20);
+        if (delay <= 0 || delay > mMaxDelayMs) {
+            delay = mMaxDelayMs;
+        }
+        long half = delay / 2;
+        return delay - half + (long) (mRandom.nextDouble() * half);
+    }
+
+    @Override
+    public void intercept(ActionDispatcher.Call call) throws JSONException {
+        boolean retryable = call.action.retryable(call.args);
+        // answered without the service, so neither guarded nor counted
+        if ((!call.action.requiresConnection && !retryable) || call.action.answersLocally(call.args)) {
+            call.proceed();
+            return;
+        }
+
+        if (!allowRequest()) {
+            synchronized (this) {
+                mRejected++;
+            }
+            call.callbackContext.error(GameServices.getErrorJSON(GameServices.ERROR.SERVICE_UNAVAILABLE, "Service Unavailable"));
+            return;
+        }
+
+        Guarded guarded = new Guarded(call.callbackContext, retryable);
+        guarded.mCall = call.withCallbackContext(guarded);
+        guarded.mCall.proceed();
+    }
+
+    // Reports the outcome of a call to the circuit breaker, and re-issues it
+    // instead of reporting a retryable failure while retries are left.
+    private final class Guarded extends CallbackContext implements ActionMetrics.Forwarding {
+        private final CallbackContext mTarget;
+        private final boolean mRetryable;
+        private ActionDispatcher.Call mCall;
+        private int mAttempts = 0;
+
+        Guarded(CallbackContext target, boolean retryable) {
+            super(target.getCallbackId(), mWebView);
+            mTarget = target;
+            mRetryable = retryable;
+        }
+
+        @Override
+        public CallbackContext getTarget() {
+            return mTarget;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            if (result.getKeepCallback()) {
+                mTarget.sendPluginResult(result);
+                return;
+            }
+
+            if (result.getStatus() == PluginResult.Status.OK.ordinal()) {
+                onSuccess();
+                mTarget.sendPluginResult(result);
+                return;
+            }
+
+            int statusCode = serviceCode(result);
+            if (!isRetryable(statusCode)) {
+                onOtherResult();
+                mTarget.sendPluginResult(result);
+                return;
+            }
+
+            onFailure();
+            if (!mRetryable || mAttempts >= MAX_RETRIES || isOpen()) {
+                mTarget.sendPluginResult(result);
+                return;
+            }
+
+            mAttempts++;
+            Log.d(TAG, String.format("Retrying %s (%d/%d) after status %d", mCall.name, mAttempts, MAX_RETRIES, statusCode));
+            final PluginResult error = result;
+            retry(new Runnable() {
+                @Override
+                public void run() {
+                    if (isOpen()) {
+                        mTarget.sendPluginResult(error);
+                        return;
+                    }
+                    try {
+                        mCall.proceed();
+                    } catch (JSONException e) {
+                        mTarget.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                    }
+                }
+            }, needsReconnect(statusCode));
+        }
+    }
+
+    // Service status code of an error result, 0 if none; decoded on the failure path only
+    private static int serviceCode(PluginResult result) {
+        try {
+            return new JSONObject(result.getMessage()).optInt("serviceCode");
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+
+    synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("circuit", !mOpen ? "closed" : mProbing ? "halfOpen" : "open")
+                    .put("failures", mFailures)
+                    .put("openings", mOpenings)
+                    .put("reconnects", mReconnects)
+                    .put("retries", mRetries)
+                    .put("rejected", mRejected)
+                    .put("waiting", mWaiting.size());
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    synchronized void reset() {
+        mOpenings = 0;
+        mReconnects = 0;
+        mRetries = 0;
+        mRejected = 0;
+    }
+}
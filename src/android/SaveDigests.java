@@ -0,0 +1,139 @@
+package io.nonostante.games.cordova;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Digest of the last version of every save committed from this device,
+ * persisted in the app private storage.
+ * <p>
+ * A save matching the last committed version does not need to be uploaded
+ * again, as long as the service still holds that version: the modification
+ * time of the save is recorded with the digest, and a save modified since
+ * (e.g. from another device) never matches.
+ */
+class SaveDigests {
+    static final String TAG = "SaveDigests";
+
+    private static final String FILE_NAME = "gameservices.saves.json";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    // name -> [digest, modified]
+    private final LinkedHashMap<String, Object[]> mEntries = new LinkedHashMap<String, Object[]>();
+    private boolean mLoaded = false;
+
+    SaveDigests(File dir) {
+        mFile = new File(dir, FILE_NAME);
+    }
+
+    /** Whether the save was last committed from here with this digest, and not modified since. */
+    synchronized boolean matches(String name, String digest, long modified) {
+        load();
+        Object[] entry = mEntries.get(name);
+        return entry != null && entry[0].equals(digest) && (Long) entry[1] == modified;
+    }
+
+    synchronized void put(String name, String digest, long modified) {
+        load();
+        mEntries.put(name, new Object[]{digest, modified});
+        save();
+    }
+
+    synchronized void remove(String name) {
+        load();
+        if (mEntries.remove(name) != null) {
+            save();
+        }
+    }
+
+    /** Forgets every digest (e.g. on logout). */
+    synchronized void clear() {
+        mEntries.clear();
+        mLoaded = true;
+        mFile.delete();
+    }
+
+    private void save() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, Object[]> entry : mEntries.entrySet()) {
+                json.put(entry.getKey(), new JSONObject()
+                        .put("digest", entry.getValue()[0])
+                        .put("modified", entry.getValue()[1]));
+            }
+        } catch (JSONException e) {
+            return;
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(json.toString().getBytes(UTF8));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save digests", e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try {
+            byte[] data = new byte[(int) mFile.length()];
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                int offset = 0;
+                while (offset < data.length) {
+                    int read = in.read(data, offset, data.length - offset);
+                    if (read < 0) {
+                        break;
+                    }
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+
+            JSONObject json = new JSONObject(new String(data, UTF8));
+            Iterator<String> names = json.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                JSONObject entry = json.getJSONObject(name);
+                mEntries.put(name, new Object[]{entry.getString("digest"), entry.getLong("modified")});
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Unable to load digests", e);
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package io.nonostante.games.cordova;
+
+import android.util.Log;
+
+import com.google.android.gms.games.snapshot.SnapshotMetadata;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Local copy of the saves of the signed in player, in the app private
+ * storage, which answers loads and accepts writes without waiting for the
+ * service.
+ * <p>
+ * Every save has a data file and an entry in an index holding its metadata,
+ * its sync state and the modification time of the service version the local
+ * copy is based on. Data files are replaced by renaming complete temporary
+ * files and the index is rewritten the same way, so a crash leaves either
+ * the previous or the new version.
+ */
+class SaveMirror {
+    static final String TAG = "SaveMirror";
+
+    /** Same data as the service version it is based on */
+    static final String STATE_SYNCED = "synced";
+    /** Changed locally, to upload */
+    static final String STATE_PENDING = "pending";
+    /** Deleted locally, to delete on the service */
+    static final String STATE_DELETED = "deleted";
+    /** Changed locally and on the service, waiting for a resolution */
+    static final String STATE_CONFLICT = "conflict";
+
+    private static final String DIR_NAME = "gameservices.saves";
+    private static final String INDEX_NAME = "index.json";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final class Entry {
+        final String name;
+        String state;
+        long size;
+        long modified;
+        long playedTime = SnapshotMetadata.PLAYED_TIME_UNKNOWN;
+        long progressValue = SnapshotMetadata.PROGRESS_VALUE_UNKNOWN;
+        String description;
+        // modification time of the service version, 0 if none
+        long base;
+        // incremented by every local change
+        long version;
+        // last upload: stored size (-1 if none) and whether it was skipped as unchanged
+        long storedSize = -1;
+        boolean skipped;
+        String error;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        Entry copy() {
+            Entry copy = new Entry(name);
+            copy.state = state;
+            copy.size = size;
+            copy.modified = modified;
+            copy.playedTime = playedTime;
+            copy.progressValue = progressValue;
+            copy.description = description;
+            copy.base = base;
+            copy.version = version;
+            copy.storedSize = storedSize;
+            copy.skipped = skipped;
+            copy.error = error;
+            return copy;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("name", name)
+                        .put("state", state)
+                        .put("size", size)
+                        .put("modified", modified)
+                        .put("playedTime", playedTime)
+                        .put("progressValue", progressValue)
+                        .put("description", description)
+                        .put("remoteModified", base)
+                        .put("version", version);
+                if (storedSize >= 0) {
+                    json.put("storedSize", storedSize)
+                            .put("skipped", skipped)
+                            .put("bytesSaved", skipped ? size : size - storedSize);
+                }
+                if (error != null) {
+                    json.put("error", error);
+                }
+            } catch (JSONException e) {
+            }
+            return json;
+        }
+
+        static Entry fromJSON(JSONObject json) throws JSONException {
+            Entry entry = new Entry(json.getString("name"));
+            entry.state = json.getString("state");
+            entry.size = json.getLong("size");
+            entry.modified = json.getLong("modified");
+            entry.playedTime = json.getLong("playedTime");
+            entry.progressValue = json.getLong("progressValue");
+            entry.description = json.optString("description", null);
+            entry.base = json.getLong("remoteModified");
+            entry.version = json.getLong("version");
+            entry.storedSize = json.optLong("storedSize", -1);
+            entry.skipped = json.optBoolean("skipped");
+            entry.error = json.optString("error", null);
+            return entry;
+        }
+    }
+
+    private final File mDir;
+    private final File mIndex;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private String mPlayerId;
+    private boolean mLoaded = false;
+
+    SaveMirror(File dir) {
+        mDir = new File(dir, DIR_NAME);
+        mIndex = new File(mDir, INDEX_NAME);
+    }
+
+    synchronized Entry get(String name) {
+        load();
+        Entry entry = mEntries.get(name);
+        return entry != null ? entry.copy() : null;
+    }
+
+    synchronized List<Entry> entries() {
+        load();
+        ArrayList<Entry> entries = new ArrayList<Entry>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            entries.add(entry.copy());
+        }
+        return entries;
+    }
+
+    synchronized JSONArray toJSON() {
+        load();
+        JSONArray array = new JSONArray();
+        for (Entry entry : mEntries.values()) {
+            array.put(entry.toJSON());
+        }
+        return array;
+    }
+
+    File dataFile(String name) {
+        return new File(mDir, key(name) + ".bin");
+    }
+
+    /** A temporary file to write a new version of the save into. */
+    File tempFile(String name, String suffix) {
+        mDir.mkdirs();
+        return new File(mDir, key(name) + "." + suffix + ".tmp");
+    }
+
+    /** Replaces the save with a complete local version, to upload. */
+    synchronized Entry putLocal(String name, File data, long size, JSONObject options) throws IOException {
+        load();
+        replace(name, data);
+
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            entry = new Entry(name);
+            mEntries.put(name, entry);
+        }
+        entry.state = STATE_PENDING;
+        entry.size = size;
+        entry.modified = System.currentTimeMillis();
+        entry.version++;
+        entry.error = null;
+        if (options != null) {
+            entry.description = options.has("description") ? options.optString("description") : entry.description;
+            entry.playedTime = options.optLong("playedTime", entry.playedTime);
+            entry.progressValue = options.optLong("progressValue", entry.progressValue);
+        }
+        save();
+        return entry.copy();
+    }
+
+    /**
+     * Replaces the save with the service version, unless it changed locally
+     * since the given version (-1 to only add missing saves). Returns null
+     * when it did.
+     */
+    synchronized Entry putRemote(String name, File data, long size, SnapshotMetadata metadata, long expectedVersion) throws IOException {
+        load();
+        Entry entry = mEntries.get(name);
+        if (expectedVersion < 0 ? entry != null : entry == null || entry.version != expectedVersion) {
+            data.delete();
+            return null;
+        }
+        replace(name, data);
+
+        if (entry == null) {
+            entry = new Entry(name);
+            mEntries.put(name, entry);
+        }
+        entry.state = STATE_SYNCED;
+        entry.size = size;
+        entry.modified = metadata.getLastModifiedTimestamp();
+        entry.playedTime = metadata.getPlayedTime();
+        entry.progressValue = metadata.getProgressValue();
+        entry.description = metadata.getDescription();
+        entry.base = metadata.getLastModifiedTimestamp();
+        entry.storedSize = -1;
+        entry.error = null;
+        save();
+        return entry.copy();
+    }
+
+    /** Deletes the save locally, to delete on the service. */
+    synchronized Entry markDeleted(String name) {
+        load();
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            entry = new Entry(name);
+            mEntries.put(name, entry);
+        }
+        entry.state = STATE_DELETED;
+        entry.size = 0;
+        entry.modified = System.currentTimeMillis();
+        entry.version++;
+        entry.error = null;
+        dataFile(name).delete();
+        save();
+        return entry.copy();
+    }
+
+    /**
+     * The given version is now on the service, last modified at base.
+     * Returns the entry, still pending if it changed since.
+     */
+    synchronized Entry markSynced(String name, long version, long base, long storedSize, boolean skipped) {
+        load();
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        entry.base = base;
+        entry.storedSize = storedSize;
+        entry.skipped = skipped;
+        entry.error = null;
+        if (entry.version == version) {
+            entry.state = STATE_SYNCED;
+        }
+        save();
+        return entry.copy();
+    }
+
+    /** The local version becomes the one to upload over the given service version. */
+    synchronized Entry rebase(String name, long version, long base) {
+        load();
+        Entry entry = mEntries.get(name);
+        if (entry == null || entry.version != version) {
+            return null;
+        }
+        entry.base = base;
+        if (!STATE_DELETED.equals(entry.state)) {
+            entry.state = STATE_PENDING;
+        }
+        save();
+        return entry.copy();
+    }
+
+    synchronized Entry setState(String name, String state, String error) {
+        load();
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (state != null) {
+            entry.state = state;
+        }
+        entry.error = error;
+        save();
+        return entry.copy();
+    }
+
+    /** Forgets the save, unless it changed locally since the given version. */
+    synchronized boolean remove(String name, long version) {
+        load();
+        Entry entry = mEntries.get(name);
+        if (entry == null || entry.version != version) {
+            return false;
+        }
+        mEntries.remove(name);
+        dataFile(name).delete();
+        save();
+        return true;
+    }
+
+    /**
+     * Clears the saves of another player. Returns whether they were cleared.
+     * Saves written before any player was recorded (offline before the
+     * first sign-in, or after a logout) are kept and adopted by this one.
+     */
+    synchronized boolean checkPlayer(String playerId) {
+        load();
+        if (playerId == null || playerId.equals(mPlayerId)) {
+            return false;
+        }
+        if (mPlayerId == null) {
+            mPlayerId = playerId;
+            save();
+            return false;
+        }
+        boolean hadSaves = !mEntries.isEmpty();
+        clear();
+        mPlayerId = playerId;
+        save();
+        return hadSaves;
+    }
+
+    /** Forgets every save, including the changes not uploaded yet (e.g. on logout). */
+    synchronized void clear() {
+        mEntries.clear();
+        mPlayerId = null;
+        mLoaded = true;
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private void replace(String name, File data) throws IOException {
+        if (!data.renameTo(dataFile(name))) {
+            data.delete();
+            throw new IOException("rename failed");
+        }
+    }
+
+    private void save() {
+        JSONObject json = new JSONObject();
+        try {
+            JSONArray saves = new JSONArray();
+            for (Entry entry : mEntries.values()) {
+                saves.put(entry.toJSON());
+            }
+            json.put("playerId", mPlayerId)
+                    .put("saves", saves);
+        } catch (JSONException e) {
+            return;
+        }
+
+        mDir.mkdirs();
+        File tmp = new File(mIndex.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(json.toString().getBytes(UTF8));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mIndex)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save the index", e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mIndex.exists()) {
+            return;
+        }
+
+        try {
+            byte[] data = new byte[(int) mIndex.length()];
+            FileInputStream in = new FileInputStream(mIndex);
+            try {
+                int offset = 0;
+                while (offset < data.length) {
+                    int read = in.read(data, offset, data.length - offset);
+                    if (read < 0) {
+                        break;
+                    }
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+
+            JSONObject json = new JSONObject(new String(data, UTF8));
+            mPlayerId = json.optString("playerId", null);
+            JSONArray saves = json.getJSONArray("saves");
+            for (int a = 0, l = saves.length(); a < l; a++) {
+                Entry entry = Entry.fromJSON(saves.getJSONObject(a));
+                mEntries.put(entry.name, entry);
+            }
+            Log.d(TAG, "Loaded " + saves.length() + " save(s)");
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Unable to load the index", e);
+        }
+    }
+
+    // File names are derived from the save names, which may hold any character
+    private static String key(String name) {
+        try {
+            return SnapshotCodec.toHex(MessageDigest.getInstance("SHA-1").digest(name.getBytes(UTF8)));
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(name.hashCode());
+        }
+    }
+}
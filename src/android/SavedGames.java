@@ -0,0 +1,1029 @@
+package io.nonostante.games.cordova;
+
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.games.Games;
+import com.google.android.gms.games.GamesStatusCodes;
+import com.google.android.gms.games.snapshot.Snapshot;
+import com.google.android.gms.games.snapshot.SnapshotMetadata;
+import com.google.android.gms.games.snapshot.SnapshotMetadataBuffer;
+import com.google.android.gms.games.snapshot.SnapshotMetadataChange;
+import com.google.android.gms.games.snapshot.Snapshots;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+/**
+ * Saved games, used by the saveGame, loadSaveGame and deleteSaveGame
+ * actions.
+ * <p>
+ * Saves are answered from a local mirror ({@link SaveMirror}): writes and
+ * deletions are accepted as soon as they are stored locally, and loads read
+ * the local copy without waiting for the service. A save missing from the
+ * mirror is loaded from the service and added to it. Once connected, the
+ * mirror is synced in the background: local changes are uploaded, and saves
+ * changed on the service (e.g. from another device) are downloaded.
+ * <p>
+ * A save changed on both sides is resolved with the conflict policy: the
+ * most recent, longest playtime or highest progress version wins, ties
+ * keeping the local one. With the custom policy the save stays in conflict
+ * until the caller picks a side, see {@link #resolve}. Sync state changes
+ * and conflicts are sent to the watching callback.
+ * <p>
+ * Save data never travels as a single argument or result. A save is opened
+ * with its size, written chunk by chunk as the caller sends the chunks, and
+ * stored once the announced size is reached; a load sends every chunk as its
+ * own binary result over the kept callback. Chunks go through buffers of the
+ * chunk size which are reused across transfers. Uploads are compressed and
+ * skipped when unchanged, see {@link SnapshotCodec} and {@link SaveDigests}.
+ */
+class SavedGames {
+    static final String TAG = "SavedGames";
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    static final int MIN_CHUNK_SIZE = 4 * 1024;
+    static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    static final String POLICY_MOST_RECENT = "mostRecent";
+    static final String POLICY_LONGEST_PLAYTIME = "longestPlaytime";
+    static final String POLICY_HIGHEST_PROGRESS = "highestProgress";
+    static final String POLICY_CUSTOM = "custom";
+
+    static final String CHOICE_LOCAL = "local";
+    static final String CHOICE_REMOTE = "remote";
+
+    // Released chunk buffers kept for the next transfers
+    private static final int MAX_POOLED_BUFFERS = 2;
+
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+    /** Connection the mirror is synced with. */
+    interface Session {
+        /** The client if connected, null otherwise. */
+        GoogleApiClient getClient();
+
+        String getPlayerId();
+    }
+
+    private final int mChunkSize;
+    private final Executor mExecutor;
+    private final Session mSession;
+    private final SaveMirror mMirror;
+    private final SaveDigests mDigests;
+    private final ConcurrentHashMap<Integer, Upload> mUploads = new ConcurrentHashMap<Integer, Upload>();
+    private final ArrayList<byte[]> mBuffers = new ArrayList<byte[]>();
+    // sides picked by the caller for saves in conflict, applied by the next sync
+    private final ConcurrentHashMap<String, String> mResolutions = new ConcurrentHashMap<String, String>();
+
+    private volatile String mPolicy = POLICY_MOST_RECENT;
+    private volatile CallbackContext mWatcher;
+    private boolean mSyncing = false;
+    private boolean mSyncAgain = false;
+
+    // Reads and writes of the save files run on the executor
+    SavedGames(File dir, int chunkSize, String policy, Executor executor, Session session) {
+        mChunkSize = clampChunkSize(chunkSize);
+        mExecutor = executor;
+        mSession = session;
+        mMirror = new SaveMirror(dir);
+        mDigests = new SaveDigests(dir);
+        if (!setPolicy(policy)) {
+            Log.w(TAG, "Unknown conflict policy " + policy + ", using " + mPolicy);
+        }
+    }
+
+    /** Returns false, keeping the current policy, if the policy is unknown. */
+    boolean setPolicy(String policy) {
+        if (!POLICY_MOST_RECENT.equals(policy) && !POLICY_LONGEST_PLAYTIME.equals(policy)
+                && !POLICY_HIGHEST_PROGRESS.equals(policy) && !POLICY_CUSTOM.equals(policy)) {
+            return false;
+        }
+        mPolicy = policy;
+        return true;
+    }
+
+    /** Sync state changes and conflicts are sent to the callback, which is kept. */
+    void watch(CallbackContext callbackContext) {
+        mWatcher = callbackContext;
+    }
+
+    /** Picks the local or the service version of a save in conflict, then syncs. */
+    void resolve(String name, String choice) {
+        mResolutions.put(name, choice);
+        sync();
+    }
+
+    /** Sync state of every save of the mirror. */
+    JSONArray getStates() {
+        return mMirror.toJSON();
+    }
+
+    /**
+     * Opens the save for writing. The callback first receives the transfer
+     * id and chunk size to send the data with (see {@link #write}), then the
+     * state of the save once stored locally.
+     */
+    void save(String name, int size, JSONObject options, CallbackContext callbackContext) {
+        // registered first: the first chunk may come as soon as the id is sent
+        Upload upload = new Upload(name, size, chunkSize(options), options, callbackContext);
+        mUploads.put(upload.id, upload);
+        upload.start();
+    }
+
+    /**
+     * Writes the next chunk of a save, sent base64-encoded at the given
+     * offset. The chunk callback receives the number of bytes written so far.
+     */
+    void write(int transferId, int offset, String data, CallbackContext chunkCallback) {
+        Upload upload = mUploads.get(transferId);
+        if (upload == null) {
+            chunkCallback.error(GameServices.getErrorJSON(GameServices.ERROR.INVALID_ARGUMENT, "Unknown Transfer"));
+            return;
+        }
+        upload.write(offset, data, chunkCallback);
+    }
+
+    void cancel(int transferId) {
+        Upload upload = mUploads.get(transferId);
+        if (upload != null) {
+            upload.cancel();
+        }
+    }
+
+    void cancelAll() {
+        for (Upload upload : mUploads.values()) {
+            upload.cancel();
+        }
+    }
+
+    /**
+     * Cancels the transfers and forgets the saves of the player, including
+     * the changes not uploaded yet (e.g. on logout).
+     */
+    void clear() {
+        cancelAll();
+        mResolutions.clear();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMirror.clear();
+                mDigests.clear();
+            }
+        });
+    }
+
+    /**
+     * Reads a save. The callback receives its state, then the data as binary
+     * chunks, then a last result flagged as done. A missing save only sends
+     * the last result, with found set to false.
+     */
+    void load(final String name, JSONObject options, final CallbackContext callbackContext) {
+        final int chunkSize = chunkSize(options);
+        SaveMirror.Entry entry = mMirror.get(name);
+        if (entry != null) {
+            readLocal(entry, chunkSize, callbackContext);
+            return;
+        }
+
+        final GoogleApiClient client = mSession.getClient();
+        if (client == null) {
+            callbackContext.error(GameServices.getErrorJSON(GameServices.ERROR.NOT_CONNECTED, "Not Connected"));
+            return;
+        }
+
+        Games.Snapshots.open(client, name, false, Snapshots.RESOLUTION_POLICY_MOST_RECENTLY_MODIFIED)
+                .setResultCallback(new ResultCallback<Snapshots.OpenSnapshotResult>() {
+                    @Override
+                    public void onResult(@NonNull final Snapshots.OpenSnapshotResult result) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                Status status = result.getStatus();
+                                if (status.getStatusCode() == GamesStatusCodes.STATUS_SNAPSHOT_NOT_FOUND) {
+                                    callbackContext.success(done(name, false, 0));
+                                } else if (!status.isSuccess()) {
+                                    fail(callbackContext, "Open " + name, status);
+                                } else {
+                                    Snapshot snapshot = result.getSnapshot();
+                                    readRemote(snapshot, chunkSize, callbackContext);
+                                    Games.Snapshots.discardAndClose(client, snapshot);
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
+    /** Deletes a save locally, the deletion is synced later. Deleting a missing save succeeds. */
+    void delete(String name, CallbackContext callbackContext) {
+        SaveMirror.Entry entry = mMirror.markDeleted(name);
+        callbackContext.success();
+        notifyState(entry);
+        sync();
+    }
+
+    /**
+     * Uploads the local changes and downloads the saves changed on the
+     * service, one save at a time. Does nothing while disconnected; a sync
+     * requested while one runs starts once it ends.
+     */
+    void sync() {
+        final GoogleApiClient client = mSession.getClient();
+        if (client == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mSyncing) {
+                mSyncAgain = true;
+                return;
+            }
+            mSyncing = true;
+            mSyncAgain = false;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mMirror.checkPlayer(mSession.getPlayerId())) {
+                    Log.w(TAG, "Player changed, saves of the previous player dropped");
+                    mDigests.clear();
+                }
+
+                Games.Snapshots.load(client, true).setResultCallback(new ResultCallback<Snapshots.LoadSnapshotsResult>() {
+                    @Override
+                    public void onResult(@NonNull final Snapshots.LoadSnapshotsResult result) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                Status status = result.getStatus();
+                                if (!status.isSuccess()) {
+                                    Log.e(TAG, "Sync failed -> " + status.getStatusMessage());
+                                    result.release();
+                                    endSync();
+                                    return;
+                                }
+
+                                HashMap<String, JSONObject> remote = new HashMap<String, JSONObject>();
+                                SnapshotMetadataBuffer buffer = result.getSnapshots();
+                                for (SnapshotMetadata metadata : buffer) {
+                                    remote.put(metadata.getUniqueName(), toJSON(metadata, -1));
+                                }
+                                result.release();
+
+                                List<SaveMirror.Entry> entries = mMirror.entries();
+                                Log.d(TAG, String.format("Sync of %d save(s), %d on the service", entries.size(), remote.size()));
+                                syncNext(client, entries, 0, remote);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void endSync() {
+        boolean again;
+        synchronized (this) {
+            mSyncing = false;
+            again = mSyncAgain;
+        }
+        if (again) {
+            sync();
+        }
+    }
+
+    private void syncNext(final GoogleApiClient client, final List<SaveMirror.Entry> entries, final int index, final HashMap<String, JSONObject> remote) {
+        if (index == entries.size()) {
+            endSync();
+            return;
+        }
+
+        Runnable next = new Runnable() {
+            @Override
+            public void run() {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        syncNext(client, entries, index + 1, remote);
+                    }
+                });
+            }
+        };
+
+        SaveMirror.Entry entry = entries.get(index);
+        JSONObject remoteEntry = remote.get(entry.name);
+        long remoteModified = remoteEntry != null ? remoteEntry.optLong("modified") : 0;
+
+        if (SaveMirror.STATE_SYNCED.equals(entry.state)) {
+            if (remoteEntry == null) {
+                // deleted from another device
+                if (mMirror.remove(entry.name, entry.version)) {
+                    notifyRemoved(entry.name);
+                }
+                next.run();
+            } else if (remoteModified != entry.base) {
+                download(client, entry.name, entry.version, next);
+            } else {
+                next.run();
+            }
+        } else if (remoteEntry != null && remoteModified != entry.base) {
+            resolveConflict(client, entry, remoteEntry, next);
+        } else if (SaveMirror.STATE_DELETED.equals(entry.state)) {
+            deleteRemote(client, entry, remoteEntry != null, next);
+        } else {
+            upload(client, entry, next);
+        }
+    }
+
+    // The save changed locally and on the service since the version the local copy is based on
+    private void resolveConflict(GoogleApiClient client, SaveMirror.Entry entry, JSONObject remote, Runnable next) {
+        String choice = mResolutions.remove(entry.name);
+        if (choice == null) {
+            choice = choose(mPolicy, entry, remote);
+        }
+
+        if (choice == null) {
+            if (!SaveMirror.STATE_CONFLICT.equals(entry.state)) {
+                notifyState(mMirror.setState(entry.name, SaveMirror.STATE_CONFLICT, null));
+            }
+            JSONObject event = new JSONObject();
+            try {
+                event.put("type", "conflict")
+                        .put("name", entry.name)
+                        .put("local", entry.toJSON())
+                        .put("remote", remote);
+            } catch (JSONException e) {
+            }
+            notify(event);
+            next.run();
+            return;
+        }
+
+        Log.d(TAG, String.format("Conflict on %s resolved with the %s version", entry.name, choice));
+        if (CHOICE_REMOTE.equals(choice)) {
+            download(client, entry.name, entry.version, next);
+            return;
+        }
+
+        SaveMirror.Entry rebased = mMirror.rebase(entry.name, entry.version, remote.optLong("modified"));
+        if (rebased == null) {
+            // changed locally meanwhile, the next sync sees it
+            next.run();
+        } else if (SaveMirror.STATE_DELETED.equals(rebased.state)) {
+            deleteRemote(client, rebased, true, next);
+        } else {
+            upload(client, rebased, next);
+        }
+    }
+
+    // Side winning a conflict, null to let the caller pick it
+    private static String choose(String policy, SaveMirror.Entry local, JSONObject remote) {
+        long localValue;
+        long remoteValue;
+        if (POLICY_LONGEST_PLAYTIME.equals(policy)) {
+            localValue = local.playedTime;
+            remoteValue = remote.optLong("playedTime");
+        } else if (POLICY_HIGHEST_PROGRESS.equals(policy)) {
+            localValue = local.progressValue;
+            remoteValue = remote.optLong("progressValue");
+        } else if (POLICY_MOST_RECENT.equals(policy)) {
+            localValue = local.modified;
+            remoteValue = remote.optLong("modified");
+        } else {
+            return null;
+        }
+        return localValue >= remoteValue ? CHOICE_LOCAL : CHOICE_REMOTE;
+    }
+
+    // Uploads the local version of the save
+    private void upload(final GoogleApiClient client, final SaveMirror.Entry entry, final Runnable next) {
+        Games.Snapshots.open(client, entry.name, true, Snapshots.RESOLUTION_POLICY_MOST_RECENTLY_MODIFIED)
+                .setResultCallback(new ResultCallback<Snapshots.OpenSnapshotResult>() {
+                    @Override
+                    public void onResult(@NonNull final Snapshots.OpenSnapshotResult result) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                Status status = result.getStatus();
+                                if (!status.isSuccess()) {
+                                    syncFailed(entry.name, "Open", status);
+                                    next.run();
+                                    return;
+                                }
+                                commit(client, entry, result.getSnapshot(), next);
+                            }
+                        });
+                    }
+                });
+    }
+
+    private void commit(final GoogleApiClient client, final SaveMirror.Entry entry, Snapshot snapshot, final Runnable next) {
+        byte[] buffer = acquireBuffer(mChunkSize);
+        byte[] output = acquireBuffer(mChunkSize);
+        final String digest;
+        final long stored;
+        SnapshotCodec.Writer writer = null;
+        FileInputStream in = null;
+        try {
+            writer = new SnapshotCodec.Writer(snapshot.getSnapshotContents().getParcelFileDescriptor().getFileDescriptor(),
+                    (int) entry.size, true, metadataKey(entry), output);
+            in = new FileInputStream(mMirror.dataFile(entry.name));
+            final SnapshotCodec.Writer target = writer;
+            SnapshotCodec.copy(in.getChannel(), buffer, new SnapshotCodec.ChunkSink() {
+                @Override
+                public void onChunk(byte[] data, int count) throws IOException {
+                    target.write(data, count);
+                }
+            });
+            digest = writer.finish();
+            stored = writer.getStoredSize();
+        } catch (IOException e) {
+            Log.e(TAG, "Upload " + entry.name + " failed", e);
+            Games.Snapshots.discardAndClose(client, snapshot);
+            notifyState(mMirror.setState(entry.name, null, String.valueOf(e.getMessage())));
+            next.run();
+            return;
+        } finally {
+            close(in);
+            if (writer != null) {
+                writer.release();
+            }
+            releaseBuffer(buffer);
+            releaseBuffer(output);
+        }
+
+        long current = snapshot.getMetadata().getLastModifiedTimestamp();
+        if (digest != null && mDigests.matches(entry.name, digest, current)) {
+            Log.d(TAG, String.format("Save %s unchanged, upload skipped (%d bytes)", entry.name, entry.size));
+            Games.Snapshots.discardAndClose(client, snapshot);
+            notifyState(mMirror.markSynced(entry.name, entry.version, current, 0, true));
+            next.run();
+            return;
+        }
+
+        Games.Snapshots.commitAndClose(client, snapshot, metadataChange(entry))
+                .setResultCallback(new ResultCallback<Snapshots.CommitSnapshotResult>() {
+                    @Override
+                    public void onResult(@NonNull final Snapshots.CommitSnapshotResult result) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                Status status = result.getStatus();
+                                if (!status.isSuccess()) {
+                                    syncFailed(entry.name, "Commit", status);
+                                    next.run();
+                                    return;
+                                }
+
+                                long modified = result.getSnapshotMetadata().getLastModifiedTimestamp();
+                                if (digest != null) {
+                                    mDigests.put(entry.name, digest, modified);
+                                }
+                                Log.d(TAG, String.format("Uploaded %s (%d bytes, %d stored)", entry.name, entry.size, stored));
+                                notifyState(mMirror.markSynced(entry.name, entry.version, modified, stored, false));
+                                next.run();
+                            }
+                        });
+                    }
+                });
+    }
+
+    // Replaces the local copy with the service version, unless it changed locally since the given version
+    private void download(final GoogleApiClient client, final String name, final long version, final Runnable next) {
+        Games.Snapshots.open(client, name, false, Snapshots.RESOLUTION_POLICY_MOST_RECENTLY_MODIFIED)
+                .setResultCallback(new ResultCallback<Snapshots.OpenSnapshotResult>() {
+                    @Override
+                    public void onResult(@NonNull final Snapshots.OpenSnapshotResult result) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                Status status = result.getStatus();
+                                if (!status.isSuccess()) {
+                                    syncFailed(name, "Open", status);
+                                    next.run();
+                                    return;
+                                }
+
+                                Snapshot snapshot = result.getSnapshot();
+                                try {
+                                    SaveMirror.Entry entry = mirror(snapshot, version, mChunkSize, null);
+                                    if (entry != null) {
+                                        Log.d(TAG, String.format("Downloaded %s (%d bytes)", name, entry.size));
+                                        notifyState(entry);
+                                    }
+                                } catch (IOException | DataFormatException e) {
+                                    Log.e(TAG, "Download " + name + " failed", e);
+                                    notifyState(mMirror.setState(name, null, String.valueOf(e.getMessage())));
+                                } finally {
+                                    Games.Snapshots.discardAndClose(client, snapshot);
+                                }
+                                next.run();
+                            }
+                        });
+                    }
+                });
+    }
+
+    // Deletes the save from the service, then forgets it
+    private void deleteRemote(final GoogleApiClient client, final SaveMirror.Entry entry, boolean exists, final Runnable next) {
+        if (!exists) {
+            mMirror.remove(entry.name, entry.version);
+            next.run();
+            return;
+        }
+
+        Games.Snapshots.open(client, entry.name, false, Snapshots.RESOLUTION_POLICY_MOST_RECENTLY_MODIFIED)
+                .setResultCallback(new ResultCallback<Snapshots.OpenSnapshotResult>() {
+                    @Override
+                    public void onResult(@NonNull Snapshots.OpenSnapshotResult result) {
+                        final Status status = result.getStatus();
+                        if (!status.isSuccess()) {
+                            mExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (status.getStatusCode() == GamesStatusCodes.STATUS_SNAPSHOT_NOT_FOUND) {
+                                        removed(entry);
+                                    } else {
+                                        syncFailed(entry.name, "Open", status);
+                                    }
+                                    next.run();
+                                }
+                            });
+                            return;
+                        }
+
+                        Games.Snapshots.delete(client, result.getSnapshot().getMetadata())
+                                .setResultCallback(new ResultCallback<Snapshots.DeleteSnapshotResult>() {
+                                    @Override
+                                    public void onResult(@NonNull final Snapshots.DeleteSnapshotResult deleted) {
+                                        mExecutor.execute(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                if (deleted.getStatus().isSuccess()) {
+                                                    removed(entry);
+                                                } else {
+                                                    syncFailed(entry.name, "Delete", deleted.getStatus());
+                                                }
+                                                next.run();
+                                            }
+                                        });
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private void removed(SaveMirror.Entry entry) {
+        mDigests.remove(entry.name);
+        if (mMirror.remove(entry.name, entry.version)) {
+            notifyRemoved(entry.name);
+        }
+    }
+
+    private void readLocal(SaveMirror.Entry entry, int chunkSize, CallbackContext callbackContext) {
+        if (SaveMirror.STATE_DELETED.equals(entry.state)) {
+            callbackContext.success(done(entry.name, false, 0));
+            return;
+        }
+
+        PluginResult header = new PluginResult(PluginResult.Status.OK, entry.toJSON());
+        header.setKeepCallback(true);
+        callbackContext.sendPluginResult(header);
+
+        byte[] buffer = acquireBuffer(chunkSize);
+        FileInputStream in = null;
+        long read;
+        try {
+            in = new FileInputStream(mMirror.dataFile(entry.name));
+            read = SnapshotCodec.copy(in.getChannel(), buffer, new ChunkSender(callbackContext));
+        } catch (IOException e) {
+            Log.e(TAG, "Read " + entry.name + " failed", e);
+            callbackContext.error(GameServices.getErrorJSON(GameServices.ERROR.SERVICE_ERROR, String.valueOf(e.getMessage())));
+            return;
+        } finally {
+            close(in);
+            releaseBuffer(buffer);
+        }
+
+        Log.d(TAG, String.format("Loaded %s (%d bytes, %s)", entry.name, read, entry.state));
+        callbackContext.success(done(entry.name, true, read));
+    }
+
+    // Sends a save loaded from the service, adding it to the mirror
+    private void readRemote(Snapshot snapshot, int chunkSize, CallbackContext callbackContext) {
+        String name = snapshot.getMetadata().getUniqueName();
+        long size;
+        try {
+            size = mirror(snapshot, -1, chunkSize, callbackContext).size;
+        } catch (IOException | DataFormatException e) {
+            Log.e(TAG, "Read " + name + " failed", e);
+            callbackContext.error(GameServices.getErrorJSON(GameServices.ERROR.SERVICE_ERROR, String.valueOf(e.getMessage())));
+            return;
+        }
+
+        Log.d(TAG, String.format("Loaded %s (%d bytes, remote)", name, size));
+        callbackContext.success(done(name, true, size));
+    }
+
+    /**
+     * Copies the service version of a save into the mirror, see
+     * {@link SaveMirror#putRemote}. With a callback, the state is sent first,
+     * then every chunk as it is copied. Returns the state, null if not copied.
+     */
+    private SaveMirror.Entry mirror(Snapshot snapshot, long version, int chunkSize, CallbackContext callbackContext) throws IOException, DataFormatException {
+        SnapshotMetadata metadata = snapshot.getMetadata();
+        String name = metadata.getUniqueName();
+        ParcelFileDescriptor file = snapshot.getSnapshotContents().getParcelFileDescriptor();
+        SnapshotCodec.Reader reader = new SnapshotCodec.Reader(file.getFileDescriptor(), file.getStatSize());
+
+        final ChunkSender sender = callbackContext != null ? new ChunkSender(callbackContext) : null;
+        if (sender != null) {
+            JSONObject json = toJSON(metadata, reader.size);
+            putJSON(json, "state", SaveMirror.STATE_SYNCED);
+            putJSON(json, "storedSize", reader.storedSize);
+            PluginResult header = new PluginResult(PluginResult.Status.OK, json);
+            header.setKeepCallback(true);
+            callbackContext.sendPluginResult(header);
+        }
+
+        File tmp = mMirror.tempFile(name, "download");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        byte[] buffer = acquireBuffer(chunkSize);
+        byte[] input = reader.compressed ? acquireBuffer(chunkSize) : null;
+        long size;
+        try {
+            size = reader.read(buffer, input, new SnapshotCodec.ChunkSink() {
+                @Override
+                public void onChunk(byte[] data, int count) throws IOException {
+                    out.write(data, 0, count);
+                    if (sender != null) {
+                        sender.onChunk(data, count);
+                    }
+                }
+            });
+            out.getFD().sync();
+            out.close();
+        } catch (IOException | DataFormatException e) {
+            close(out);
+            tmp.delete();
+            throw e;
+        } finally {
+            releaseBuffer(buffer);
+            if (input != null) {
+                releaseBuffer(input);
+            }
+        }
+
+        SaveMirror.Entry entry = mMirror.putRemote(name, tmp, size, metadata, version);
+        if (entry == null && sender != null) {
+            // added meanwhile, the caller still got the service version
+            entry = new SaveMirror.Entry(name);
+            entry.size = size;
+        }
+        return entry;
+    }
+
+    // Sends every chunk as a binary result over the kept callback
+    private static final class ChunkSender implements SnapshotCodec.ChunkSink {
+        private final CallbackContext mCallbackContext;
+
+        ChunkSender(CallbackContext callbackContext) {
+            mCallbackContext = callbackContext;
+        }
+
+        @Override
+        public void onChunk(byte[] buffer, int count) {
+            // the message is encoded when the result is created, the buffer can be refilled right after
+            PluginResult chunk = new PluginResult(PluginResult.Status.OK, count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+            chunk.setKeepCallback(true);
+            mCallbackContext.sendPluginResult(chunk);
+        }
+    }
+
+    // A save being written into the mirror
+    private final class Upload {
+        final int id = sNextId.getAndIncrement();
+
+        private final String mName;
+        private final int mSize;
+        private final int mChunkSize;
+        private final JSONObject mOptions;
+        private final CallbackContext mCallbackContext;
+
+        private File mFile;
+        private FileOutputStream mOut;
+        private byte[] mBuffer;
+        private int mWritten = 0;
+        private boolean mEnded = false;
+
+        Upload(String name, int size, int chunkSize, JSONObject options, CallbackContext callbackContext) {
+            mName = name;
+            mSize = size;
+            mChunkSize = chunkSize;
+            mOptions = options;
+            mCallbackContext = callbackContext;
+        }
+
+        // Asks for the data, or stores right away an empty save
+        synchronized void start() {
+            mFile = mMirror.tempFile(mName, String.valueOf(id));
+            try {
+                mOut = new FileOutputStream(mFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Write " + mName + " failed", e);
+                drop(GameServices.getErrorJSON(GameServices.ERROR.SERVICE_ERROR, String.valueOf(e.getMessage())));
+                return;
+            }
+
+            if (mSize <= 0) {
+                complete();
+                return;
+            }
+
+            mBuffer = acquireBuffer(mChunkSize);
+
+            JSONObject json = new JSONObject();
+            try {
+                json.put("transferId", id)
+                        .put("chunkSize", mChunkSize);
+            } catch (JSONException e) {
+            }
+            PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+            result.setKeepCallback(true);
+            mCallbackContext.sendPluginResult(result);
+        }
+
+        synchronized void write(int offset, String data, CallbackContext chunkCallback) {
+            if (mEnded) {
+                chunkCallback.error(GameServices.getErrorJSON(GameServices.ERROR.INVALID_ARGUMENT, "Unknown Transfer"));
+                return;
+            }
+
+            int count = offset == mWritten ? decodeBase64(data, mBuffer) : -1;
+            if (count < 0 || mWritten + count > mSize) {
+                JSONObject error = GameServices.getErrorJSON(GameServices.ERROR.INVALID_ARGUMENT, "Invalid Chunk");
+                chunkCallback.error(error);
+                drop(error);
+                return;
+            }
+
+            try {
+                mOut.write(mBuffer, 0, count);
+            } catch (IOException e) {
+                Log.e(TAG, "Write " + mName + " failed", e);
+                JSONObject error = GameServices.getErrorJSON(GameServices.ERROR.SERVICE_ERROR, String.valueOf(e.getMessage()));
+                chunkCallback.error(error);
+                drop(error);
+                return;
+            }
+
+            mWritten += count;
+            chunkCallback.success(mWritten);
+            if (mWritten == mSize) {
+                complete();
+            }
+        }
+
+        synchronized void cancel() {
+            if (!mEnded) {
+                drop(GameServices.getErrorJSON(GameServices.ERROR.CANCELLED, "Cancelled"));
+            }
+        }
+
+        // Replaces the local copy, then syncs it
+        private void complete() {
+            SaveMirror.Entry entry;
+            try {
+                mOut.getFD().sync();
+                mOut.close();
+                mOut = null;
+                entry = mMirror.putLocal(mName, mFile, mWritten, mOptions);
+            } catch (IOException e) {
+                Log.e(TAG, "Write " + mName + " failed", e);
+                drop(GameServices.getErrorJSON(GameServices.ERROR.SERVICE_ERROR, String.valueOf(e.getMessage())));
+                return;
+            }
+            end();
+            if (mOptions != null && mOptions.optBoolean("force")) {
+                mDigests.remove(mName);
+            }
+
+            Log.d(TAG, String.format("Saved %s locally (%d bytes)", mName, mWritten));
+            mCallbackContext.success(entry.toJSON());
+            notifyState(entry);
+            sync();
+        }
+
+        // Drops the new version, the previous one is kept
+        private void drop(JSONObject error) {
+            end();
+            close(mOut);
+            mFile.delete();
+            mCallbackContext.error(error);
+        }
+
+        private void end() {
+            mEnded = true;
+            mUploads.remove(id);
+            if (mBuffer != null) {
+                releaseBuffer(mBuffer);
+                mBuffer = null;
+            }
+        }
+    }
+
+    private void syncFailed(String name, String operation, Status status) {
+        Log.e(TAG, operation + " " + name + " failed -> " + status.getStatusMessage());
+        notifyState(mMirror.setState(name, null, status.getStatusMessage()));
+    }
+
+    private void notifyState(SaveMirror.Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        JSONObject event = new JSONObject();
+        try {
+            event.put("type", "state")
+                    .put("name", entry.name)
+                    .put("save", entry.toJSON());
+        } catch (JSONException e) {
+        }
+        notify(event);
+    }
+
+    private void notifyRemoved(String name) {
+        JSONObject event = new JSONObject();
+        try {
+            event.put("type", "removed")
+                    .put("name", name);
+        } catch (JSONException e) {
+        }
+        notify(event);
+    }
+
+    private void notify(JSONObject event) {
+        CallbackContext watcher = mWatcher;
+        if (watcher != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+            result.setKeepCallback(true);
+            watcher.sendPluginResult(result);
+        }
+    }
+
+    private int chunkSize(JSONObject options) {
+        return options != null && options.has("chunkSize") ? clampChunkSize(options.optInt("chunkSize")) : mChunkSize;
+    }
+
+    private static int clampChunkSize(int chunkSize) {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(chunkSize, MAX_CHUNK_SIZE));
+    }
+
+    private byte[] acquireBuffer(int size) {
+        synchronized (mBuffers) {
+            for (int a = mBuffers.size() - 1; a >= 0; a--) {
+                if (mBuffers.get(a).length == size) {
+                    return mBuffers.remove(a);
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        synchronized (mBuffers) {
+            if (mBuffers.size() == MAX_POOLED_BUFFERS) {
+                mBuffers.remove(0);
+            }
+            mBuffers.add(buffer);
+        }
+    }
+
+    // Digested with the data: a metadata change alone is uploaded
+    private static String metadataKey(SaveMirror.Entry entry) {
+        return entry.description + '|' + entry.playedTime + '|' + entry.progressValue;
+    }
+
+    private static SnapshotMetadataChange metadataChange(SaveMirror.Entry entry) {
+        SnapshotMetadataChange.Builder builder = new SnapshotMetadataChange.Builder();
+        if (entry.description != null) {
+            builder.setDescription(entry.description);
+        }
+        if (entry.playedTime != SnapshotMetadata.PLAYED_TIME_UNKNOWN) {
+            builder.setPlayedTimeMillis(entry.playedTime);
+        }
+        if (entry.progressValue != SnapshotMetadata.PROGRESS_VALUE_UNKNOWN) {
+            builder.setProgressValue(entry.progressValue);
+        }
+        return builder.build();
+    }
+
+    private static void fail(CallbackContext callbackContext, String operation, Status status) {
+        Log.e(TAG, operation + " failed -> " + status.getStatusMessage());
+        callbackContext.error(GameServices.getErrorJSON(GameServices.ERROR.SERVICE_ERROR, status.getStatusCode(), status.getStatusMessage()));
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static JSONObject toJSON(SnapshotMetadata metadata, long size) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("name", metadata.getUniqueName())
+                    .put("size", size)
+                    .put("description", metadata.getDescription())
+                    .put("modified", metadata.getLastModifiedTimestamp())
+                    .put("playedTime", metadata.getPlayedTime())
+                    .put("progressValue", metadata.getProgressValue())
+                    .put("deviceName", metadata.getDeviceName());
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    private static void putJSON(JSONObject json, String key, Object value) {
+        try {
+            json.put(key, value);
+        } catch (JSONException e) {
+        }
+    }
+
+    private static JSONObject done(String name, boolean found, long size) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("name", name)
+                    .put("found", found)
+                    .put("size", size)
+                    .put("done", true);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    /**
+     * Decodes base64, as Cordova sends ArrayBuffer arguments, into the
+     * buffer. Returns the number of bytes, or -1 when they don't fit.
+     */
+    static int decodeBase64(String data, byte[] buffer) {
+        int bits = 0;
+        int pending = 0;
+        int count = 0;
+        for (int a = 0, l = data.length(); a < l; a++) {
+            char c = data.charAt(a);
+            int value;
+            if (c >= 'A' && c <= 'Z') {
+                value = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                value = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                value = c - '0' + 52;
+            } else if (c == '+' || c == '-') {
+                value = 62;
+            } else if (c == '/' || c == '_') {
+                value = 63;
+            } else {
+                // padding and line breaks
+                continue;
+            }
+
+            bits = (bits << 6) | value;
+            pending += 6;
+            if (pending >= 8) {
+                pending -= 8;
+                if (count == buffer.length) {
+                    return -1;
+                }
+                buffer[count++] = (byte) (bits >> pending);
+                bits &= (1 << pending) - 1;
+            }
+        }
+        return count;
+    }
+}
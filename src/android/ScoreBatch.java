@@ -0,0 +1,298 @@
+package io.nonostante.games.cordova;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallbacks;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.games.Games;
+import com.google.android.gms.games.leaderboard.LeaderboardVariant;
+import com.google.android.gms.games.leaderboard.Leaderboards;
+import com.google.android.gms.games.leaderboard.ScoreSubmissionData;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk score submission used by the submitScores action.
+ * <p>
+ * Entries are first coalesced per leaderboard: the service only keeps the
+ * best score of a player, so of all the entries for the same leaderboard only
+ * the highest and the lowest are sent (which one is "best" depends on the
+ * leaderboard sort order, which is not known here). The remaining writes are
+ * issued with a bounded number of requests in flight, each completion
+ * issuing the next one, and every entry gets its own result.
+ * <p>
+ * A coalesced entry is only in effect if both submissions of its
+ * leaderboard were: it is reported as coalesced when they were submitted,
+ * and gets the outcome of the one which was not otherwise (queued, or
+ * failed with its error).
+ */
+class ScoreBatch {
+    static final String TAG = "ScoreBatch";
+
+    // Max number of submissions in flight at the same time
+    static final int MAX_CONCURRENT = 4;
+
+    // Max time to wait for a single submission
+    static final long SUBMIT_TIMEOUT_SECONDS = 30;
+
+    static final String STATUS_SUBMITTED = "submitted";
+    static final String STATUS_COALESCED = "coalesced";
+    static final String STATUS_QUEUED = "queued";
+    static final String STATUS_FAILED = "failed";
+
+    private static class Submission {
+        final int index;
+        final String leaderboardId;
+        final long score;
+        final String tag;
+
+        Submission(int index, String leaderboardId, long score, String tag) {
+            this.index = index;
+            this.leaderboardId = leaderboardId;
+            this.score = score;
+            this.tag = tag;
+        }
+    }
+
+    private final JSONObject[] mResults;
+    private final ArrayList<Submission> mSubmissions = new ArrayList<Submission>();
+    // highest and lowest score submission per leaderboard
+    private final LinkedHashMap<String, Submission[]> mBounds = new LinkedHashMap<String, Submission[]>();
+    private boolean mHasQueued = false;
+
+    private GoogleApiClient mClient;
+    private RateLimiter mLimiter;
+    private WriteJournal mJournal;
+    private Runnable mOnComplete;
+    private int mNext = 0;
+    private int mRemaining = 0;
+
+    ScoreBatch(JSONArray entries) {
+        int count = entries.length();
+        mResults = new JSONObject[count];
+
+        for (int a = 0; a < count; a++) {
+            JSONObject entry = entries.optJSONObject(a);
+            String leaderboardId = entry != null ? entry.optString("leaderboardId", null) : null;
+            if (leaderboardId == null || !entry.has("score")) {
+                mResults[a] = result(leaderboardId, 0, STATUS_FAILED);
+                putError(mResults[a], GameServices.getErrorJSON(GameServices.ERROR.INVALID_ARGUMENT, "Invalid Entry"));
+                continue;
+            }
+
+            Submission submission = new Submission(a, leaderboardId, entry.optLong("score"), entry.optString("tag"));
+            mResults[a] = result(leaderboardId, submission.score, STATUS_COALESCED);
+
+            Submission[] range = mBounds.get(leaderboardId);
+            if (range == null) {
+                mBounds.put(leaderboardId, new Submission[]{submission, submission});
+            } else if (submission.score > range[0].score) {
+                range[0] = submission;
+            } else if (submission.score < range[1].score) {
+                range[1] = submission;
+            }
+        }
+
+        for (Submission[] range : mBounds.values()) {
+            mSubmissions.add(range[0]);
+            if (range[1] != range[0]) {
+                mSubmissions.add(range[1]);
+            }
+        }
+    }
+
+    /** Number of service calls left after coalescing. */
+    int getSubmissionCount() {
+        return mSubmissions.size();
+    }
+
+    /** Whether some entries failed transiently and were moved to the journal. */
+    synchronized boolean hasQueued() {
+        return mHasQueued;
+    }
+
+    /** One result per input entry, in input order. */
+    synchronized JSONArray getResults() {
+        JSONArray array = new JSONArray();
+        for (JSONObject result : mResults) {
+            array.put(result);
+        }
+        return array;
+    }
+
+    /** Drops the cached scores of every leaderboard in the batch. */
+    void invalidate(LeaderboardCache cache) {
+        for (Submission submission : mSubmissions) {
+            cache.invalidate(submission.leaderboardId);
+        }
+    }
+
+    /** Moves the coalesced submissions to the journal instead of sending them. */
+    void queue(WriteJournal journal) {
+        for (Submission submission : mSubmissions) {
+            journal.append(WriteJournal.TYPE_SCORE, submission.leaderboardId, submission.score, submission.tag);
+            setStatus(mResults[submission.index], STATUS_QUEUED);
+        }
+        mHasQueued = !mSubmissions.isEmpty();
+        resolveCoalesced();
+    }
+
+    /**
+     * Sends the coalesced submissions through the limiter, keeping at most
+     * MAX_CONCURRENT of them in flight, and runs onComplete once all of them
+     * completed. Completion may happen on the thread delivering the service
+     * results.
+     */
+    void start(GoogleApiClient client, RateLimiter limiter, WriteJournal journal, Runnable onComplete) {
+        mClient = client;
+        mLimiter = limiter;
+        mJournal = journal;
+        mOnComplete = onComplete;
+        mRemaining = mSubmissions.size();
+
+        if (mRemaining == 0) {
+            onComplete.run();
+            return;
+        }
+
+        for (int a = 0; a < MAX_CONCURRENT; a++) {
+            submitNext();
+        }
+    }
+
+    private void submitNext() {
+        final Submission submission;
+        synchronized (this) {
+            if (mNext >= mSubmissions.size()) {
+                return;
+            }
+            submission = mSubmissions.get(mNext++);
+        }
+
+        mLimiter.submit(RateLimiter.WRITE, new RateLimiter.Request<Leaderboards.SubmitScoreResult>() {
+            @Override
+            public PendingResult<Leaderboards.SubmitScoreResult> issue() {
+                return Games.Leaderboards.submitScoreImmediate(mClient, submission.leaderboardId, submission.score, submission.tag);
+            }
+        }, new ResultCallbacks<Leaderboards.SubmitScoreResult>() {
+            @Override
+            public void onSuccess(@NonNull Leaderboards.SubmitScoreResult result) {
+                Status status = result.getStatus();
+                ScoreSubmissionData data = result.getScoreData();
+                ScoreSubmissionData.Result best = data != null ? data.getScoreResult(LeaderboardVariant.TIME_SPAN_ALL_TIME) : null;
+                result.release();
+                onSubmitted(submission, status, best);
+            }
+
+            @Override
+            public void onFailure(@NonNull Status status) {
+                onSubmitted(submission, status, null);
+            }
+        }, TimeUnit.SECONDS.toMillis(SUBMIT_TIMEOUT_SECONDS));
+    }
+
+    // best is the all-time result of a successful submission, if any
+    private void onSubmitted(Submission submission, Status status, ScoreSubmissionData.Result best) {
+        boolean done;
+        synchronized (this) {
+            setResult(mResults[submission.index], submission, status, best, mJournal);
+            done = --mRemaining == 0;
+            if (done) {
+                resolveCoalesced();
+            }
+        }
+
+        if (done) {
+            mOnComplete.run();
+        } else {
+            submitNext();
+        }
+    }
+
+    private void setResult(JSONObject json, Submission submission, Status status, ScoreSubmissionData.Result best, WriteJournal journal) {
+        if (status.isSuccess()) {
+            setStatus(json, STATUS_SUBMITTED);
+            if (best != null) {
+                try {
+                    json.put("newBest", best.newBest);
+                } catch (JSONException e) {
+                }
+            }
+        } else if (WriteJournal.isRetryable(status.getStatusCode())) {
+            Log.w(TAG, "Submission deferred -> " + status.getStatusMessage());
+            journal.append(WriteJournal.TYPE_SCORE, submission.leaderboardId, submission.score, submission.tag);
+            setStatus(json, STATUS_QUEUED);
+            mHasQueued = true;
+        } else {
+            Log.e(TAG, "Submission failed -> " + status.getStatusMessage());
+            setStatus(json, STATUS_FAILED);
+            putError(json, GameServices.getErrorJSON(GameServices.ERROR.SERVICE_ERROR, status.getStatusCode(), status.getStatusMessage()));
+        }
+    }
+
+    // Copies the outcome of the submissions sent into the entries coalesced
+    // into them, once all of them completed
+    private void resolveCoalesced() {
+        for (JSONObject json : mResults) {
+            if (!STATUS_COALESCED.equals(json.optString("status"))) {
+                continue;
+            }
+            Submission[] range = mBounds.get(json.optString("leaderboardId"));
+            JSONObject high = mResults[range[0].index];
+            JSONObject low = mResults[range[1].index];
+            JSONObject sent = outcomeRank(low) > outcomeRank(high) ? low : high;
+            String status = sent.optString("status");
+            if (STATUS_SUBMITTED.equals(status)) {
+                continue;
+            }
+            setStatus(json, status);
+            JSONObject error = sent.optJSONObject("error");
+            if (error != null) {
+                putError(json, error);
+            }
+        }
+    }
+
+    // Higher for the outcomes leaving a score less certainly applied
+    private static int outcomeRank(JSONObject json) {
+        String status = json.optString("status");
+        if (STATUS_FAILED.equals(status)) {
+            return 2;
+        }
+        return STATUS_QUEUED.equals(status) ? 1 : 0;
+    }
+
+    private static JSONObject result(String leaderboardId, long score, String status) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("leaderboardId", leaderboardId)
+                    .put("score", score)
+                    .put("status", status);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    private static void setStatus(JSONObject json, String status) {
+        try {
+            json.put("status", status);
+        } catch (JSONException e) {
+        }
+    }
+
+    private static void putError(JSONObject json, JSONObject error) {
+        try {
+            json.put("error", error);
+        } catch (JSONException e) {
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package io.nonostante.games.cordova;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+
+/**
+ * Calls needing a connection, made while the sign-in is in progress.
+ * <p>
+ * Instead of failing with NOT_CONNECTED, such calls are parked until the
+ * sign-in ends: they run once it succeeds, or fail with the sign-in error.
+ * The queue is bounded, calls beyond it fail right away. Every parked call
+ * has its own deadline, after which it fails with NOT_CONNECTED while the
+ * others keep waiting.
+ */
+class SignInQueue {
+    static final String TAG = "SignInQueue";
+
+    static final int DEFAULT_MAX_SIZE = 32;
+    static final long DEFAULT_WAIT_MS = 15 * 1000;
+
+    private final Handler mHandler;
+    private final int mMaxSize;
+    private final long mWaitMs;
+    private final ArrayList<Parked> mParked = new ArrayList<Parked>();
+
+    private long mParkedCount = 0;
+    private long mResumed = 0;
+    private long mExpired = 0;
+    private long mFailed = 0;
+    private long mRejected = 0;
+
+    // Expires on the handler once its deadline passed
+    private final class Parked implements Runnable {
+        final CallbackContext callbackContext;
+        final Runnable task;
+
+        Parked(CallbackContext callbackContext, Runnable task) {
+            this.callbackContext = callbackContext;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (SignInQueue.this) {
+                if (!mParked.remove(this)) {
+                    return;
+                }
+                mExpired++;
+            }
+            Log.w(TAG, "Sign-in still in progress, parked call expired");
+            callbackContext.error(GameServices.getErrorJSON(GameServices.ERROR.NOT_CONNECTED, "Not Connected"));
+        }
+    }
+
+    SignInQueue(Handler handler, int maxSize, long waitMs) {
+        mHandler = handler;
+        mMaxSize = Math.max(0, maxSize);
+        mWaitMs = waitMs;
+    }
+
+    /**
+     * Parks the task until the sign-in ends, for at most the deadline of the
+     * call (0 for the default wait) and the default wait. Returns false,
+     * leaving the call to the caller, when the queue is full.
+     */
+    boolean park(CallbackContext callbackContext, long timeoutMs, Runnable task) {
+        Parked parked = new Parked(callbackContext, task);
+        synchronized (this) {
+            if (mParked.size() >= mMaxSize) {
+                mRejected++;
+                return false;
+            }
+            mParked.add(parked);
+            mParkedCount++;
+        }
+        mHandler.postDelayed(parked, timeoutMs > 0 ? Math.min(timeoutMs, mWaitMs) : mWaitMs);
+        return true;
+    }
+
+    /** Signed in: runs the parked tasks, in the order they were parked. */
+    void resume() {
+        Parked[] parked = take();
+        synchronized (this) {
+            mResumed += parked.length;
+        }
+        if (parked.length > 0) {
+            Log.d(TAG, "Signed in, resuming " + parked.length + " call(s)");
+        }
+        for (Parked call : parked) {
+            call.task.run();
+        }
+    }
+
+    /** The sign-in failed: fails the parked calls with its error. */
+    void fail(JSONObject error) {
+        Parked[] parked = take();
+        synchronized (this) {
+            mFailed += parked.length;
+        }
+        for (Parked call : parked) {
+            call.callbackContext.error(error);
+        }
+    }
+
+    private Parked[] take() {
+        Parked[] parked;
+        synchronized (this) {
+            parked = mParked.toArray(new Parked[mParked.size()]);
+            mParked.clear();
+        }
+        for (Parked call : parked) {
+            mHandler.removeCallbacks(call);
+        }
+        return parked;
+    }
+
+    synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("waiting", mParked.size())
+                    .put("parked", mParkedCount)
+                    .put("resumed", mResumed)
+                    .put("expired", mExpired)
+                    .put("failed", mFailed)
+                    .put("rejected", mRejected);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    synchronized void reset() {
+        mParkedCount = 0;
+        mResumed = 0;
+        mExpired = 0;
+        mFailed = 0;
+        mRejected = 0;
+    }
+}
@@ -0,0 +1,132 @@
+package io.nonostante.games.cordova;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times the phases of the sign-ins, reported by the getMetrics action to
+ * follow the time to connected across releases.
+ * <p>
+ * A sign-in goes through the availability check of Google Play services,
+ * the build of the client (first sign-in only), the connection, then the
+ * onConnected handling up to the moment the plugin reports the player.
+ * Each phase is timed from the end of the previous one. Silent sign-ins
+ * (on startup) and interactive ones (login action, may include the
+ * sign-in UI) are counted apart.
+ */
+class SignInTrace {
+    static final String TAG = "SignInTrace";
+
+    static final String MODE_SILENT = "silent";
+    static final String MODE_INTERACTIVE = "interactive";
+
+    static final String PHASE_AVAILABILITY = "availability";
+    static final String PHASE_BUILD = "build";
+    static final String PHASE_CONNECT = "connect";
+    static final String PHASE_ON_CONNECTED = "onConnected";
+
+    // Sign-ins of a mode; phase times are summed over the connected ones
+    private static final class Totals {
+        long attempts = 0;
+        long connected = 0;
+        long connectedMs = 0;
+        final LinkedHashMap<String, Long> phaseMs = new LinkedHashMap<String, Long>();
+    }
+
+    private final LinkedHashMap<String, Totals> mTotals = new LinkedHashMap<String, Totals>();
+
+    // sign-in being traced, mode null if none
+    private String mMode;
+    private long mStartedAt = 0;
+    private long mMarkedAt = 0;
+    private LinkedHashMap<String, Long> mPhases = new LinkedHashMap<String, Long>();
+
+    private JSONObject mLast;
+
+    /** Starts timing a sign-in, dropping the one in progress if any. */
+    synchronized void start(String mode) {
+        mMode = mode;
+        mStartedAt = SystemClock.elapsedRealtime();
+        mMarkedAt = mStartedAt;
+        mPhases = new LinkedHashMap<String, Long>();
+    }
+
+    /** The given phase of the sign-in in progress ended. */
+    synchronized void mark(String phase) {
+        if (mMode == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        mPhases.put(phase, now - mMarkedAt);
+        mMarkedAt = now;
+    }
+
+    /** The sign-in in progress ended. */
+    synchronized void finish(boolean connected) {
+        if (mMode == null) {
+            return;
+        }
+        long totalMs = SystemClock.elapsedRealtime() - mStartedAt;
+
+        Totals totals = mTotals.get(mMode);
+        if (totals == null) {
+            totals = new Totals();
+            mTotals.put(mMode, totals);
+        }
+        totals.attempts++;
+        if (connected) {
+            totals.connected++;
+            totals.connectedMs += totalMs;
+            for (Map.Entry<String, Long> phase : mPhases.entrySet()) {
+                Long sum = totals.phaseMs.get(phase.getKey());
+                totals.phaseMs.put(phase.getKey(), (sum != null ? sum : 0) + phase.getValue());
+            }
+        }
+
+        JSONObject phases = new JSONObject(mPhases);
+        mLast = new JSONObject();
+        try {
+            mLast.put("mode", mMode)
+                    .put("connected", connected)
+                    .put("totalMs", totalMs)
+                    .put("phases", phases);
+        } catch (JSONException e) {
+        }
+        Log.d(TAG, String.format("%s sign-in %s in %d ms %s", mMode, connected ? "connected" : "failed", totalMs, phases));
+        mMode = null;
+    }
+
+    synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, Totals> entry : mTotals.entrySet()) {
+                Totals totals = entry.getValue();
+                JSONObject phases = new JSONObject();
+                for (Map.Entry<String, Long> phase : totals.phaseMs.entrySet()) {
+                    phases.put(phase.getKey(), totals.connected > 0 ? phase.getValue() / totals.connected : 0);
+                }
+                json.put(entry.getKey(), new JSONObject()
+                        .put("attempts", totals.attempts)
+                        .put("connected", totals.connected)
+                        .put("averageMs", totals.connected > 0 ? totals.connectedMs / totals.connected : 0)
+                        .put("averagePhasesMs", phases));
+            }
+            if (mLast != null) {
+                json.put("last", mLast);
+            }
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    synchronized void reset() {
+        mTotals.clear();
+        mLast = null;
+    }
+}
@@ -0,0 +1,133 @@
+package io.nonostante.games.cordova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interceptor merging identical read calls while one of them is in flight.
+ * <p>
+ * Calls are identified by the action name and the key the action derives
+ * from its arguments ({@link ActionDispatcher.Action#coalesceKey}). The
+ * first call runs; calls with the same key arriving before it completed are
+ * attached to it and receive the same results. A call attached to an action
+ * keeping its callback only receives the results sent after it joined.
+ */
+class SingleFlight implements ActionDispatcher.Interceptor {
+
+    private final CordovaWebView mWebView;
+    private final HashMap<String, Flight> mFlights = new HashMap<String, Flight>();
+
+    // per action: [calls, merged]
+    private final HashMap<String, long[]> mCounters = new HashMap<String, long[]>();
+
+    // Forwards every result to all the callers attached to the flight
+    private final class Flight extends CallbackContext implements ActionMetrics.Forwarding {
+        private final String mKey;
+        private final ArrayList<CallbackContext> mCallers = new ArrayList<CallbackContext>();
+
+        Flight(String key, CallbackContext first) {
+            super(first.getCallbackId(), mWebView);
+            mKey = key;
+            mCallers.add(first);
+        }
+
+        @Override
+        public CallbackContext getTarget() {
+            synchronized (mFlights) {
+                return mCallers.get(0);
+            }
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            CallbackContext[] callers;
+            synchronized (mFlights) {
+                if (!result.getKeepCallback() && mFlights.get(mKey) == this) {
+                    mFlights.remove(mKey);
+                }
+                callers = mCallers.toArray(new CallbackContext[mCallers.size()]);
+            }
+            for (CallbackContext caller : callers) {
+                caller.sendPluginResult(result);
+            }
+        }
+    }
+
+    SingleFlight(CordovaWebView webView) {
+        mWebView = webView;
+    }
+
+    @Override
+    public void intercept(ActionDispatcher.Call call) throws JSONException {
+        String argsKey = call.action.coalesceKey(call.args);
+        if (argsKey == null) {
+            call.proceed();
+            return;
+        }
+
+        String key = call.name + '|' + argsKey;
+        Flight flight;
+        synchronized (mFlights) {
+            long[] counters = mCounters.get(call.name);
+            if (counters == null) {
+                counters = new long[2];
+                mCounters.put(call.name, counters);
+            }
+            counters[0]++;
+
+            flight = mFlights.get(key);
+            if (flight != null) {
+                flight.mCallers.add(call.callbackContext);
+                counters[1]++;
+                return;
+            }
+            flight = new Flight(key, call.callbackContext);
+            mFlights.put(key, flight);
+        }
+
+        try {
+            call.withCallbackContext(flight).proceed();
+        } catch (JSONException e) {
+            flight.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+        }
+    }
+
+    /** Number of coalescable calls and of calls merged into another one, per action and in total. */
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        JSONObject actions = new JSONObject();
+        long calls = 0;
+        long merged = 0;
+        try {
+            synchronized (mFlights) {
+                for (Map.Entry<String, long[]> entry : mCounters.entrySet()) {
+                    long[] counters = entry.getValue();
+                    actions.put(entry.getKey(), new JSONObject()
+                            .put("calls", counters[0])
+                            .put("merged", counters[1]));
+                    calls += counters[0];
+                    merged += counters[1];
+                }
+                json.put("inFlight", mFlights.size());
+            }
+            json.put("calls", calls)
+                    .put("merged", merged)
+                    .put("actions", actions);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    void reset() {
+        synchronized (mFlights) {
+            mCounters.clear();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package io.nonostante.games.cordova;
+
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Format of the saves stored on the service.
+ * <p>
+ * Saves are compressed with a fast zlib level behind a small header:
+ * <pre>
+ * 'G' 'S' 'Z' u8 version i32 uncompressed size, then zlib data
+ * </pre>
+ * Saves without the header are read as they are stored; a stored save
+ * starting with these bytes would be read as compressed. The writer also
+ * computes the digest of the data, see {@link SaveDigests}.
+ */
+class SnapshotCodec {
+    static final String TAG = "SnapshotCodec";
+
+    static final byte[] HEADER_MAGIC = {'G', 'S', 'Z'};
+    static final int HEADER_VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Receives the data read, one buffer at a time. */
+    interface ChunkSink {
+        void onChunk(byte[] buffer, int count) throws IOException;
+    }
+
+    /** Writes a save into a snapshot file, replacing its content. */
+    static final class Writer {
+        private final FileChannel mChannel;
+        private final byte[] mOutput;
+        private final ByteBuffer mOutputView;
+        private Deflater mDeflater;
+        private MessageDigest mDigest;
+        private long mStored = 0;
+
+        // The output buffer is only used when compressing. The prefix is
+        // digested before the data, e.g. to tell apart metadata changes.
+        Writer(FileDescriptor file, int size, boolean compress, String prefix, byte[] output) throws IOException {
+            mChannel = new FileOutputStream(file).getChannel();
+            mChannel.truncate(0);
+            mChannel.position(0);
+
+            try {
+                mDigest = MessageDigest.getInstance("SHA-1");
+                mDigest.update(prefix.getBytes(UTF8));
+            } catch (NoSuchAlgorithmException e) {
+                Log.w(TAG, "No digest, unchanged saves will be uploaded");
+            }
+
+            mOutput = output;
+            mOutputView = compress ? ByteBuffer.wrap(output) : null;
+            if (compress) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(HEADER_MAGIC).put((byte) HEADER_VERSION).putInt(size);
+                header.flip();
+                write(header);
+                mDeflater = new Deflater(Deflater.BEST_SPEED);
+            }
+        }
+
+        void write(byte[] data, int count) throws IOException {
+            if (mDigest != null) {
+                mDigest.update(data, 0, count);
+            }
+            if (mDeflater != null) {
+                mDeflater.setInput(data, 0, count);
+                while (!mDeflater.needsInput()) {
+                    writeOutput(mDeflater.deflate(mOutput));
+                }
+            } else {
+                write(ByteBuffer.wrap(data, 0, count));
+            }
+        }
+
+        /** Flushes the data, returns its digest or null. */
+        String finish() throws IOException {
+            if (mDeflater != null) {
+                mDeflater.finish();
+                while (!mDeflater.finished()) {
+                    writeOutput(mDeflater.deflate(mOutput));
+                }
+            }
+            return mDigest != null ? toHex(mDigest.digest()) : null;
+        }
+
+        long getStoredSize() {
+            return mStored;
+        }
+
+        void release() {
+            if (mDeflater != null) {
+                mDeflater.end();
+                mDeflater = null;
+            }
+        }
+
+        private void writeOutput(int count) throws IOException {
+            mOutputView.clear();
+            mOutputView.limit(count);
+            write(mOutputView);
+        }
+
+        private void write(ByteBuffer view) throws IOException {
+            mStored += view.remaining();
+            while (view.hasRemaining()) {
+                mChannel.write(view);
+            }
+        }
+    }
+
+    /** Reads a save from a snapshot file. */
+    static final class Reader {
+        final boolean compressed;
+        /** Size of the data once read */
+        final long size;
+        final long storedSize;
+        private final FileChannel mChannel;
+
+        Reader(FileDescriptor file, long storedSize) throws IOException {
+            mChannel = new FileInputStream(file).getChannel();
+            mChannel.position(0);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && mChannel.read(header) > 0) {
+            }
+            compressed = header.position() == HEADER_SIZE
+                    && header.get(0) == HEADER_MAGIC[0] && header.get(1) == HEADER_MAGIC[1] && header.get(2) == HEADER_MAGIC[2]
+                    && header.get(3) == HEADER_VERSION;
+            size = compressed ? header.getInt(4) : storedSize;
+            this.storedSize = storedSize;
+            if (!compressed) {
+                mChannel.position(0);
+            }
+        }
+
+        /**
+         * Reads the data into the buffer, passing every full buffer to the
+         * sink. The input buffer is only needed for compressed saves.
+         */
+        long read(byte[] buffer, byte[] input, ChunkSink sink) throws IOException, DataFormatException {
+            return compressed ? inflate(buffer, input, sink) : copy(mChannel, buffer, sink);
+        }
+
+        private long inflate(byte[] output, byte[] input, ChunkSink sink) throws IOException, DataFormatException {
+            Inflater inflater = new Inflater();
+            ByteBuffer inputView = ByteBuffer.wrap(input);
+            long read = 0;
+            int filled = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        inputView.clear();
+                        int count = mChannel.read(inputView);
+                        if (count < 0) {
+                            throw new DataFormatException("Truncated save");
+                        }
+                        inflater.setInput(input, 0, count);
+                    } else if (inflater.needsDictionary()) {
+                        throw new DataFormatException("Unexpected dictionary");
+                    }
+
+                    filled += inflater.inflate(output, filled, output.length - filled);
+                    if (filled == output.length) {
+                        sink.onChunk(output, filled);
+                        read += filled;
+                        filled = 0;
+                    }
+                }
+                if (filled > 0) {
+                    sink.onChunk(output, filled);
+                    read += filled;
+                }
+            } finally {
+                inflater.end();
+            }
+            return read;
+        }
+    }
+
+    /** Reads a plain file through the buffer, passing every full buffer to the sink. */
+    static long copy(FileChannel channel, byte[] buffer, ChunkSink sink) throws IOException {
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        long read = 0;
+        while (true) {
+            view.clear();
+            while (view.hasRemaining() && channel.read(view) > 0) {
+            }
+            int count = view.position();
+            if (count == 0) {
+                return read;
+            }
+            read += count;
+            sink.onChunk(buffer, count);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int a = 0; a < bytes.length; a++) {
+            chars[a * 2] = HEX[(bytes[a] >> 4) & 0xf];
+            chars[a * 2 + 1] = HEX[bytes[a] & 0xf];
+        }
+        return new String(chars);
+    }
+}
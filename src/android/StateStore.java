@@ -0,0 +1,264 @@
+package io.nonostante.games.cordova;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small plugin-wide key/value state (sign-in cancellations, last connection
+ * state, profile of the player), kept in memory.
+ * <p>
+ * The file is read once, on a private IO thread, when the store is created;
+ * reads wait for it. Changes only update the memory: they are written out
+ * in batches, at most one write per batch delay, on the IO thread, so
+ * callers (connection callbacks on the main thread) never touch the disk.
+ * Every write replaces the whole file through a synced temporary file, so a
+ * crash leaves either the previous or the new state, never a mix; at most
+ * the changes of the last batch are lost.
+ * <p>
+ * The first load imports the values GameHelper used to keep in its
+ * SharedPreferences.
+ */
+class StateStore {
+    static final String TAG = "StateStore";
+
+    // How long changes may wait to be batched into a single write
+    static final long SYNC_DELAY_MS = 250;
+
+    private static final String FILE_NAME = "gameservices.state";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final ScheduledExecutorService mExecutor;
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    private JSONObject mValues = new JSONObject();
+    private ScheduledFuture<?> mSyncTask;
+    private boolean mDirty = false;
+    private long mWrites = 0;
+    private long mChanges = 0;
+
+    StateStore(File dir, final SharedPreferences legacy) {
+        mFile = new File(dir, FILE_NAME);
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GameServices-state");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load(legacy);
+                } finally {
+                    mLoaded.countDown();
+                }
+            }
+        });
+    }
+
+    int getInt(String key, int defaultValue) {
+        awaitLoaded();
+        synchronized (this) {
+            return mValues.optInt(key, defaultValue);
+        }
+    }
+
+    boolean getBoolean(String key, boolean defaultValue) {
+        awaitLoaded();
+        synchronized (this) {
+            return mValues.optBoolean(key, defaultValue);
+        }
+    }
+
+    String getString(String key) {
+        awaitLoaded();
+        synchronized (this) {
+            return mValues.optString(key, null);
+        }
+    }
+
+    /** Sets a value (null to remove it) and schedules the write if it changed. */
+    void put(String key, Object value) {
+        awaitLoaded();
+        synchronized (this) {
+            Object previous = mValues.opt(key);
+            if (value == null ? previous == null : value.equals(previous)) {
+                return;
+            }
+            try {
+                mValues.put(key, value);
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to store " + key, e);
+                return;
+            }
+            mChanges++;
+            mDirty = true;
+            scheduleSync(SYNC_DELAY_MS);
+        }
+    }
+
+    void remove(String key) {
+        put(key, null);
+    }
+
+    /** Writes out the pending changes right away (e.g. when the app goes to background). */
+    synchronized void sync() {
+        if (mDirty) {
+            scheduleSync(0);
+        }
+    }
+
+    /** Writes out the pending changes and stops the IO thread. */
+    void close() {
+        sync();
+        mExecutor.shutdown();
+    }
+
+    private void scheduleSync(long delay) {
+        if (mSyncTask != null) {
+            if (delay > 0 || !mSyncTask.cancel(false)) {
+                return;
+            }
+        }
+        mSyncTask = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void awaitLoaded() {
+        try {
+            mLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // IO thread only
+    private void flush() {
+        String data;
+        synchronized (this) {
+            mSyncTask = null;
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            data = mValues.toString();
+            mWrites++;
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data.getBytes(UTF8));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write state", e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    // IO thread only
+    private void load(SharedPreferences legacy) {
+        if (!mFile.exists()) {
+            importLegacy(legacy);
+            return;
+        }
+
+        try {
+            byte[] data = new byte[(int) mFile.length()];
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                int offset = 0;
+                while (offset < data.length) {
+                    int read = in.read(data, offset, data.length - offset);
+                    if (read < 0) {
+                        break;
+                    }
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+            JSONObject values = new JSONObject(new String(data, UTF8));
+            synchronized (this) {
+                mValues = values;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read state", e);
+        } catch (JSONException e) {
+            Log.e(TAG, "Dropping unreadable state", e);
+        }
+    }
+
+    private void importLegacy(SharedPreferences legacy) {
+        if (legacy == null) {
+            return;
+        }
+        Map<String, ?> values = legacy.getAll();
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                try {
+                    mValues.put(entry.getKey(), entry.getValue());
+                } catch (JSONException e) {
+                }
+            }
+            mDirty = true;
+        }
+        Log.d(TAG, "Imported " + values.size() + " value(s) from the shared preferences");
+        flush();
+        legacy.edit().clear().apply();
+    }
+
+    synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("changes", mChanges)
+                    .put("writes", mWrites)
+                    .put("pending", mDirty);
+        } catch (JSONException e) {
+        }
+        return json;
+    }
+
+    synchronized void reset() {
+        mChanges = 0;
+        mWrites = 0;
+    }
+}
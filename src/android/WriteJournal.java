@@ -0,0 +1,445 @@
+package io.nonostante.games.cordova;
+
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.games.GamesStatusCodes;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, on-device journal of leaderboard and achievement writes.
+ * <p>
+ * Writes are accepted at any time, kept in memory in submission order and
+ * persisted in small batches (one fsync per batch) on a private IO thread.
+ * Each record carries a CRC so a torn tail left by a crash is detected and
+ * dropped on load. Acknowledged entries are appended as ack records and the
+ * file is rewritten without them when the journal is compacted. Failed
+ * delivery attempts are appended as retry records, so that an entry the
+ * service keeps failing is dropped after {@link #MAX_ATTEMPTS}, even across
+ * restarts.
+ */
+class WriteJournal {
+    static final String TAG = "WriteJournal";
+
+    static final int TYPE_SCORE = 1;
+    static final int TYPE_UNLOCK = 2;
+    static final int TYPE_INCREMENT = 3;
+
+    // How long appended records may wait to be batched into a single fsync
+    static final long SYNC_DELAY_MS = 250;
+
+    // Delivery attempts after which an entry failing for a transient reason is dropped
+    static final int MAX_ATTEMPTS = 8;
+
+    private static final String FILE_NAME = "gameservices.journal";
+    private static final char RECORD_WRITE = 'W';
+    private static final char RECORD_ACK = 'A';
+    private static final char RECORD_RETRY = 'R';
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** A single journaled write. */
+    static class Entry {
+        final long seq;
+        final int type;
+        final String id;
+        final long value;
+        final String tag;
+
+        // failed delivery attempts, guarded by the journal
+        int attempts = 0;
+
+        Entry(long seq, int type, String id, long value, String tag) {
+            this.seq = seq;
+            this.type = type;
+            this.id = id;
+            this.value = value;
+            this.tag = tag;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            return new JSONObject()
+                    .put("seq", seq)
+                    .put("type", type)
+                    .put("id", id)
+                    .put("value", value)
+                    .put("tag", tag == null ? "" : tag)
+                    .put("attempts", attempts);
+        }
+
+        static Entry fromJSON(JSONObject json) throws JSONException {
+            Entry entry = new Entry(json.getLong("seq"), json.getInt("type"), json.getString("id"),
+                    json.getLong("value"), json.optString("tag"));
+            entry.attempts = json.optInt("attempts");
+            return entry;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry(" + seq + "," + type + "," + id + "," + value + ")";
+        }
+    }
+
+    private final File mFile;
+    private final ScheduledExecutorService mExecutor;
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    // pending (not yet acknowledged) entries, in submission order
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<Entry>();
+
+    // encoded records waiting for the next batched write
+    private final ArrayList<String> mUnsynced = new ArrayList<String>();
+
+    private ScheduledFuture<?> mSyncTask;
+    private FileOutputStream mOut;
+    private long mNextSeq = 1;
+
+    // ack and retry records appended since the file was last rewritten
+    private int mObsolete = 0;
+
+    WriteJournal(File dir) {
+        mFile = new File(dir, FILE_NAME);
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GameServices-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Returns whether a failed write with the given status code is worth
+     * retrying later (network and connection problems), as opposed to being
+     * rejected by the service.
+     * <p>
+     * Games results carry games status codes, some of which reuse the values
+     * of other common codes (STATUS_LICENSE_CHECK_FAILED is NETWORK_ERROR), so
+     * only games codes are classified here. The one exception is
+     * API_NOT_CONNECTED, set by the plugin itself (see {@link RateLimiter})
+     * and used by no games status.
+     */
+    static boolean isRetryable(int statusCode) {
+        switch (statusCode) {
+            case GamesStatusCodes.STATUS_CLIENT_RECONNECT_REQUIRED:
+            case GamesStatusCodes.STATUS_NETWORK_ERROR_NO_DATA:
+            case GamesStatusCodes.STATUS_NETWORK_ERROR_OPERATION_FAILED:
+            case GamesStatusCodes.STATUS_INTERRUPTED:
+            case GamesStatusCodes.STATUS_TIMEOUT:
+            case CommonStatusCodes.API_NOT_CONNECTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Appends a write to the journal and schedules it to be persisted. */
+    Entry append(int type, String id, long value, String tag) {
+        awaitLoaded();
+        Entry entry;
+        synchronized (this) {
+            entry = new Entry(mNextSeq++, type, id, value, tag);
+            try {
+                mEntries.addLast(entry);
+                mUnsynced.add(encode(RECORD_WRITE + entry.toJSON().toString()));
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to encode " + entry, e);
+            }
+            scheduleSync(SYNC_DELAY_MS);
+        }
+        return entry;
+    }
+
+    /** Returns the oldest pending entry, or null if the journal is empty. */
+    Entry peek() {
+        awaitLoaded();
+        synchronized (this) {
+            return mEntries.peekFirst();
+        }
+    }
+
+    boolean isEmpty() {
+        awaitLoaded();
+        synchronized (this) {
+            return mEntries.isEmpty();
+        }
+    }
+
+    int size() {
+        awaitLoaded();
+        synchronized (this) {
+            return mEntries.size();
+        }
+    }
+
+    /** Marks the given entry (the head of the journal) as delivered. */
+    synchronized void ack(Entry entry) {
+        if (mEntries.peekFirst() != entry) {
+            Log.w(TAG, "Ack out of order for " + entry);
+            if (!mEntries.remove(entry)) {
+                return;
+            }
+        } else {
+            mEntries.removeFirst();
+        }
+        mUnsynced.add(encode(RECORD_ACK + String.valueOf(entry.seq)));
+        mObsolete++;
+        scheduleSync(SYNC_DELAY_MS);
+    }
+
+    /**
+     * Records a failed delivery attempt of the given entry, which stays
+     * pending; returns the number of attempts so far.
+     */
+    synchronized int retry(Entry entry) {
+        entry.attempts++;
+        if (mEntries.contains(entry)) {
+            mUnsynced.add(encode(RECORD_RETRY + String.valueOf(entry.seq)));
+            mObsolete++;
+            scheduleSync(SYNC_DELAY_MS);
+        }
+        return entry.attempts;
+    }
+
+    /** Writes out any batched records right away (e.g. when the app goes to background). */
+    synchronized void sync() {
+        scheduleSync(0);
+    }
+
+    /**
+     * Rewrites the journal file keeping only the pending entries; does
+     * nothing unless entries were acknowledged or retried since the last
+     * rewrite.
+     */
+    synchronized void compact() {
+        if (mObsolete == 0) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (WriteJournal.this) {
+                    // already rewritten by an earlier compaction
+                    if (mObsolete == 0) {
+                        return;
+                    }
+                }
+                rewrite();
+            }
+        });
+    }
+
+    /** Flushes the pending records and stops the IO thread. */
+    void close() {
+        sync();
+        mExecutor.shutdown();
+    }
+
+    private void scheduleSync(long delay) {
+        if (mSyncTask != null) {
+            if (delay > 0 || !mSyncTask.cancel(false)) {
+                return;
+            }
+        }
+        mSyncTask = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void awaitLoaded() {
+        try {
+            mLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // IO thread only
+    private void flush() {
+        String[] records;
+        synchronized (this) {
+            mSyncTask = null;
+            if (mUnsynced.isEmpty()) {
+                return;
+            }
+            records = mUnsynced.toArray(new String[mUnsynced.size()]);
+            mUnsynced.clear();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String record : records) {
+            sb.append(record).append('\n');
+        }
+
+        try {
+            if (mOut == null) {
+                mOut = new FileOutputStream(mFile, true);
+            }
+            mOut.write(sb.toString().getBytes(UTF8));
+            mOut.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write journal", e);
+            closeOutput();
+        }
+    }
+
+    // IO thread only
+    private void rewrite() {
+        flush();
+
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            for (Entry entry : mEntries) {
+                try {
+                    sb.append(encode(RECORD_WRITE + entry.toJSON().toString())).append('\n');
+                } catch (JSONException e) {
+                    Log.e(TAG, "Unable to encode " + entry, e);
+                }
+            }
+            // records batched after the snapshot above are already part of it
+            mUnsynced.clear();
+            mObsolete = 0;
+        }
+
+        closeOutput();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp, false);
+            out.write(sb.toString().getBytes(UTF8));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact journal", e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    // IO thread only
+    private void load() {
+        LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+        long maxSeq = 0;
+        boolean dirty = false;
+
+        if (mFile.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), UTF8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String payload = decode(line);
+                    if (payload == null) {
+                        // torn or corrupted tail: everything after it is unreliable
+                        Log.w(TAG, "Dropping corrupted journal tail");
+                        dirty = true;
+                        break;
+                    }
+                    if (payload.charAt(0) == RECORD_WRITE) {
+                        Entry entry = Entry.fromJSON(new JSONObject(payload.substring(1)));
+                        entries.put(entry.seq, entry);
+                        maxSeq = Math.max(maxSeq, entry.seq);
+                    } else if (payload.charAt(0) == RECORD_ACK) {
+                        entries.remove(Long.parseLong(payload.substring(1)));
+                        dirty = true;
+                    } else if (payload.charAt(0) == RECORD_RETRY) {
+                        Entry entry = entries.get(Long.parseLong(payload.substring(1)));
+                        if (entry != null) {
+                            entry.attempts++;
+                        }
+                        dirty = true;
+                    }
+                }
+            } catch (IOException | JSONException | NumberFormatException e) {
+                Log.e(TAG, "Unable to read journal", e);
+                dirty = true;
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            mEntries.addAll(entries.values());
+            mNextSeq = maxSeq + 1;
+        }
+        Log.d(TAG, "Loaded " + entries.size() + " pending write(s)");
+        mLoaded.countDown();
+
+        if (dirty) {
+            rewrite();
+        }
+    }
+
+    private void closeOutput() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+            mOut = null;
+        }
+    }
+
+    private static String encode(String payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.getBytes(UTF8));
+        return payload + '\t' + Long.toHexString(crc.getValue());
+    }
+
+    private static String decode(String line) {
+        int sep = line.lastIndexOf('\t');
+        if (sep <= 0) {
+            return null;
+        }
+        String payload = line.substring(0, sep);
+        CRC32 crc = new CRC32();
+        crc.update(payload.getBytes(UTF8));
+        if (!Long.toHexString(crc.getValue()).equals(line.substring(sep + 1))) {
+            return null;
+        }
+        return payload;
+    }
+}
@@ -35,6 +35,320 @@ declare module Cordova {
                 timestamp: number
             }
 
+            type SubmitScoreEntryResult = {
+                leaderboardId: string
+                score: number
+                /**
+                 * "coalesced": merged into the submissions of the same leaderboard, which were submitted;
+                 * a merged entry gets their status otherwise ("queued", or "failed" with their error)
+                 */
+                status: "submitted" | "coalesced" | "queued" | "failed"
+                newBest?: boolean
+                error?: ServiceError
+            }
+
+            /**
+             * "json" (default) sends an array of entries, "columns" one array per field and
+             * "binary" an ArrayBuffer with a string table. Use decodeCompact to read the last two.
+             */
+            type PayloadFormat = "json" | "columns" | "binary" | "players"
+
+            /** A score referring to its holder by index in the players of the response */
+            type PlayerScoreEntry = {
+                player: number
+                score: number
+                rank: number
+                tag?: any
+                timestamp: number
+            }
+
+            type PlayersPayload = {
+                format: "players"
+                players: Player[]
+                scores: PlayerScoreEntry[]
+            }
+
+            type LeaderboardScoresRequest = {
+                leaderboardId: string
+                scope?: "top" | "player"
+                span?: LeaderboardEntrySpan
+                maxResults?: number
+            }
+
+            type LeaderboardScoresBatch = {
+                players: Player[]
+                leaderboards: {
+                    leaderboardId: string
+                    scope: "top" | "player"
+                    span: LeaderboardEntrySpan
+                    scores?: PlayerScoreEntry[]
+                    error?: ServiceError
+                }[]
+            }
+
+            type ColumnsPayload = {
+                format: "columns"
+                count: number
+                [column: string]: any
+            }
+
+            type LeaderboardStreamOptions = {
+                /** rows per page, at most 25 (default) */
+                pageSize?: number
+                /** stops after this many rows, the whole leaderboard by default */
+                maxRows?: number
+                /** pages delivered but not processed yet before loading pauses, 2 by default */
+                pagesInFlight?: number
+                /** Android: ms to load a page before the stream fails with TIMEOUT (8), 30 s by default */
+                timeoutMs?: number
+            }
+
+            type CallOptions = {
+                /**
+                 * Android: ms to wait for the result before failing with TIMEOUT (8), overriding the
+                 * default of the call; capped by the GameServicesMaxCallbackTime preference (2 min).
+                 * Writes (scores, achievements) never fail with TIMEOUT: past this time they are
+                 * queued for replay and succeed with "Queued" (30 s by default)
+                 */
+                timeoutMs?: number
+            }
+
+            type LeaderboardStreamPage = {
+                streamId: number
+                page: number
+                scores: LeaderboardScoreEntry[]
+                done: boolean
+                cancelled?: boolean
+            }
+
+            type LeaderboardStream = {
+                cancel(): void
+            }
+
+            type StageMetrics = {
+                count: number
+                sumMs: number
+                /** counts per bucket of bucketsMs (upper bounds), the last one for longer durations */
+                buckets: number[]
+            }
+
+            type ActionMetrics = {
+                success: number
+                failure: number
+                /** failures by service status code, or by negated plugin error code */
+                failures: { [code: string]: number }
+                /** calls waiting for their last result; listeners (login, watchSaveGames, streams) are not counted */
+                inFlight: number
+                maxInFlight: number
+                stages: {
+                    queue?: StageMetrics
+                    service?: StageMetrics
+                    convert?: StageMetrics
+                    total?: StageMetrics
+                }
+            }
+
+            type Metrics = {
+                bucketsMs: number[]
+                actions: { [action: string]: ActionMetrics }
+                /** identical reads merged into one in-flight request */
+                singleFlight: {
+                    calls: number
+                    merged: number
+                    inFlight: number
+                    actions: { [action: string]: { calls: number, merged: number } }
+                }
+                /** Android: background disconnections, see the GameServicesIdleDisconnectDelay preference */
+                connection?: {
+                    stops: number
+                    /** starts finding the client still connected, within the grace period */
+                    keptAlive: number
+                    idleDisconnects: number
+                    reconnects: number
+                    reconnectMs: number
+                    averageReconnectMs: number
+                    keptAliveBackgroundMs: number
+                    /** keptAlive times averageReconnectMs */
+                    timeSavedMs: number
+                }
+                /** Android: reconnect backoff and circuit breaker; rejected calls failed with SERVICE_UNAVAILABLE */
+                reconnects?: {
+                    circuit: "closed" | "open" | "halfOpen"
+                    /** consecutive retryable failures */
+                    failures: number
+                    openings: number
+                    reconnects: number
+                    /** calls re-issued after a retryable failure */
+                    retries: number
+                    rejected: number
+                    /** calls waiting for the reconnection */
+                    waiting: number
+                }
+                /** Android: calls made during the sign-in, run once signed in */
+                signInQueue?: {
+                    waiting: number
+                    parked: number
+                    resumed: number
+                    /** failed with NOT_CONNECTED once their deadline passed */
+                    expired: number
+                    /** failed with the sign-in error */
+                    failed: number
+                    /** not parked, the queue being full */
+                    rejected: number
+                }
+                deadlines?: {
+                    /** longest deadline allowed */
+                    maxMs: number
+                    /** calls with a deadline waiting for their result */
+                    outstanding: number
+                    /** calls failed with TIMEOUT */
+                    timedOut: number
+                }
+                /** Android: time to connected, by sign-in mode ("silent", "interactive") */
+                signIn?: {
+                    [mode: string]: SignInModeMetrics | SignInAttempt | undefined
+                    last?: SignInAttempt
+                }
+                /** Android: persisted plugin state, written in batches */
+                state?: {
+                    changes: number
+                    writes: number
+                    /** changes not written yet */
+                    pending: boolean
+                }
+                /**
+                 * Android: leaderboard and achievement requests waiting for their budget, see the
+                 * GameServicesReadRate, ReadBurst, WriteRate, WriteBurst and MaxInFlight preferences
+                 */
+                rateLimiter?: {
+                    read: RateLimiterQueueMetrics
+                    write: RateLimiterQueueMetrics
+                    /** cache refreshes */
+                    backgroundRead: RateLimiterQueueMetrics
+                    inFlight: number
+                    maxInFlight: number
+                    inFlightCap: number
+                    /** queued requests failed as the sign-in failed or on logout */
+                    failed: number
+                }
+                /** Android: leaderboard pages indexed for estimateRank */
+                rankIndex?: {
+                    leaderboards: number
+                    points: number
+                    pages: number
+                    estimates: number
+                    exact: number
+                    /** estimates of leaderboards without any loaded page */
+                    misses: number
+                }
+            }
+
+            type RankEstimate = {
+                rank: number
+                /** best and worst possible ranks, equal when exact; high is -1 when unknown */
+                low: number
+                high: number
+                exact: boolean
+                /** scores in the leaderboard, -1 when unknown */
+                total: number
+                /** age of the loaded scores the estimate is based on */
+                ageMs: number
+            }
+
+            type RateLimiterQueueMetrics = {
+                queued: number
+                maxQueued: number
+                issued: number
+                /** requests which had to wait */
+                delayed: number
+                averageWaitMs: number
+            }
+
+            type SignInModeMetrics = {
+                attempts: number
+                connected: number
+                /** average time to connected */
+                averageMs: number
+                /** average of each phase of the connected sign-ins: availability, build, connect, onConnected */
+                averagePhasesMs: { [phase: string]: number }
+            }
+
+            type SignInAttempt = {
+                mode: "silent" | "interactive"
+                connected: boolean
+                totalMs: number
+                phases: { [phase: string]: number }
+            }
+
+            type SaveGameOptions = {
+                /** bytes per chunk sent to the device (Android), 4 KB to 1 MB; GameServicesSaveChunkSize by default */
+                chunkSize?: number
+                description?: string
+                playedTime?: number
+                progressValue?: number
+                /** uploads the save even if unchanged since the last upload from this device (Android) */
+                force?: boolean
+                onProgress?: (written: number, total: number) => void
+            }
+
+            type LoadSaveGameOptions = {
+                chunkSize?: number
+                /** resolves with an ArrayBuffer instead of a string (Android) */
+                binary?: boolean
+                onProgress?: (loaded: number, total: number) => void
+            }
+
+            type SaveGameMetadata = {
+                name: string
+                size: number
+                description: string
+                modified: number
+                playedTime: number
+                progressValue: number
+                deviceName: string
+                /** size stored on the service, after compression */
+                storedSize?: number
+                /** save results: true when the save was unchanged and not uploaded */
+                skipped?: boolean
+                /** save results: bytes not uploaded thanks to compression or to the skip */
+                bytesSaved?: number
+            }
+
+            /**
+             * Android: "synced" once uploaded or downloaded, "pending" until uploaded,
+             * "deleted" until deleted from the service, "conflict" until resolved (custom policy)
+             */
+            type SaveGameSyncState = "synced" | "pending" | "deleted" | "conflict"
+
+            type SaveGameState = {
+                name: string
+                state: SaveGameSyncState
+                size: number
+                modified: number
+                playedTime: number
+                progressValue: number
+                description: string
+                /** modification time of the service version the local copy is based on, 0 if none */
+                remoteModified: number
+                /** incremented by every local change */
+                version: number
+                /** last upload: size stored on the service, after compression */
+                storedSize?: number
+                /** last upload: true when the save was unchanged and not uploaded */
+                skipped?: boolean
+                /** last upload: bytes not uploaded thanks to compression or to the skip */
+                bytesSaved?: number
+                /** last sync error of the save */
+                error?: string
+            }
+
+            type SaveGameConflictPolicy = "mostRecent" | "longestPlaytime" | "highestProgress" | "custom"
+
+            type SaveGameEvent =
+                { type: "state", name: string, save: SaveGameState } |
+                { type: "removed", name: string } |
+                { type: "conflict", name: string, local: SaveGameState, remote: SaveGameMetadata }
+
             type ServiceError = {
                 code: number
                 message: string
@@ -45,24 +359,73 @@ declare module Cordova {
         interface GameService {
             loginStatusChanged?: (state: GameServices.Player, error?: GameServices.ServiceError) => void
 
+            /**
+             * With the GameServicesAutoSignIn preference (Android), a returning player is signed in
+             * silently on startup: login then completes with that sign-in, or shows the sign-in UI
+             * if it failed.
+             */
             login(): void
             logout(): void
 
             isLoggedIn(): boolean
 
-            getPlayerScore(leaderboardId: string, span: GameServices.LeaderboardEntrySpan, success: (data: GameServices.LeaderboardScoreEntry) => void, fail: (error: GameServices.ServiceError) => void): void
-            getLeaderboardScores(leaderboardId: string, scope: "top" | "player", span: GameServices.LeaderboardEntrySpan, maxResults: number, success: (data: GameServices.LeaderboardScoreEntry[]) => void, fail: (error: GameServices.ServiceError) => void): void
+            /** Profile of the last signed in player, available before login completes. Empty object if unknown. */
+            getCachedPlayerDetails(success: (player: GameServices.Player | {}) => void, fail?: (error: GameServices.ServiceError) => void): void
+
+            getPlayerScore(leaderboardId: string, span: GameServices.LeaderboardEntrySpan, success: (data: GameServices.LeaderboardScoreEntry) => void, fail: (error: GameServices.ServiceError) => void, options?: GameServices.CallOptions): void
+            getLeaderboardScores(leaderboardId: string, scope: "top" | "player", span: GameServices.LeaderboardEntrySpan, maxResults: number, success: (data: GameServices.LeaderboardScoreEntry[] | GameServices.ColumnsPayload | GameServices.PlayersPayload | ArrayBuffer) => void, fail: (error: GameServices.ServiceError) => void, options?: GameServices.CallOptions & { format?: GameServices.PayloadFormat }): void
 
-            submitScore(leaderboardId: string, score: number, tag?: any, success?: () => void, fail?: (ServiceError) => void): void
-            submitScores(entries: { leaderboardId: string, score: number, tag?: any }[], success?: () => void, fail?: (ServiceError) => void): void
+            /** Loads several leaderboard pages in one call, with each player listed once for all of them */
+            getLeaderboardScoresBatch(requests: GameServices.LeaderboardScoresRequest[], success: (data: GameServices.LeaderboardScoresBatch) => void, fail?: (error: GameServices.ServiceError) => void, options?: GameServices.CallOptions): void
+
+            /**
+             * Loads the leaderboard page by page, calling onPage as soon as each page is available.
+             * The next pages load once onPage returns, or once the promise it returns settles.
+             */
+            streamLeaderboardScores(leaderboardId: string, scope: "top" | "player", span: GameServices.LeaderboardEntrySpan, options: GameServices.LeaderboardStreamOptions, onPage: (page: GameServices.LeaderboardStreamPage) => void | PromiseLike<any>, fail?: (error: GameServices.ServiceError) => void): GameServices.LeaderboardStream
+
+            /**
+             * Android: places a score among the leaderboard pages already loaded (getLeaderboardScores,
+             * getLeaderboardScoresBatch, streamLeaderboardScores), without a service call.
+             * Resolves with null when no page of the leaderboard was loaded.
+             */
+            estimateRank(leaderboardId: string, span: GameServices.LeaderboardEntrySpan, score: number, success: (estimate: GameServices.RankEstimate | null) => void, fail?: (error: GameServices.ServiceError) => void): void
+
+            submitScore(leaderboardId: string, score: number, tag?: any, success?: () => void, fail?: (ServiceError) => void, options?: GameServices.CallOptions): void
+            submitScores(entries: { leaderboardId: string, score: number, tag?: any }[], success?: (results: GameServices.SubmitScoreEntryResult[]) => void, fail?: (ServiceError) => void): void
             showLeaderboard(leaderboardId: string, success?: () => void, fail?: (ServiceError) => void): void
             showLeaderboards(success?: () => void, fail?: (ServiceError) => void): void
 
-            getAchievements(success: (achievements: GameServices.AchievementEntry[]) => void, fail?: (ServiceError) => void): void
-            unlockAchievement(id: string, success?: () => void, fail?: (ServiceError) => void): void
-            incrementAchievement(id: string, steps: number, success?: () => void, fail?: (ServiceError) => void): void
+            /**
+             * With `cached: true` success is called with the locally stored achievements first (if any),
+             * then again with only the entries that changed once reconciled with the service.
+             */
+            getAchievements(success: (achievements: GameServices.AchievementEntry[] | GameServices.ColumnsPayload | ArrayBuffer) => void, fail?: (ServiceError) => void, options?: GameServices.CallOptions & { cached?: boolean, format?: GameServices.PayloadFormat }): void
+
+            /** Converts a "columns" or "binary" payload to entries, or to columns only with asColumns. */
+            decodeCompact(payload: GameServices.ColumnsPayload | ArrayBuffer, asColumns?: boolean): any
+            unlockAchievement(id: string, success?: () => void, fail?: (ServiceError) => void, options?: GameServices.CallOptions): void
+            incrementAchievement(id: string, steps: number, success?: () => void, fail?: (ServiceError) => void, options?: GameServices.CallOptions): void
             showAchievements(success?: () => void, fail?: (ServiceError) => void): void
             resetAchievements(success?: () => void, fail?: (ServiceError) => void): void
+
+            /**
+             * Data is sent in chunks on Android, see SaveGameOptions.chunkSize; strings are stored as UTF-8.
+             * On Android the save is stored locally and succeeds right away, then is uploaded in the background.
+             */
+            saveGame(name: string, data: string | ArrayBuffer | ArrayBufferView, success?: (state?: GameServices.SaveGameState) => void, fail?: (error: GameServices.ServiceError) => void, options?: GameServices.SaveGameOptions): void
+            /** Resolves with null when there is no save with that name */
+            loadSaveGame(name: string, success: (data: string | ArrayBuffer | null) => void, fail?: (error: GameServices.ServiceError) => void, options?: GameServices.LoadSaveGameOptions): void
+            deleteSaveGame(name: string, success?: () => void, fail?: (error: GameServices.ServiceError) => void): void
+
+            /** Android: sync state changes and conflicts of the saves. Returns a function removing the listener. */
+            onSaveGameChanged(listener: (event: GameServices.SaveGameEvent) => void): () => void
+            /** Android: GameServicesSaveConflictPolicy by default. With "custom", the resolver picks the version to keep. */
+            setSaveGameConflictPolicy(policy: GameServices.SaveGameConflictPolicy, resolver?: (local: GameServices.SaveGameState, remote: GameServices.SaveGameMetadata) => "local" | "remote" | PromiseLike<"local" | "remote">, success?: () => void, fail?: (error: GameServices.ServiceError) => void): void
+            getSaveGameStates(success: (states: GameServices.SaveGameState[]) => void, fail?: (error: GameServices.ServiceError) => void): void
+
+            getMetrics(success: (metrics: GameServices.Metrics) => void, fail?: (ServiceError) => void): void
+            resetMetrics(success?: () => void, fail?: (ServiceError) => void): void
         }
     }
 }
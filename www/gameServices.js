@@ -2,6 +2,99 @@
 
 var isLoggedIn = false;
 
+var SCORE_COLUMNS = ["playerId", "playerName", "playerImage", "score", "rank", "timestamp", "tag"];
+var ACHIEVEMENT_COLUMNS = ["id", "isCompleted", "isHidden", "xp", "name", "desc", "percent", "totalSteps", "steps", "image", "imageUnlocked", "timestamp"];
+
+// Decodes the "binary" format (see CompactEncoding.java) to the "columns" one
+function decodeBinary(buffer) {
+	var view = new DataView(buffer);
+	var kind = view.getUint8(3);
+	var count = view.getInt32(4);
+	var stringCount = view.getInt32(8);
+	var offset = 12;
+
+	var strings = new Array(stringCount);
+	for (var s = 0; s < stringCount; s++) {
+		var length = view.getInt32(offset);
+		var bytes = new Uint8Array(buffer, offset + 4, length);
+		strings[s] = decodeURIComponent(escape(String.fromCharCode.apply(null, bytes)));
+		offset += 4 + length;
+	}
+
+	function str() {
+		var index = view.getInt32(offset);
+		offset += 4;
+		return index < 0 ? null : strings[index];
+	}
+	function int() {
+		var value = view.getInt32(offset);
+		offset += 4;
+		return value;
+	}
+	function num() {
+		var value = view.getFloat64(offset);
+		offset += 8;
+		return value;
+	}
+
+	var names = kind === 1 ? SCORE_COLUMNS : ACHIEVEMENT_COLUMNS;
+	var columns = { format: "columns", count: count };
+	for (var n = 0; n < names.length; n++) {
+		columns[names[n]] = new Array(count);
+	}
+
+	for (var r = 0; r < count; r++) {
+		if (kind === 1) {
+			columns.playerId[r] = str();
+			columns.playerName[r] = str();
+			columns.playerImage[r] = str();
+			columns.score[r] = num();
+			columns.rank[r] = num();
+			columns.timestamp[r] = num();
+			columns.tag[r] = str();
+		} else {
+			columns.id[r] = str();
+			var flags = view.getUint8(offset++);
+			columns.isCompleted[r] = (flags & 1) !== 0;
+			columns.isHidden[r] = (flags & 2) !== 0;
+			columns.xp[r] = int();
+			columns.name[r] = str();
+			columns.desc[r] = str();
+			columns.percent[r] = int();
+			columns.totalSteps[r] = int();
+			columns.steps[r] = int();
+			columns.image[r] = str();
+			columns.imageUnlocked[r] = str();
+			columns.timestamp[r] = num();
+		}
+	}
+	return columns;
+}
+
+// Saves travel as UTF-8 bytes on Android
+function utf8Encode(text) {
+	if (typeof TextEncoder !== "undefined") {
+		return new TextEncoder().encode(text);
+	}
+	var binary = unescape(encodeURIComponent(text));
+	var bytes = new Uint8Array(binary.length);
+	for (var a = 0; a < binary.length; a++) {
+		bytes[a] = binary.charCodeAt(a);
+	}
+	return bytes;
+}
+
+function utf8Decode(bytes) {
+	if (typeof TextDecoder !== "undefined") {
+		return new TextDecoder().decode(bytes);
+	}
+	var binary = "";
+	for (var a = 0; a < bytes.length; a += 8192) {
+		binary += String.fromCharCode.apply(null, bytes.subarray(a, a + 8192));
+	}
+	return decodeURIComponent(escape(binary));
+}
+
 GameServices = {
 	loginStatusChanged: null,
 	isLoggedIn: function () {
@@ -29,20 +122,83 @@ GameServices = {
 	logout: function () {
 		cordova.exec(null, null, GameServices, "logout", []);
 	},
-	getPlayerDetails: function (success, failure) {
-		cordova.exec(success, failure, "GameServices", "getPlayerDetails", []);
+	getPlayerDetails: function (success, failure, options) {
+		cordova.exec(success, failure, "GameServices", "getPlayerDetails", [options || {}]);
+	},
+	getCachedPlayerDetails: function (success, failure) {
+		cordova.exec(success, failure, "GameServices", "getCachedPlayerDetails", []);
 	},
-	getPlayerScore: function (leaderboardId, span, success, failure) {
-		cordova.exec(success, failure, "GameServices", "getPlayerScore", [leaderboardId, span]);
+	getPlayerScore: function (leaderboardId, span, success, failure, options) {
+		cordova.exec(success, failure, "GameServices", "getPlayerScore", [leaderboardId, span, options || {}]);
 	},
-	submitScore: function (leaderboardId, score, tag, success, failure) {
-		cordova.exec(success, failure, "GameServices", "submitScore", [leaderboardId, score, tag]);
+	submitScore: function (leaderboardId, score, tag, success, failure, options) {
+		cordova.exec(success, failure, "GameServices", "submitScore", [leaderboardId, score, tag, options || {}]);
 	},
 	submitScores: function (entries, success, failure) {
 		cordova.exec(success, failure, "GameServices", "submitScores", entries);
 	},
-	getLeaderboardScores: function (leaderboardId, scope, span, maxResults, success, failure) {
-		cordova.exec(success, failure, "GameServices", "getLeaderboardScores", [leaderboardId, scope, span, maxResults]);
+	getLeaderboardScores: function (leaderboardId, scope, span, maxResults, success, failure, options) {
+		cordova.exec(success, failure, "GameServices", "getLeaderboardScores", [leaderboardId, scope, span, maxResults, options || {}]);
+	},
+	getLeaderboardScoresBatch: function (requests, success, failure, options) {
+		cordova.exec(success, failure, "GameServices", "getLeaderboardScoresBatch", [requests, options || {}]);
+	},
+	streamLeaderboardScores: function (leaderboardId, scope, span, options, onPage, failure) {
+		// every page is acknowledged once onPage returns (or once the promise it returns settles),
+		// which lets the next pages load
+		var streamId = null;
+		var cancelled = false;
+
+		function ack(id) {
+			cordova.exec(null, null, "GameServices", "ackLeaderboardStream", [id]);
+		}
+
+		cordova.exec(
+			function (page) {
+				if (streamId === null) {
+					streamId = page.streamId;
+					if (cancelled && !page.done) {
+						cordova.exec(null, null, "GameServices", "cancelLeaderboardStream", [streamId]);
+					}
+				}
+
+				var ret = onPage && onPage(page);
+				if (!page.done) {
+					if (ret && typeof ret.then === "function") {
+						ret.then(function () { ack(page.streamId); }, function () { ack(page.streamId); });
+					} else {
+						ack(page.streamId);
+					}
+				}
+			},
+			failure,
+			"GameServices",
+			"streamLeaderboardScores",
+			[leaderboardId, scope, span, options || {}]
+		);
+
+		return {
+			cancel: function () {
+				cancelled = true;
+				if (streamId !== null) {
+					cordova.exec(null, null, "GameServices", "cancelLeaderboardStream", [streamId]);
+				}
+			}
+		};
+	},
+	/**
+	 * Places a score among the leaderboard pages already loaded on the device
+	 * (Android), without a service call. Resolves with null when no page of
+	 * the leaderboard was loaded.
+	 */
+	estimateRank: function (leaderboardId, span, score, success, failure) {
+		if (cordova.platformId !== "android") {
+			failure && failure({ code: 2, message: "Not Supported" });
+			return;
+		}
+		cordova.exec(function (estimate) {
+			success && success(estimate.found === false ? null : estimate);
+		}, failure, "GameServices", "estimateRank", [leaderboardId, span, score]);
 	},
 	showLeaderboard: function (leaderboardId, span, success, failure) {
 		cordova.exec(success, failure, "GameServices", "showLeaderboard", [leaderboardId, span]);
@@ -50,14 +206,14 @@ GameServices = {
 	showLeaderboards: function (success, failure) {
 		cordova.exec(success, failure, "GameServices", "showLeaderboards", []);
 	},
-	getAchievements: function (success, failure) {
-		cordova.exec(success, failure, "GameServices", "getAchievements", []);
+	getAchievements: function (success, failure, options) {
+		cordova.exec(success, failure, "GameServices", "getAchievements", [options || {}]);
 	},
-	unlockAchievement: function (achievementId, success, failure) {
-		cordova.exec(success, failure, "GameServices", "unlockAchievement", [achievementId]);
+	unlockAchievement: function (achievementId, success, failure, options) {
+		cordova.exec(success, failure, "GameServices", "unlockAchievement", [achievementId, options || {}]);
 	},
-	incrementAchievement: function (achievementId, steps, success, failure) {
-		cordova.exec(success, failure, "GameServices", "unlockAchievement", [achievementId, steps]);
+	incrementAchievement: function (achievementId, steps, success, failure, options) {
+		cordova.exec(success, failure, "GameServices", "incrementAchievement", [achievementId, steps, options || {}]);
 	},
 	showAchievements: function (success, failure) {
 		cordova.exec(success, failure, "GameServices", "showAchievements", []);
@@ -65,15 +221,186 @@ GameServices = {
 	resetAchievements: function (success, failure) {
 		cordova.exec(success, failure, "GameServices", "resetAchievements", []);
 	},
-	saveGame: function (name, data, success, failure) {
-		cordova.exec(success, failure, "GameServices", "saveGame", [name, data]);
+	/**
+	 * Converts a "columns" or "binary" payload to an array of row objects,
+	 * or to columns only when asColumns is set.
+	 */
+	decodeCompact: function (payload, asColumns) {
+		var columns = payload instanceof ArrayBuffer ? decodeBinary(payload) : payload;
+		if (asColumns || !columns || columns.format !== "columns") {
+			return columns;
+		}
+
+		var names = Object.keys(columns).filter(function (key) { return key !== "format" && key !== "count"; });
+		var rows = new Array(columns.count);
+		for (var r = 0; r < columns.count; r++) {
+			var row = {};
+			for (var n = 0; n < names.length; n++) {
+				row[names[n]] = columns[names[n]][r];
+			}
+			rows[r] = row;
+		}
+		return rows;
+	},
+	getMetrics: function (success, failure) {
+		cordova.exec(success, failure, "GameServices", "getMetrics", []);
+	},
+	resetMetrics: function (success, failure) {
+		cordova.exec(success, failure, "GameServices", "resetMetrics", []);
+	},
+	saveGame: function (name, data, success, failure, options) {
+		if (cordova.platformId !== "android") {
+			cordova.exec(success, failure, "GameServices", "saveGame", [name, data]);
+			return;
+		}
+
+		// the save is opened with its size, then written chunk by chunk, one at a time
+		options = options || {};
+		var bytes = typeof data === "string" ? utf8Encode(data)
+			: ArrayBuffer.isView(data) ? new Uint8Array(data.buffer, data.byteOffset, data.byteLength)
+			: new Uint8Array(data);
+		var total = bytes.byteLength;
+
+		function sendChunk(transferId, chunkSize, offset) {
+			var start = bytes.byteOffset + offset;
+			var chunk = bytes.buffer.slice(start, start + Math.min(chunkSize, total - offset));
+			cordova.exec(
+				function (written) {
+					options.onProgress && options.onProgress(written, total);
+					if (written < total) {
+						sendChunk(transferId, chunkSize, written);
+					}
+				},
+				null,
+				"GameServices",
+				"saveGameChunk",
+				[transferId, offset, chunk]
+			);
+		}
+
+		cordova.exec(
+			function (r) {
+				if (r && r.transferId !== undefined) {
+					sendChunk(r.transferId, r.chunkSize, 0);
+				} else {
+					success && success(r);
+				}
+			},
+			failure,
+			"GameServices",
+			"saveGame",
+			[name, total, {
+				chunkSize: options.chunkSize,
+				description: options.description,
+				playedTime: options.playedTime,
+				progressValue: options.progressValue,
+				force: options.force
+			}]
+		);
 	},
-	loadSaveGame: function (name, success, failure) {
-		cordova.exec(success, failure, "GameServices", "loadSaveGame", [name]);
+	loadSaveGame: function (name, success, failure, options) {
+		if (cordova.platformId !== "android") {
+			cordova.exec(success, failure, "GameServices", "loadSaveGame", [name]);
+			return;
+		}
+
+		// state first, then the data in binary chunks, then a last result flagged as done
+		options = options || {};
+		var chunks = [];
+		var loaded = 0;
+		var total = 0;
+		cordova.exec(
+			function (r) {
+				if (r instanceof ArrayBuffer) {
+					chunks.push(new Uint8Array(r));
+					loaded += r.byteLength;
+					options.onProgress && options.onProgress(loaded, total);
+				} else if (!r.done) {
+					total = r.size;
+				} else if (!r.found) {
+					success && success(null);
+				} else {
+					var bytes = new Uint8Array(loaded);
+					for (var a = 0, offset = 0; a < chunks.length; a++) {
+						bytes.set(chunks[a], offset);
+						offset += chunks[a].byteLength;
+					}
+					success && success(options.binary ? bytes.buffer : utf8Decode(bytes));
+				}
+			},
+			failure,
+			"GameServices",
+			"loadSaveGame",
+			[name, { chunkSize: options.chunkSize }]
+		);
 	},
 	deleteSaveGame: function (name, success, failure) {
 		cordova.exec(success, failure, "GameServices", "deleteSaveGame", [name]);
+	},
+	/**
+	 * Listens to the sync state changes of the saves, on Android where saves
+	 * are stored locally first. Returns a function removing the listener.
+	 */
+	onSaveGameChanged: function (listener) {
+		saveListeners.push(listener);
+		watchSaveGames();
+		return function () {
+			var index = saveListeners.indexOf(listener);
+			if (index >= 0) {
+				saveListeners.splice(index, 1);
+			}
+		};
+	},
+	/**
+	 * Sets how saves changed both locally and on the service are resolved:
+	 * "mostRecent", "longestPlaytime", "highestProgress", or "custom" with a
+	 * resolver picking "local" or "remote" (or a promise of it).
+	 */
+	setSaveGameConflictPolicy: function (policy, resolver, success, failure) {
+		if (cordova.platformId !== "android") {
+			failure && failure({ code: 2, message: "Not Supported" });
+			return;
+		}
+
+		saveResolver = resolver || null;
+		if (saveResolver) {
+			watchSaveGames();
+		}
+		cordova.exec(success, failure, "GameServices", "setSaveGameConflictPolicy", [policy]);
+	},
+	getSaveGameStates: function (success, failure) {
+		cordova.exec(success, failure, "GameServices", "getSaveGameStates", []);
 	}
 };
 
+var saveListeners = [];
+var saveResolver = null;
+var saveWatching = false;
+
+// A single kept callback carries the save events to every listener
+function watchSaveGames() {
+	if (saveWatching || cordova.platformId !== "android") {
+		return;
+	}
+	saveWatching = true;
+	cordova.exec(
+		function (event) {
+			if (event.type === "conflict" && saveResolver) {
+				Promise.resolve(saveResolver(event.local, event.remote)).then(function (choice) {
+					cordova.exec(null, null, "GameServices", "resolveSaveGameConflict", [event.name, choice]);
+				});
+			}
+			for (var a = 0; a < saveListeners.length; a++) {
+				saveListeners[a](event);
+			}
+		},
+		function () {
+			saveWatching = false;
+		},
+		"GameServices",
+		"watchSaveGames",
+		[]
+	);
+}
+
 module.exports = GameServices;